@@ -2,628 +2,8114 @@
  Ho Anh Khoa - s3978965
  */
 
+ import com.sun.net.httpserver.HttpExchange;
+ import com.sun.net.httpserver.HttpServer;
+ 
  import java.io.*;
- import java.text.ParseException;
- import java.text.SimpleDateFormat;
+ import java.math.BigDecimal;
+ import java.net.InetAddress;
+ import java.net.InetSocketAddress;
+ import java.net.URLDecoder;
+ import java.nio.ByteBuffer;
+ import java.nio.CharBuffer;
+ import java.nio.MappedByteBuffer;
+ import java.nio.channels.Channels;
+ import java.nio.channels.FileChannel;
+ import java.nio.channels.ReadableByteChannel;
+ import java.nio.charset.StandardCharsets;
+ import java.nio.file.*;
+ import java.time.*;
+ import java.time.format.DateTimeFormatter;
  import java.util.*;
+ import java.util.concurrent.*;
+ import java.util.concurrent.atomic.AtomicBoolean;
+ import java.util.concurrent.atomic.AtomicLongArray;
+ import java.util.concurrent.atomic.LongAccumulator;
+ import java.util.concurrent.atomic.LongAdder;
+ import java.util.concurrent.locks.ReentrantLock;
+ import java.util.function.Consumer;
+ import java.util.function.Function;
+ import java.util.function.Supplier;
+ import java.util.stream.Collectors;
+ import java.util.stream.IntStream;
+ import java.util.stream.Stream;
+ import java.util.zip.CRC32;
  
  // Enum for different claim statuses
  enum ClaimStatus {
      NEW, PROCESSING, DONE;
+ 
+     // Method to check a status change against the workflow NEW -> PROCESSING -> DONE;
+     // a claim in PROCESSING may also be sent back to NEW, and keeping the status is always allowed
+     boolean canMoveTo(ClaimStatus next) {
+         switch (this) {
+             case NEW:
+                 return next == NEW || next == PROCESSING;
+             case PROCESSING:
+                 return true;
+             default:
+                 return next == DONE;
+         }
+     }
+ 
+     // Method to reject a status change the workflow does not allow
+     static void checkTransition(String id, ClaimStatus from, ClaimStatus to) {
+         if (!from.canMoveTo(to)) {
+             throw new IllegalStateException("Claim " + id + " cannot move from " + from + " to " + to);
+         }
+     }
  }
  
  // Class responsible for file I/O operations
  class FileManager {
      // File names for storing data
-     private static final String CLAIMS_FILE = "claims.txt";
-     private static final String CUSTOMERS_FILE = "customers.txt";
+     static final String CLAIMS_FILE = "claims.txt";
+     static final String CUSTOMERS_FILE = "customers.txt";
+     // Files are parsed in ranges of this size, so a large file keeps every core of the fork-join pool busy
+     static final long PARALLEL_RANGE_BYTES = 8 << 20;
+ 
+     private static final ClaimMetrics.Histogram CUSTOMERS_PARSE = ClaimMetrics.timer("load.customers.parse");
+     private static final ClaimMetrics.Histogram CUSTOMERS_PARSE_RATE = ClaimMetrics.histogram("load.customers.records_per_sec");
+     private static final ClaimMetrics.Histogram CLAIMS_PARSE = ClaimMetrics.timer("load.claims.parse");
+     private static final ClaimMetrics.Histogram CLAIMS_PARSE_RATE = ClaimMetrics.histogram("load.claims.records_per_sec");
+     private static final ClaimMetrics.Counter RECORDS_REJECTED = ClaimMetrics.counter("load.records.rejected");
+     private static final ClaimMetrics.Histogram FILE_WRITE = ClaimMetrics.timer("persist.file.write");
  
      // Method to read customers from file and populate the list
      public static void readCustomersFromFile(List<Customer> customers) {
-         try (Scanner scanner = new Scanner(new File(CUSTOMERS_FILE))) {
-             while (scanner.hasNextLine()) {
-                 String[] customerData = scanner.nextLine().split(",");
-                 if (customerData.length < 5) {
-                     System.out.println("Invalid line format: " + Arrays.toString(customerData)); // Debug output
-                     continue; // Skip this line and proceed to the next one
-                 }
-                 // Extract customer data fields
-                 String fullName = customerData[0];
-                 int age = Integer.parseInt(customerData[1]);
-                 String gender = customerData[2];
-                 String address = customerData[3];
-                 String phoneNumber = customerData[4];
-                 // Create Customer object and add to list
-                 Customer customer = new Customer(fullName, age, gender, address, phoneNumber);
-                 customers.add(customer);
+         readCustomersFromFile(customers, CUSTOMERS_FILE);
+     }
+ 
+     // Method to read customers from the given file and populate the list, in file order
+     public static void readCustomersFromFile(List<Customer> customers, String fileName) {
+         recordLoad(parseInParallel(fileName, PARALLEL_RANGE_BYTES, FileManager::parseCustomer, customers), CUSTOMERS_PARSE, CUSTOMERS_PARSE_RATE);
+     }
+ 
+     // Method to stream customers from the given file to a callback without materializing the file
+     public static ParseStats streamCustomers(String fileName, Consumer<Customer> consumer) {
+         long startTime = System.nanoTime();
+         long records = 0;
+         long rejected = 0;
+         try (BufferedLineReader reader = new BufferedLineReader(Paths.get(fileName))) {
+             FieldTokenizer fields = new FieldTokenizer();
+             while (reader.next(fields)) {
+                 Customer customer = parseCustomer(fields);
+                 if (customer != null) {
+                     consumer.accept(customer);
+                     records++;
+                 } else {
+                     rejected++;
+                 }
              }
-         } catch (FileNotFoundException e) {
+         } catch (IOException e) {
              e.printStackTrace();
          }
+         return recordLoad(new ParseStats(records, rejected, System.nanoTime() - startTime), CUSTOMERS_PARSE, CUSTOMERS_PARSE_RATE);
      }
  
      // Method to write customers to file
      public static void writeCustomersToFile(List<Customer> customers) {
-         try (PrintWriter writer = new PrintWriter(new FileWriter(CUSTOMERS_FILE))) {
+         writeCustomersToFile(customers, CUSTOMERS_FILE);
+     }
+ 
+     // Method to write customers to the given file
+     public static void writeCustomersToFile(List<Customer> customers, String fileName) {
+         try {
+             saveCustomers(customers, fileName);
+         } catch (IOException e) {
+             e.printStackTrace();
+         }
+     }
+ 
+     // Method to replace the given file with the customers, throws if the file could not be replaced
+     static void saveCustomers(Collection<Customer> customers, String fileName) throws IOException {
+         writeAtomically(fileName, writer -> {
              // Write each customer's data to file
              for (Customer customer : customers) {
-                 writer.println(customer.getFullName() + "," + customer.getAge() + "," +
-                         customer.getGender() + "," + customer.getAddress() + "," + customer.getPhoneNumber());
+                 writer.write(formatCustomer(customer));
+                 writer.newLine();
              }
+         });
+     }
+ 
+     // Method to read claims from file and populate the list
+     public static void readClaimsFromFile(List<Claim> claims) {
+         readClaimsFromFile(claims, CLAIMS_FILE);
+     }
+ 
+     // Method to read claims from the given file and populate the list, in file order
+     public static void readClaimsFromFile(List<Claim> claims, String fileName) {
+         recordLoad(parseInParallel(fileName, PARALLEL_RANGE_BYTES, FileManager::parseClaim, claims), CLAIMS_PARSE, CLAIMS_PARSE_RATE);
+     }
+ 
+     // Records parsed from one range of a file
+     private static final class ParsedRange<T> {
+         final List<T> records = new ArrayList<>();
+         long rejected;
+     }
+ 
+     // Method to parse a file with one parser per line-aligned byte range, run on the fork-join pool;
+     // the ranges are appended in file order, so the result is the same as a single-threaded read
+     static <T> ParseStats parseInParallel(String fileName, long rangeBytes, Function<FieldTokenizer, T> parser, List<T> into) {
+         long startTime = System.nanoTime();
+         Path path = Paths.get(fileName);
+         long[] boundaries;
+         try {
+             boundaries = BufferedLineReader.lineAlignedRanges(path, rangeBytes);
          } catch (IOException e) {
              e.printStackTrace();
+             return new ParseStats(0, 0, System.nanoTime() - startTime);
          }
+         List<ParsedRange<T>> ranges = IntStream.range(0, boundaries.length - 1).parallel()
+                 .mapToObj(i -> parseRange(path, boundaries[i], boundaries[i + 1], parser))
+                 .collect(Collectors.toList());
+         long records = 0;
+         long rejected = 0;
+         for (ParsedRange<T> range : ranges) {
+             into.addAll(range.records);
+             records += range.records.size();
+             rejected += range.rejected;
+         }
+         return new ParseStats(records, rejected, System.nanoTime() - startTime);
      }
  
-     // Method to read claims from file and populate the list
-     public static void readClaimsFromFile(List<Claim> claims) {
-         try (Scanner scanner = new Scanner(new File(CLAIMS_FILE))) {
-             while (scanner.hasNextLine()) {
-                 String[] claimData = scanner.nextLine().split(",");
-                 if (claimData.length < 11) {
-                     System.out.println("Invalid line format: " + Arrays.toString(claimData)); // Debug output
-                     continue; // Skip this line and proceed to the next one
-                 }
-                 // Extract claim data fields
-                 String id = claimData[0];
-                 Date claimDate = parseDate(claimData[1]);
-                 long cardNumber = Long.parseLong(claimData[2]);
-                 Date examDate = parseDate(claimData[3]);
-                 double claimAmount = Double.parseDouble(claimData[4]);
-                 ClaimStatus status = ClaimStatus.valueOf(claimData[5]);
-                 ReceiverBankingInfo receiverBankingInfo = new ReceiverBankingInfo(claimData[6], claimData[7], claimData[8]);
-                 List<String> documents = new ArrayList<>();
-                 for (int i = 9; i < claimData.length - 1; i++) {
-                     documents.add(claimData[i]);
-                 }
-                 String fullName = claimData[claimData.length - 1]; // Full Name is the last element
-                 // Create Claim object and add to list
-                 Claim claim = new Claim(id, claimDate, cardNumber, examDate, documents, claimAmount, status, receiverBankingInfo, fullName);
-                 claims.add(claim);
+     private static <T> ParsedRange<T> parseRange(Path path, long start, long end, Function<FieldTokenizer, T> parser) {
+         ParsedRange<T> range = new ParsedRange<>();
+         try (BufferedLineReader reader = new BufferedLineReader(path, start, end)) {
+             FieldTokenizer fields = new FieldTokenizer();
+             while (reader.next(fields)) {
+                 T record = parser.apply(fields);
+                 if (record != null) {
+                     range.records.add(record);
+                 } else {
+                     range.rejected++;
+                 }
              }
-         } catch (FileNotFoundException e) {
+         } catch (IOException e) {
              e.printStackTrace();
          }
+         return range;
      }
  
-     // Method to write claims to file
-     public static void writeClaimsToFile(List<Claim> claims) {
-         try (PrintWriter writer = new PrintWriter(new FileWriter(CLAIMS_FILE))) {
-             SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-             // Write each claim's data to file
-             for (Claim claim : claims) {
-                 StringBuilder claimData = new StringBuilder();
-                 claimData.append(claim.getId()).append(",")
-                         .append(dateFormat.format(claim.getClaimDate())).append(",")
-                         .append(claim.getCardNumber()).append(",")
-                         .append(dateFormat.format(claim.getExamDate())).append(",")
-                         .append(claim.getClaimAmount()).append(",")
-                         .append(claim.getStatus()).append(",")
-                         .append(claim.getReceiverBankingInfo().getBankName()).append(",")
-                         .append(claim.getReceiverBankingInfo().getAccountName()).append(",")
-                         .append(claim.getReceiverBankingInfo().getAccountNumber());
- 
-                 for (String document : claim.getDocuments()) {
-                     claimData.append(",").append(document);
+     // Method to stream claims from the given file to a callback without materializing the file
+     public static ParseStats streamClaims(String fileName, Consumer<Claim> consumer) {
+         long startTime = System.nanoTime();
+         long records = 0;
+         long rejected = 0;
+         try (BufferedLineReader reader = new BufferedLineReader(Paths.get(fileName))) {
+             FieldTokenizer fields = new FieldTokenizer();
+             while (reader.next(fields)) {
+                 Claim claim = parseClaim(fields);
+                 if (claim != null) {
+                     consumer.accept(claim);
+                     records++;
+                 } else {
+                     rejected++;
                  }
- 
-                 claimData.append(",").append(claim.getFullName()); // Adding Full Name to the claim data
- 
-                 writer.println(claimData.toString());
              }
          } catch (IOException e) {
              e.printStackTrace();
          }
+         return recordLoad(new ParseStats(records, rejected, System.nanoTime() - startTime), CLAIMS_PARSE, CLAIMS_PARSE_RATE);
      }
  
-     // Method to parse date string into Date object
-     private static Date parseDate(String dateString) {
-         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+     // Method to add one file load to the metrics
+     private static ParseStats recordLoad(ParseStats stats, ClaimMetrics.Histogram time, ClaimMetrics.Histogram rate) {
+         time.record(stats.getElapsedNanos());
+         rate.record((long) stats.recordsPerSecond());
+         RECORDS_REJECTED.add(stats.getRejected());
+         return stats;
+     }
+ 
+     // Method to write claims to file
+     public static void writeClaimsToFile(List<Claim> claims) {
+         writeClaimsToFile(claims, CLAIMS_FILE);
+     }
+ 
+     // Method to write claims to the given file
+     public static void writeClaimsToFile(List<Claim> claims, String fileName) {
          try {
-             return dateFormat.parse(dateString);
-         } catch (ParseException e) {
-             System.err.println("Error parsing date. Please enter date in format YYYY-MM-DD.");
-             return null;
+             saveClaims(claims, fileName);
+         } catch (IOException e) {
+             e.printStackTrace();
          }
      }
- }
  
- // Class representing a Customer
- class Customer {
-     private String fullName;
-     private int age;
-     private String gender;
-     private String address;
-     private String phoneNumber;
+     // Method to replace the given file with the claims, throws if the file could not be replaced
+     static void saveClaims(Collection<Claim> claims, String fileName) throws IOException {
+         writeAtomically(fileName, writer -> {
+             // Write each claim's data to file, reusing one buffer for every line
+             StringBuilder claimData = new StringBuilder(256);
+             for (Claim claim : claims) {
+                 claimData.setLength(0);
+                 appendClaim(claimData, claim);
+                 writer.append(claimData);
+                 writer.newLine();
+             }
+         });
+     }
  
-     public Customer(String fullName, int age, String gender, String address, String phoneNumber) {
-         this.fullName = fullName;
-         this.age = age;
-         this.gender = gender;
-         this.address = address;
-         this.phoneNumber = phoneNumber;
+     // Content of a file written by writeAtomically
+     interface FileContent {
+         void writeTo(BufferedWriter writer) throws IOException;
      }
  
-     // Getters and setters
-     public String getFullName() {
-         return fullName;
+     // Content of a binary file written by writeBinaryAtomically
+     interface BinaryContent {
+         void writeTo(DataOutputStream out) throws IOException;
      }
  
-     public int getAge() {
-         return age;
+     private interface ChannelContent {
+         void writeTo(FileChannel channel) throws IOException;
      }
  
-     public String getGender() {
-         return gender;
+     // Method to replace a file without ever truncating it in place: the content goes to fileName.tmp,
+     // is forced to disk and then renamed over the original, so a crash leaves the old or the new file
+     static void writeAtomically(String fileName, FileContent content) throws IOException {
+         replaceAtomically(fileName, channel -> {
+             BufferedWriter writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1), 1 << 16);
+             content.writeTo(writer);
+             writer.flush();
+         });
      }
  
-     public String getAddress() {
-         return address;
+     // Method to replace a binary file the same way
+     static void writeBinaryAtomically(String fileName, BinaryContent content) throws IOException {
+         replaceAtomically(fileName, channel -> {
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+             content.writeTo(out);
+             out.flush();
+         });
      }
  
-     public String getPhoneNumber() {
-         return phoneNumber;
+     private static void replaceAtomically(String fileName, ChannelContent content) throws IOException {
+         long start = ClaimMetrics.start();
+         Path target = Paths.get(fileName).toAbsolutePath();
+         Path tmp = Paths.get(fileName + ".tmp").toAbsolutePath();
+         try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+             content.writeTo(channel);
+             channel.force(true);
+         } catch (IOException | RuntimeException e) {
+             Files.deleteIfExists(tmp);
+             throw e;
+         }
+         Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+         syncDirectory(target.getParent());
+         FILE_WRITE.stop(start);
      }
  
-     public void setFullName(String fullName) {
-         this.fullName = fullName;
+     // Method to make a rename durable; not every platform can open a directory, so failures are ignored
+     static void syncDirectory(Path directory) {
+         try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+             channel.force(true);
+         } catch (IOException e) {
+             // The rename itself is still atomic
+         }
      }
- }
  
- // Abstract class representing a Person
- abstract class Person {
-     protected String id;
-     protected String fullName;
+     // Method to parse one line of customers.txt, returns null if the line is malformed
+     static Customer parseCustomer(String line) {
+         FieldTokenizer fields = new FieldTokenizer();
+         fields.tokenize(line);
+         return parseCustomer(fields);
+     }
  
-     public Person(String id, String fullName) {
-         this.id = id;
-         this.fullName = fullName;
+     // Method to parse one tokenized customer record, returns null if the record is malformed
+     static Customer parseCustomer(FieldTokenizer fields) {
+         try {
+             return decodeCustomer(fields);
+         } catch (IllegalArgumentException e) {
+             System.out.println("Invalid line format: " + fields.line() + " (" + e.getMessage() + ")"); // Debug output
+             return null; // Skip this line and proceed to the next one
+         }
      }
- }
  
- // Class representing a Policy Holder, inherits from Person
- class PolicyHolder extends Person {
-     private List<Dependent> dependents;
-     protected InsuranceCard insuranceCard;
+     // Method to decode one tokenized customer record, throws IllegalArgumentException describing what is wrong
+     static Customer decodeCustomer(FieldTokenizer fields) {
+         if (fields.fieldCount() < 5) {
+             throw new IllegalArgumentException("expected 5 fields but found " + fields.fieldCount());
+         }
+         // Extract customer data fields
+         String fullName = fields.field(0);
+         int age = fields.intField(1);
+         String gender = fields.field(2);
+         String address = fields.field(3);
+         String phoneNumber = fields.field(4);
+         Customer customer = new Customer(fullName, age, gender, address, phoneNumber);
+         customer.markClean();
+         return customer;
+     }
  
-     public PolicyHolder(String id, String fullName, InsuranceCard insuranceCard) {
-         super(id, fullName);
-         this.insuranceCard = insuranceCard;
-         this.dependents = new ArrayList<>();
+     // Method to format a customer as one line of customers.txt
+     static String formatCustomer(Customer customer) {
+         return customer.getFullName() + "," + customer.getAge() + "," +
+                 customer.getGender() + "," + customer.getAddress() + "," + customer.getPhoneNumber();
      }
  
-     public void addDependent(Dependent dependent) {
-         dependents.add(dependent);
+     // Method to parse one line of claims.txt, returns null if the line is malformed
+     static Claim parseClaim(String line) {
+         FieldTokenizer fields = new FieldTokenizer();
+         fields.tokenize(line);
+         return parseClaim(fields);
      }
- }
  
- // Class representing a Dependent, inherits from Person
- class Dependent extends Person {
-     public Dependent(String id, String fullName) {
-         super(id, fullName);
+     // Method to parse one tokenized claim record, returns null if the record is malformed
+     static Claim parseClaim(FieldTokenizer fields) {
+         try {
+             return decodeClaim(fields);
+         } catch (IllegalArgumentException e) {
+             System.out.println("Invalid line format: " + fields.line() + " (" + e.getMessage() + ")"); // Debug output
+             return null; // Skip this line and proceed to the next one
+         }
      }
- }
  
- // Class representing an Insurance Card
- class InsuranceCard {
-     private long cardNumber;
-     private String cardHolder;
-     private String policyOwner;
-     private Date expirationDate;
+     // Method to decode one tokenized claim record, throws IllegalArgumentException describing what is wrong
+     static Claim decodeClaim(FieldTokenizer fields) {
+         int fieldCount = fields.fieldCount();
+         if (fieldCount < 10) {
+             throw new IllegalArgumentException("expected at least 10 fields but found " + fieldCount);
+         }
+         try {
+             // Extract claim data fields
+             String id = fields.field(0);
+             Date claimDate = fields.dateField(1);
+             long cardNumber = fields.longField(2);
+             Date examDate = fields.dateField(3);
+             double claimAmount = fields.doubleField(4);
+             ClaimStatus status = fields.enumField(5, CLAIM_STATUSES);
+             ReceiverBankingInfo receiverBankingInfo = new ReceiverBankingInfo(fields.field(6), fields.field(7), fields.field(8));
+             List<String> documents = new ArrayList<>(fieldCount - 10);
+             for (int i = 9; i < fieldCount - 1; i++) {
+                 documents.add(fields.field(i));
+             }
+             String fullName = fields.field(fieldCount - 1); // Full Name is the last element
+             Claim claim = new Claim(id, claimDate, cardNumber, examDate, documents, claimAmount, status, receiverBankingInfo, fullName);
+             claim.markClean();
+             return claim;
+         } catch (DateTimeException e) {
+             throw new IllegalArgumentException(e.getMessage(), e);
+         }
+     }
  
-     public InsuranceCard(long cardNumber, String cardHolder, String policyOwner, Date expirationDate) {
-         this.cardNumber = cardNumber;
-         this.cardHolder = cardHolder;
-         this.policyOwner = policyOwner;
-         this.expirationDate = expirationDate;
+     private static final ClaimStatus[] CLAIM_STATUSES = ClaimStatus.values();
+ 
+     // Method to format a claim as one line of claims.txt
+     static String formatClaim(Claim claim) {
+         StringBuilder claimData = new StringBuilder(256);
+         appendClaim(claimData, claim);
+         return claimData.toString();
      }
  
-     public long getCardNumber() {
-         return cardNumber;
+     // Method to append a claim in claims.txt format to the given buffer
+     static void appendClaim(StringBuilder claimData, Claim claim) {
+         claimData.append(claim.getId()).append(",");
+         ClaimDates.appendTo(claimData, claim.getClaimDate());
+         claimData.append(",").append(claim.getCardNumber()).append(",");
+         ClaimDates.appendTo(claimData, claim.getExamDate());
+         claimData.append(",")
+                 .append(claim.getClaimAmount()).append(",")
+                 .append(claim.getStatus()).append(",")
+                 .append(claim.getReceiverBankingInfo().getBankName()).append(",")
+                 .append(claim.getReceiverBankingInfo().getAccountName()).append(",")
+                 .append(claim.getReceiverBankingInfo().getAccountNumber());
+ 
+         for (String document : claim.getDocuments()) {
+             claimData.append(",").append(document);
+         }
+ 
+         claimData.append(",").append(claim.getFullName()); // Adding Full Name to the claim data
      }
  }
  
- // Class representing a Claim
- class Claim {
-     private String id;
-     private Date claimDate;
-     private long cardNumber;
-     private Date examDate;
-     private List<String> documents;
-     private double claimAmount;
-     private ClaimStatus status;
-     private ReceiverBankingInfo receiverBankingInfo;
-     private String fullName; // Adding Full Name attribute
+ // Class providing cached, thread-safe conversions between yyyy-MM-dd text and Date
+ // Dates are resolved through java.time in the system time zone, like SimpleDateFormat did
+ final class ClaimDates {
+     private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("uuuu-MM-dd");
+     private static final DateTimeFormatter LENIENT_FORMAT = DateTimeFormatter.ofPattern("uuuu-M-d"); // accepts 2024-1-5
+     private static final ZoneId ZONE = ZoneId.systemDefault();
+     private static final int CACHE_SIZE = 1 << 14; // direct-mapped, covers ~45 years of distinct days
+     // Entries are immutable, so racing writers can only replace one valid entry with another
+     private static final CachedDay[] CACHE = new CachedDay[CACHE_SIZE];
  
-     // Constructor
-     public Claim(String id, Date claimDate, long cardNumber, Date examDate,
-                  List<String> documents, double claimAmount, ClaimStatus status,
-                  ReceiverBankingInfo receiverBankingInfo, String fullName) {
-         this.id = id;
-         this.claimDate = claimDate;
-         this.cardNumber = cardNumber;
-         this.examDate = examDate;
-         this.documents = documents;
-         this.claimAmount = claimAmount;
-         this.status = status;
-         this.receiverBankingInfo = receiverBankingInfo;
-         this.fullName = fullName;
+     private ClaimDates() {
      }
  
-     // Getters and setters for other attributes
-     public String getId() {
-         return id;
-     }
+     private static final class CachedDay {
+         final long epochDay;
+         final long millis;
  
-     public Date getClaimDate() {
-         return claimDate;
+         CachedDay(long epochDay, long millis) {
+             this.epochDay = epochDay;
+             this.millis = millis;
+         }
      }
  
-     public void setClaimDate(Date claimDate) {
-         this.claimDate = claimDate;
+     // Method to parse a yyyy-MM-dd string, throws DateTimeException if it is not a valid date
+     static Date parse(String text) {
+         return parse(text.toCharArray(), 0, text.length());
      }
  
-     public long getCardNumber() {
-         return cardNumber;
+     // Method to parse yyyy-MM-dd from a range of characters without allocating a String on the fast path
+     static Date parse(char[] chars, int start, int end) {
+         if (end - start == 10 && chars[start + 4] == '-' && chars[start + 7] == '-') {
+             int year = digits(chars, start, 4);
+             int month = digits(chars, start + 5, 2);
+             int day = digits(chars, start + 8, 2);
+             if (year >= 0 && month >= 0 && day >= 0) {
+                 return fromEpochDay(LocalDate.of(year, month, day).toEpochDay());
+             }
+         }
+         return fromEpochDay(LocalDate.parse(new String(chars, start, end - start), LENIENT_FORMAT).toEpochDay());
      }
  
-     public Date getExamDate() {
-         return examDate;
+     // Method to convert an epoch day to a Date at the start of that day
+     static Date fromEpochDay(long epochDay) {
+         int slot = (int) (epochDay & (CACHE_SIZE - 1));
+         CachedDay cached = CACHE[slot];
+         if (cached == null || cached.epochDay != epochDay) {
+             long millis = LocalDate.ofEpochDay(epochDay).atStartOfDay(ZONE).toInstant().toEpochMilli();
+             cached = new CachedDay(epochDay, millis);
+             CACHE[slot] = cached;
+         }
+         return new Date(cached.millis);
      }
  
-     public List<String> getDocuments() {
-         return documents;
+     // Method to convert a Date to the epoch day it falls on
+     static long toEpochDay(Date date) {
+         return Instant.ofEpochMilli(date.getTime()).atZone(ZONE).toLocalDate().toEpochDay();
      }
  
-     public double getClaimAmount() {
-         return claimAmount;
+     // Method to append a Date as yyyy-MM-dd
+     static void appendTo(StringBuilder builder, Date date) {
+         FORMAT.formatTo(LocalDate.ofEpochDay(toEpochDay(date)), builder);
      }
  
-     public ClaimStatus getStatus() {
-         return status;
+     static String format(Date date) {
+         StringBuilder builder = new StringBuilder(10);
+         appendTo(builder, date);
+         return builder.toString();
      }
  
-     public ReceiverBankingInfo getReceiverBankingInfo() {
-         return receiverBankingInfo;
+     // Method to read a fixed number of decimal digits, returns -1 if a non-digit is found
+     private static int digits(char[] chars, int start, int length) {
+         int value = 0;
+         for (int i = start; i < start + length; i++) {
+             int digit = chars[i] - '0';
+             if (digit < 0 || digit > 9) {
+                 return -1;
+             }
+             value = value * 10 + digit;
+         }
+         return value;
      }
+ }
  
-     public String getFullName() {
-         return fullName;
+ // Class splitting one comma-separated record into fields without creating intermediate Strings
+ // Field values are converted straight from the character buffer; only text fields become Strings
+ class FieldTokenizer {
+     private static final char DELIMITER = ',';
+     private static final double[] POWERS_OF_TEN = {
+             1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+             1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+ 
+     private char[] chars;
+     private char[] scratch = new char[256]; // reused when tokenizing String lines
+     private int lineStart;
+     private int lineEnd;
+     private int[] starts = new int[16];
+     private int[] ends = new int[16];
+     private int fieldCount;
+ 
+     // Method to tokenize a range of a character buffer; the buffer must not change while fields are read
+     void tokenize(char[] source, int start, int end) {
+         chars = source;
+         lineStart = start;
+         lineEnd = end;
+         fieldCount = 0;
+         int fieldStart = start;
+         for (int i = start; i < end; i++) {
+             if (source[i] == DELIMITER) {
+                 addField(fieldStart, i);
+                 fieldStart = i + 1;
+             }
+         }
+         addField(fieldStart, end);
      }
  
-     // Setters for other attributes
-     public void setCardNumber(long cardNumber) {
-         this.cardNumber = cardNumber;
+     // Method to tokenize a whole line held in a String
+     void tokenize(String line) {
+         if (scratch.length < line.length()) {
+             scratch = new char[Math.max(line.length(), scratch.length * 2)];
+         }
+         line.getChars(0, line.length(), scratch, 0);
+         tokenize(scratch, 0, line.length());
      }
  
-     public void setExamDate(Date examDate) {
-         this.examDate = examDate;
+     private void addField(int start, int end) {
+         if (fieldCount == starts.length) {
+             starts = Arrays.copyOf(starts, fieldCount * 2);
+             ends = Arrays.copyOf(ends, fieldCount * 2);
+         }
+         starts[fieldCount] = start;
+         ends[fieldCount] = end;
+         fieldCount++;
      }
  
-     public void setDocuments(List<String> documents) {
-         this.documents = documents;
+     int fieldCount() {
+         return fieldCount;
      }
  
-     public void setClaimAmount(double claimAmount) {
-         this.claimAmount = claimAmount;
+     String field(int index) {
+         return new String(chars, starts[index], ends[index] - starts[index]);
      }
  
-     public void setStatus(ClaimStatus status) {
-         this.status = status;
+     // Method returning the raw record, used for error messages
+     String line() {
+         return new String(chars, lineStart, lineEnd - lineStart);
      }
  
-     public void setReceiverBankingInfo(ReceiverBankingInfo receiverBankingInfo) {
-         this.receiverBankingInfo = receiverBankingInfo;
+     long longField(int index) {
+         int position = starts[index];
+         int end = ends[index];
+         boolean negative = position < end && chars[position] == '-';
+         if (negative || (position < end && chars[position] == '+')) {
+             position++;
+         }
+         if (position == end) {
+             throw new NumberFormatException("For input string: \"" + field(index) + "\"");
+         }
+         long value = 0;
+         for (; position < end; position++) {
+             int digit = chars[position] - '0';
+             if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10) {
+                 throw new NumberFormatException("For input string: \"" + field(index) + "\"");
+             }
+             value = value * 10 - digit; // accumulate negatively so Long.MIN_VALUE fits
+         }
+         if (!negative && value == Long.MIN_VALUE) {
+             throw new NumberFormatException("For input string: \"" + field(index) + "\"");
+         }
+         return negative ? value : -value;
      }
- }
  
- // Class representing banking information for claim receivers
- class ReceiverBankingInfo {
-     private String bankName;
-     private String accountName;
-     private String accountNumber;
+     int intField(int index) {
+         long value = longField(index);
+         if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+             throw new NumberFormatException("For input string: \"" + field(index) + "\"");
+         }
+         return (int) value;
+     }
  
-     public ReceiverBankingInfo(String bankName, String accountName, String accountNumber) {
-         this.bankName = bankName;
-         this.accountName = accountName;
-         this.accountNumber = accountNumber;
+     // Method to parse a decimal amount; plain decimals with up to 15 significant digits are
+     // converted exactly with one division, anything else falls back to Double.parseDouble
+     double doubleField(int index) {
+         int position = starts[index];
+         int end = ends[index];
+         boolean negative = position < end && chars[position] == '-';
+         if (negative) {
+             position++;
+         }
+         long mantissa = 0;
+         int digits = 0;
+         int fractionDigits = 0;
+         boolean seenPoint = false;
+         for (; position < end; position++) {
+             char c = chars[position];
+             if (c >= '0' && c <= '9') {
+                 mantissa = mantissa * 10 + (c - '0');
+                 digits++;
+                 if (seenPoint) {
+                     fractionDigits++;
+                 }
+             } else if (c == '.' && !seenPoint) {
+                 seenPoint = true;
+             } else {
+                 break;
+             }
+         }
+         if (position != end || digits == 0 || digits > 15 || fractionDigits >= POWERS_OF_TEN.length) {
+             return Double.parseDouble(field(index));
+         }
+         double value = mantissa / POWERS_OF_TEN[fractionDigits];
+         return negative ? -value : value;
      }
  
-     // Getters
-     public String getBankName() {
-         return bankName;
+     Date dateField(int index) {
+         return ClaimDates.parse(chars, starts[index], ends[index]);
      }
  
-     public String getAccountName() {
-         return accountName;
+     // Method to match a field against enum constant names without allocating
+     <E extends Enum<E>> E enumField(int index, E[] values) {
+         int length = ends[index] - starts[index];
+         for (E value : values) {
+             String name = value.name();
+             if (name.length() == length && regionEquals(index, name)) {
+                 return value;
+             }
+         }
+         throw new IllegalArgumentException("No enum constant " + field(index));
      }
  
-     public String getAccountNumber() {
-         return accountNumber;
+     private boolean regionEquals(int index, String text) {
+         for (int i = 0; i < text.length(); i++) {
+             if (chars[starts[index] + i] != text.charAt(i)) {
+                 return false;
+             }
+         }
+         return true;
      }
  }
  
- // Interface defining operations for claim process management
- interface ClaimProcessManager {
-     void addClaim(Claim claim);
-     void updateClaim(String id, Claim updatedClaim);
-     void deleteClaim(String id);
+ // Class reading a text file line by line through one reusable character buffer
+ // Lines are handed to a FieldTokenizer in place instead of being copied into Strings
+ class BufferedLineReader implements Closeable {
+     private static final int BUFFER_SIZE = 64 * 1024;
+ 
+     private final Reader reader;
+     private char[] buffer = new char[BUFFER_SIZE];
+     private int start; // first unread character
+     private int scan; // characters before this index are known not to be line ends
+     private int limit; // end of the characters read so far
+     private boolean endOfInput;
+ 
+     BufferedLineReader(Path path) throws IOException {
+         this.reader = Channels.newReader(FileChannel.open(path, StandardOpenOption.READ), StandardCharsets.UTF_8);
+     }
+ 
+     // Reader for the bytes from start to end of the file, which should be range boundaries from lineAlignedRanges
+     BufferedLineReader(Path path, long start, long end) throws IOException {
+         this.reader = Channels.newReader(new RangeChannel(FileChannel.open(path, StandardOpenOption.READ), start, end),
+                 StandardCharsets.UTF_8);
+     }
+ 
+     // Method to split a file into ranges of about rangeBytes, each starting at the beginning of a line;
+     // returns the boundaries, so range i is [boundaries[i], boundaries[i + 1]). A '\n' byte never occurs
+     // inside a multi-byte UTF-8 character, so no character is split either.
+     static long[] lineAlignedRanges(Path path, long rangeBytes) throws IOException {
+         try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+             long size = channel.size();
+             int count = (int) Math.max(1, (size + rangeBytes - 1) / rangeBytes);
+             long[] boundaries = new long[count + 1];
+             boundaries[count] = size;
+             ByteBuffer probe = ByteBuffer.allocate(4096);
+             for (int i = 1; i < count; i++) {
+                 boundaries[i] = nextLineStart(channel, Math.max(i * rangeBytes, boundaries[i - 1]), size, probe);
+             }
+             return boundaries;
+         }
+     }
+ 
+     // Method to find the first offset at or after position that starts a line
+     static long nextLineStart(FileChannel channel, long position, long size, ByteBuffer probe) throws IOException {
+         long offset = position - 1; // position itself starts a line if the byte before it ends one
+         while (offset < size) {
+             probe.clear();
+             int read = channel.read(probe, offset);
+             if (read <= 0) {
+                 break;
+             }
+             for (int i = 0; i < read; i++) {
+                 if (probe.get(i) == '\n') {
+                     return offset + i + 1;
+                 }
+             }
+             offset += read;
+         }
+         return size;
+     }
+ 
+     // Method to advance to the next line, returns false at end of file
+     boolean next(FieldTokenizer tokenizer) throws IOException {
+         while (true) {
+             for (int i = scan; i < limit; i++) {
+                 if (buffer[i] == '\n') {
+                     tokenizer.tokenize(buffer, start, i > start && buffer[i - 1] == '\r' ? i - 1 : i);
+                     start = i + 1;
+                     scan = start;
+                     return true;
+                 }
+             }
+             scan = limit;
+             if (endOfInput) {
+                 if (start < limit) {
+                     tokenizer.tokenize(buffer, start, buffer[limit - 1] == '\r' ? limit - 1 : limit);
+                     start = limit;
+                     return true;
+                 }
+                 return false;
+             }
+             fill();
+         }
+     }
+ 
+     private void fill() throws IOException {
+         if (start > 0) {
+             System.arraycopy(buffer, start, buffer, 0, limit - start);
+             limit -= start;
+             scan -= start;
+             start = 0;
+         }
+         if (limit == buffer.length) {
+             buffer = Arrays.copyOf(buffer, buffer.length * 2); // a single line longer than the buffer
+         }
+         int read = reader.read(buffer, limit, buffer.length - limit);
+         if (read < 0) {
+             endOfInput = true;
+         } else {
+             limit += read;
+         }
+     }
+ 
+     @Override
+     public void close() throws IOException {
+         reader.close();
+     }
+ 
+     // Channel reading one byte range of a file with positional reads
+     private static final class RangeChannel implements ReadableByteChannel {
+         private final FileChannel channel;
+         private final long end;
+         private long position;
+ 
+         RangeChannel(FileChannel channel, long start, long end) {
+             this.channel = channel;
+             this.position = start;
+             this.end = end;
+         }
+ 
+         @Override
+         public int read(ByteBuffer target) throws IOException {
+             if (position >= end) {
+                 return -1;
+             }
+             int limit = target.limit();
+             target.limit(target.position() + (int) Math.min(target.remaining(), end - position));
+             try {
+                 int read = channel.read(target, position);
+                 if (read > 0) {
+                     position += read;
+                 }
+                 return read;
+             } finally {
+                 target.limit(limit);
+             }
+         }
+ 
+         @Override
+         public boolean isOpen() {
+             return channel.isOpen();
+         }
+ 
+         @Override
+         public void close() throws IOException {
+             channel.close();
+         }
+     }
+ }
+ 
+ // Class holding the outcome of one streaming parse
+ class ParseStats {
+     // Throughput the streaming parser is expected to sustain on claims.txt on a developer laptop
+     static final long TARGET_RECORDS_PER_SECOND = 500_000;
+ 
+     private final long records;
+     private final long rejected;
+     private final long elapsedNanos;
+ 
+     public ParseStats(long records, long rejected, long elapsedNanos) {
+         this.records = records;
+         this.rejected = rejected;
+         this.elapsedNanos = elapsedNanos;
+     }
+ 
+     public long getRecords() {
+         return records;
+     }
+ 
+     public long getRejected() {
+         return rejected;
+     }
+ 
+     public long getElapsedNanos() {
+         return elapsedNanos;
+     }
+ 
+     public double recordsPerSecond() {
+         return elapsedNanos == 0 ? 0 : (records + rejected) * 1e9 / elapsedNanos;
+     }
+ 
+     public boolean meetsTarget() {
+         return recordsPerSecond() >= TARGET_RECORDS_PER_SECOND;
+     }
+ 
+     @Override
+     public String toString() {
+         return String.format("%d records (%d rejected) in %.1f ms, %.0f records/sec (target %d)",
+                 records, rejected, elapsedNanos / 1e6, recordsPerSecond(), TARGET_RECORDS_PER_SECOND);
+     }
+ }
+ 
+ // Class holding the process-wide metrics: counters, and histograms of latencies and sizes with percentiles
+ // Metrics are on by default and switched off with -Dclaims.metrics=false; every recording method tests
+ // the constant ENABLED first, so disabled metrics cost a branch the JIT removes and not even a clock read.
+ final class ClaimMetrics {
+     static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("claims.metrics"));
+     static final String METRICS_FILE = System.getProperty("claims.metrics.file", "metrics.log");
+     static final long DUMP_INTERVAL_SECONDS = Long.getLong("claims.metrics.interval", 60);
+ 
+     // Registered metrics by name, kept sorted so every dump lists them in the same order
+     private static final Map<String, Counter> COUNTERS = new ConcurrentSkipListMap<>();
+     private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentSkipListMap<>();
+     private static ScheduledExecutorService dumper;
+ 
+     // Metrics shared by the menu's repository and the concurrent service
+     static final Histogram LOOKUP_CLAIM_BY_ID = timer("lookup.claim_by_id");
+     static final Histogram LOOKUP_CLAIMS_BY_NAME = timer("lookup.claims_by_name");
+     static final Histogram LOOKUP_CUSTOMERS_BY_NAME = timer("lookup.customers_by_name");
+     static final Histogram LOOKUP_SEARCH = timer("lookup.search");
+     static final Histogram LOOKUP_RANGE = timer("lookup.range");
+     static final Histogram REPORT_PAGE = timer("report.page");
+     static final Histogram REPORT_EXPORT = timer("report.export");
+     static final Histogram REPORT_ANALYTICS = timer("report.analytics.aggregate");
+ 
+     private ClaimMetrics() {
+     }
+ 
+     // Method to get or register the counter with the given name
+     static Counter counter(String name) {
+         return COUNTERS.computeIfAbsent(name, Counter::new);
+     }
+ 
+     // Method to get or register a timer: a histogram of nanoseconds, printed in milliseconds
+     static Histogram timer(String name) {
+         return HISTOGRAMS.computeIfAbsent(name, key -> new Histogram(key, "ms", 1e6));
+     }
+ 
+     // Method to get or register a histogram of plain values such as sizes or rates
+     static Histogram histogram(String name) {
+         return HISTOGRAMS.computeIfAbsent(name, key -> new Histogram(key, "", 1));
+     }
+ 
+     // Method to start timing an operation, to be passed to Histogram.stop
+     static long start() {
+         return ENABLED ? System.nanoTime() : 0;
+     }
+ 
+     // A monotonically increasing count
+     static final class Counter {
+         private final String name;
+         private final LongAdder count = new LongAdder();
+ 
+         private Counter(String name) {
+             this.name = name;
+         }
+ 
+         public void increment() {
+             if (ENABLED) {
+                 count.increment();
+             }
+         }
+ 
+         public void add(long amount) {
+             if (ENABLED) {
+                 count.add(amount);
+             }
+         }
+ 
+         public String getName() {
+             return name;
+         }
+ 
+         public long getCount() {
+             return count.sum();
+         }
+     }
+ 
+     // A histogram with log-linear buckets: values below 8 get a bucket each, above that every power of
+     // two is split into 8 buckets, so any percentile is within 12.5% of the true value whatever the range.
+     // Recording is one array increment and two adders, without locks or allocation.
+     static final class Histogram {
+         private static final int SUB_BUCKETS = 8;
+         private static final int BUCKETS = (64 - 3) * SUB_BUCKETS;
+ 
+         private final String name;
+         private final String unit;
+         private final double scale; // divisor from recorded values to printed ones
+         private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+         private final LongAdder sum = new LongAdder();
+         private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+ 
+         private Histogram(String name, String unit, double scale) {
+             this.name = name;
+             this.unit = unit;
+             this.scale = scale;
+         }
+ 
+         // Method to record the time since a ClaimMetrics.start() call
+         public void stop(long startNanos) {
+             if (ENABLED) {
+                 record(System.nanoTime() - startNanos);
+             }
+         }
+ 
+         public void record(long value) {
+             if (ENABLED) {
+                 value = Math.max(value, 0);
+                 buckets.incrementAndGet(bucketOf(value));
+                 sum.add(value);
+                 max.accumulate(value);
+             }
+         }
+ 
+         static int bucketOf(long value) {
+             if (value < SUB_BUCKETS) {
+                 return (int) value;
+             }
+             int bits = 64 - Long.numberOfLeadingZeros(value);
+             return ((bits - 3) << 3) + (int) ((value >>> (bits - 4)) & (SUB_BUCKETS - 1));
+         }
+ 
+         // Largest value that falls in the given bucket
+         static long upperBound(int bucket) {
+             if (bucket < SUB_BUCKETS) {
+                 return bucket;
+             }
+             int shift = (bucket >>> 3) - 1;
+             long next = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1)) + 1) << shift;
+             return next < 0 ? Long.MAX_VALUE : next - 1;
+         }
+ 
+         public String getName() {
+             return name;
+         }
+ 
+         public long getCount() {
+             long count = 0;
+             for (int i = 0; i < BUCKETS; i++) {
+                 count += buckets.get(i);
+             }
+             return count;
+         }
+ 
+         // Method to take a consistent enough view of the histogram for printing
+         public Snapshot snapshot() {
+             long[] counts = new long[BUCKETS];
+             long count = 0;
+             for (int i = 0; i < BUCKETS; i++) {
+                 counts[i] = buckets.get(i);
+                 count += counts[i];
+             }
+             return new Snapshot(counts, count, sum.sum(), max.get());
+         }
+ 
+         // Counts copied from a histogram at one moment
+         final class Snapshot {
+             private final long[] counts;
+             private final long count;
+             private final long sum;
+             private final long max;
+ 
+             private Snapshot(long[] counts, long count, long sum, long max) {
+                 this.counts = counts;
+                 this.count = count;
+                 this.sum = sum;
+                 this.max = max;
+             }
+ 
+             public long getCount() {
+                 return count;
+             }
+ 
+             public double getMean() {
+                 return count == 0 ? 0 : sum / (double) count / scale;
+             }
+ 
+             public double getMax() {
+                 return max / scale;
+             }
+ 
+             // Method to get the value below which the given fraction of the recorded values fall
+             public double getPercentile(double fraction) {
+                 if (count == 0) {
+                     return 0;
+                 }
+                 long rank = Math.max(1, (long) Math.ceil(fraction * count));
+                 long seen = 0;
+                 for (int i = 0; i < BUCKETS; i++) {
+                     seen += counts[i];
+                     if (seen >= rank) {
+                         return Math.min(upperBound(i), max) / scale;
+                     }
+                 }
+                 return max / scale;
+             }
+         }
+     }
+ 
+     // Method to print every metric that has been recorded at least once
+     static void printTo(PrintWriter out) {
+         if (!ENABLED) {
+             out.println("Metrics are disabled (-Dclaims.metrics=false).");
+             return;
+         }
+         out.printf("%-32s %12s%n", "Counter", "Count");
+         for (Counter counter : COUNTERS.values()) {
+             out.printf("%-32s %12d%n", counter.getName(), counter.getCount());
+         }
+         out.println();
+         out.printf("%-32s %-4s %10s %10s %10s %10s %10s %10s%n", "Histogram", "Unit", "Count", "Mean", "p50", "p90", "p99", "Max");
+         for (Histogram histogram : HISTOGRAMS.values()) {
+             Histogram.Snapshot snapshot = histogram.snapshot();
+             if (snapshot.getCount() == 0) {
+                 continue;
+             }
+             out.printf("%-32s %-4s %10d %10.3f %10.3f %10.3f %10.3f %10.3f%n", histogram.getName(), histogram.unit,
+                     snapshot.getCount(), snapshot.getMean(), snapshot.getPercentile(0.50),
+                     snapshot.getPercentile(0.90), snapshot.getPercentile(0.99), snapshot.getMax());
+         }
+         out.flush();
+     }
+ 
+     // Method to print the metrics on the console
+     static void print() {
+         printTo(new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+     }
+ 
+     // Method to append a timestamped copy of the metrics to the given file
+     static void dump(String fileName) {
+         try (PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                 new FileOutputStream(fileName, true), StandardCharsets.UTF_8)))) {
+             out.println("=== " + LocalDateTime.now().withNano(0));
+             printTo(out);
+             out.println();
+         } catch (IOException e) {
+             e.printStackTrace();
+         }
+     }
+ 
+     // Method to dump the metrics to METRICS_FILE every DUMP_INTERVAL_SECONDS, and once more at exit
+     static synchronized void startPeriodicDump() {
+         if (!ENABLED || dumper != null || DUMP_INTERVAL_SECONDS <= 0) {
+             return;
+         }
+         dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+             Thread thread = new Thread(runnable, "claim-metrics");
+             thread.setDaemon(true);
+             return thread;
+         });
+         dumper.scheduleWithFixedDelay(() -> dump(METRICS_FILE), DUMP_INTERVAL_SECONDS, DUMP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+         Runtime.getRuntime().addShutdownHook(new Thread(() -> dump(METRICS_FILE)));
+     }
+ }
+ 
+ // Class responsible for the append-only claim journal (write-ahead log)
+ // Mutations are appended to claims.log instead of rewriting claims.txt and customers.txt.
+ // They are queued per record and flushed every 50 ms as one write and one fsync, so a burst of
+ // edits to the same claim becomes a single entry, and a compactor periodically folds the log
+ // back into a fresh claims.txt/customers.txt snapshot.
+ class ClaimJournal {
+     static final String LOG_FILE = "claims.log";
+     static final String SEALED_LOG_FILE = "claims.log.sealed"; // log segment being folded by the compactor
+     static final String CHECKPOINT_FILE = "claims.checkpoint"; // last sequence number contained in the snapshot
+     private static final long FLUSH_INTERVAL_MS = 50;
+     private static final int MAX_PENDING_ENTRIES = 10_000; // beyond this the caller flushes itself
+     private static final long COMPACTION_CHECK_INTERVAL_MS = 10_000;
+     private static final long COMPACTION_MAX_AGE_MS = 5 * 60_000;
+     private static final int COMPACTION_THRESHOLD = 1_000; // entries in the active log that force a compaction
+ 
+     // Journal entry types
+     private static final char CLAIM_ADDED = 'A';
+     private static final char CLAIM_UPDATED = 'U';
+     private static final char CLAIM_DELETED = 'D';
+     private static final char CUSTOMER_ADDED = 'C';
+     private static final char CUSTOMER_REMOVED = 'R';
+ 
+     private static final ClaimMetrics.Histogram LOAD = ClaimMetrics.timer("load.total");
+     private static final ClaimMetrics.Histogram FLUSH = ClaimMetrics.timer("persist.journal.flush");
+     private static final ClaimMetrics.Histogram FLUSH_ENTRIES = ClaimMetrics.histogram("persist.journal.flush_entries");
+     private static final ClaimMetrics.Histogram COMPACT = ClaimMetrics.timer("persist.journal.compact");
+ 
+     private final ScheduledExecutorService scheduler;
+     // Claims changed since the last flush, by id; customer entries are kept in order
+     private final Map<String, PendingEntry> pendingClaims = new LinkedHashMap<>();
+     private final List<PendingEntry> pendingCustomers = new ArrayList<>();
+     private FileChannel channel;
+     private long nextSequence;
+     private int activeEntries;
+     private long lastCompaction = System.currentTimeMillis();
+     private boolean compacting;
+     private boolean dropped; // a record could not be formatted since flushAndWait last reported
+ 
+     private ClaimJournal(long nextSequence, int activeEntries) throws IOException {
+         this.nextSequence = nextSequence;
+         this.activeEntries = activeEntries;
+         this.channel = openLog();
+         this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+             Thread thread = new Thread(runnable, "claim-journal");
+             thread.setDaemon(true);
+             return thread;
+         });
+         scheduler.scheduleWithFixedDelay(this::flushInBackground, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+         scheduler.scheduleWithFixedDelay(this::compactIfDue, COMPACTION_CHECK_INTERVAL_MS, COMPACTION_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+     }
+ 
+     // Method to load the last snapshot, replay the journal over it and open the journal for appending
+     public static ClaimJournal open(List<Customer> customers, List<Claim> claims) {
+         long start = ClaimMetrics.start();
+         finishCompaction();
+         // The snapshot of the last clean shutdown stands in for both text files while they are unchanged
+         long checkpoint = ClaimSnapshot.load(customers, claims);
+         boolean fromSnapshot = checkpoint >= 0;
+         if (!fromSnapshot) {
+             FileManager.readCustomersFromFile(customers);
+             FileManager.readClaimsFromFile(claims);
+             checkpoint = readCheckpoint();
+         }
+         long lastSequence = checkpoint;
+         int activeEntries = countEntries(LOG_FILE);
+         // Snapshot ids are already unique, so its claims are only keyed by id when there is something to replay
+         if (!fromSnapshot || lastSequence(SEALED_LOG_FILE) > checkpoint || lastSequence(LOG_FILE) > checkpoint) {
+             Map<String, Claim> claimsById = new LinkedHashMap<>();
+             for (Claim claim : claims) {
+                 claimsById.put(claim.getId(), claim);
+             }
+             lastSequence = Math.max(lastSequence, replay(SEALED_LOG_FILE, checkpoint, claimsById, customers));
+             lastSequence = Math.max(lastSequence, replay(LOG_FILE, checkpoint, claimsById, customers));
+             claims.clear();
+             claims.addAll(claimsById.values());
+         }
+         LOAD.stop(start);
+         try {
+             return new ClaimJournal(lastSequence + 1, activeEntries);
+         } catch (IOException e) {
+             throw new UncheckedIOException("Unable to open claim journal", e);
+         }
+     }
+ 
+     // A mutation waiting for the next flush; added and updated records are formatted when written
+     private static final class PendingEntry {
+         final char type;
+         final Object record; // Claim, Customer, or the already formatted payload
+ 
+         PendingEntry(char type, Object record) {
+             this.type = type;
+             this.record = record;
+         }
+     }
+ 
+     // Methods to record mutations; they reach the log with the next flush
+     public void logClaimAdded(Claim claim) {
+         queueClaim(claim.getId(), CLAIM_ADDED, claim);
+     }
+ 
+     // Also used for claims changed in place through their setters
+     public void logClaimUpdated(Claim claim) {
+         queueClaim(claim.getId(), CLAIM_UPDATED, claim);
+     }
+ 
+     public void logClaimDeleted(String id) {
+         queueClaim(id, CLAIM_DELETED, id);
+     }
+ 
+     public synchronized void logCustomerAdded(Customer customer) {
+         pendingCustomers.add(new PendingEntry(CUSTOMER_ADDED, customer));
+         flushIfFull();
+     }
+ 
+     // The payload must match the customer as written, so it is captured now
+     public synchronized void logCustomerRemoved(Customer customer) {
+         pendingCustomers.add(new PendingEntry(CUSTOMER_REMOVED, FileManager.formatCustomer(customer)));
+         flushIfFull();
+     }
+ 
+     // Method to coalesce a claim mutation with any pending one for the same claim;
+     // an update to a claim added since the last flush is still written as an add
+     private synchronized void queueClaim(String id, char type, Object record) {
+         PendingEntry previous = pendingClaims.get(id);
+         if (previous != null && previous.type == CLAIM_ADDED && type == CLAIM_UPDATED) {
+             type = CLAIM_ADDED;
+         }
+         pendingClaims.put(id, new PendingEntry(type, record));
+         flushIfFull();
+     }
+ 
+     // Method bounding the queue: when the background thread falls behind, writers wait for the disk
+     private void flushIfFull() {
+         if (pendingClaims.size() + pendingCustomers.size() >= MAX_PENDING_ENTRIES) {
+             flush();
+         }
+     }
+ 
+     // Method to write everything queued so far and wait until it is on disk, including any compaction
+     // already running on the background thread; returns false if some of it could not be written
+     public boolean flushAndWait() {
+         try {
+             return scheduler.submit(this::flushAndReport).get();
+         } catch (RejectedExecutionException e) {
+             return flushAndReport(); // already closed
+         } catch (ExecutionException e) {
+             e.getCause().printStackTrace();
+             return false;
+         } catch (InterruptedException e) {
+             Thread.currentThread().interrupt();
+             return false;
+         }
+     }
+ 
+     // Method to flush and report whether everything queued since the last report reached the disk
+     private synchronized boolean flushAndReport() {
+         boolean complete = flush() && !dropped;
+         dropped = false;
+         return complete;
+     }
+ 
+     // Method run by the background thread; a failed flush must not cancel the ones scheduled after it
+     private void flushInBackground() {
+         try {
+             flush();
+         } catch (RuntimeException e) {
+             e.printStackTrace();
+         }
+     }
+ 
+     // Method to write every pending mutation with a single write and fsync
+     // Updates of claims that are no longer dirty, i.e. already written, are skipped. The entries stay queued
+     // until they are on disk, so a failed write is retried by the next flush; a record that cannot be
+     // formatted can never be written and is dropped, so it does not hold back the others.
+     // Returns false if the write failed and the entries are still queued.
+     public synchronized boolean flush() {
+         if (pendingClaims.isEmpty() && pendingCustomers.isEmpty()) {
+             return true;
+         }
+         long start = ClaimMetrics.start();
+         int queued = pendingClaims.size() + pendingCustomers.size();
+         StringBuilder entries = new StringBuilder((pendingClaims.size() + pendingCustomers.size()) * 160);
+         List<Claim> writtenClaims = new ArrayList<>(pendingClaims.size());
+         List<Customer> writtenCustomers = new ArrayList<>();
+         long sequence = nextSequence;
+         for (Iterator<PendingEntry> iterator = pendingCustomers.iterator(); iterator.hasNext(); ) {
+             PendingEntry entry = iterator.next();
+             String payload;
+             try {
+                 payload = entry.record instanceof Customer ? FileManager.formatCustomer((Customer) entry.record) : (String) entry.record;
+             } catch (RuntimeException e) {
+                 e.printStackTrace();
+                 iterator.remove();
+                 dropped = true;
+                 continue;
+             }
+             if (entry.record instanceof Customer) {
+                 writtenCustomers.add((Customer) entry.record);
+             }
+             entries.append(formatEntry(sequence++, entry.type, payload));
+         }
+         for (Iterator<PendingEntry> iterator = pendingClaims.values().iterator(); iterator.hasNext(); ) {
+             PendingEntry entry = iterator.next();
+             String payload;
+             if (entry.type == CLAIM_DELETED) {
+                 payload = (String) entry.record;
+             } else {
+                 Claim claim = (Claim) entry.record;
+                 if (entry.type == CLAIM_UPDATED && !claim.isDirty()) {
+                     continue;
+                 }
+                 try {
+                     payload = FileManager.formatClaim(claim);
+                 } catch (RuntimeException e) {
+                     e.printStackTrace();
+                     iterator.remove();
+                     dropped = true;
+                     continue;
+                 }
+                 writtenClaims.add(claim);
+             }
+             entries.append(formatEntry(sequence++, entry.type, payload));
+         }
+         try {
+             long size = channel.size();
+             try {
+                 write(entries.toString());
+                 channel.force(false);
+             } catch (IOException e) {
+                 // Take back a partial write so the retry does not leave entries in the log twice
+                 channel.truncate(size);
+                 throw e;
+             }
+         } catch (IOException e) {
+             e.printStackTrace();
+             return false;
+         }
+         pendingClaims.clear();
+         pendingCustomers.clear();
+         activeEntries += (int) (sequence - nextSequence);
+         nextSequence = sequence;
+         writtenClaims.forEach(Claim::markClean);
+         writtenCustomers.forEach(Customer::markClean);
+         FLUSH.stop(start);
+         FLUSH_ENTRIES.record(queued);
+         return true;
+     }
+ 
+     // Method to append a whole batch of new customers and claims with a single write and fsync
+     public synchronized void logBatch(List<Customer> customers, List<Claim> claims) {
+         flush();
+         StringBuilder entries = new StringBuilder((customers.size() + claims.size()) * 160);
+         long sequence = nextSequence;
+         for (Customer customer : customers) {
+             entries.append(formatEntry(sequence++, CUSTOMER_ADDED, FileManager.formatCustomer(customer)));
+         }
+         for (Claim claim : claims) {
+             entries.append(formatEntry(sequence++, CLAIM_ADDED, FileManager.formatClaim(claim)));
+         }
+         try {
+             write(entries.toString());
+             channel.force(false);
+             activeEntries += (int) (sequence - nextSequence);
+             nextSequence = sequence;
+         } catch (IOException e) {
+             e.printStackTrace();
+         }
+     }
+ 
+     private void write(String entries) throws IOException {
+         ByteBuffer buffer = ByteBuffer.wrap(entries.getBytes(StandardCharsets.UTF_8));
+         while (buffer.hasRemaining()) {
+             channel.write(buffer);
+         }
+     }
+ 
+     // Method run by the background compactor to decide whether the log should be folded
+     private void compactIfDue() {
+         boolean due;
+         synchronized (this) {
+             long age = System.currentTimeMillis() - lastCompaction;
+             due = activeEntries >= COMPACTION_THRESHOLD || (activeEntries > 0 && age >= COMPACTION_MAX_AGE_MS);
+         }
+         if (due) {
+             compact();
+         }
+     }
+ 
+     // Method to fold the journal into a new claims.txt/customers.txt snapshot
+     // The new files are written as generation files named after the last sequence they contain, and the
+     // checkpoint is the commit point: once it names that sequence, the next open finishes the switch even if
+     // the process stopped before both files were renamed into place.
+     public void compact() {
+         long start;
+         synchronized (this) {
+             if (compacting) {
+                 return;
+             }
+             compacting = true;
+             start = ClaimMetrics.start();
+             // Seal the active log and start a new one so appends can continue during compaction
+             try {
+                 if (!Files.exists(Paths.get(SEALED_LOG_FILE))) {
+                     flush();
+                     channel.force(false);
+                     channel.close();
+                     Files.move(Paths.get(LOG_FILE), Paths.get(SEALED_LOG_FILE), StandardCopyOption.ATOMIC_MOVE);
+                     channel = openLog();
+                     activeEntries = 0;
+                 }
+             } catch (IOException e) {
+                 compacting = false;
+                 e.printStackTrace();
+                 return;
+             }
+         }
+         try {
+             finishCompaction();
+             // Rebuild the state contained in the snapshot plus the sealed segment, independently of the menu's lists
+             List<Customer> customers = new ArrayList<>();
+             List<Claim> claims = new ArrayList<>();
+             if (Files.exists(Paths.get(FileManager.CUSTOMERS_FILE))) {
+                 FileManager.readCustomersFromFile(customers);
+             }
+             if (Files.exists(Paths.get(FileManager.CLAIMS_FILE))) {
+                 FileManager.readClaimsFromFile(claims);
+             }
+             long checkpoint = readCheckpoint();
+             Map<String, Claim> claimsById = new LinkedHashMap<>();
+             for (Claim claim : claims) {
+                 claimsById.put(claim.getId(), claim);
+             }
+             long lastSequence = Math.max(checkpoint, replay(SEALED_LOG_FILE, checkpoint, claimsById, customers));
+ 
+             // The sealed log is only deleted once both files and the checkpoint are safely replaced
+             FileManager.saveClaims(claimsById.values(), generationFile(FileManager.CLAIMS_FILE, lastSequence));
+             FileManager.saveCustomers(customers, generationFile(FileManager.CUSTOMERS_FILE, lastSequence));
+             FileManager.writeAtomically(CHECKPOINT_FILE, writer -> {
+                 writer.write(Long.toString(lastSequence));
+                 writer.newLine();
+             });
+             finishCompaction();
+             Files.deleteIfExists(Paths.get(SEALED_LOG_FILE));
+             COMPACT.stop(start);
+         } catch (IOException e) {
+             e.printStackTrace();
+         } finally {
+             synchronized (this) {
+                 compacting = false;
+                 lastCompaction = System.currentTimeMillis();
+             }
+         }
+     }
+ 
+     // Method to move the generation files of the checkpointed compaction over the text files and delete those
+     // of compactions that stopped before their checkpoint was written; later generations may belong to a
+     // compaction still running, so they are left alone
+     private static void finishCompaction() {
+         long checkpoint = readCheckpoint();
+         for (String fileName : new String[]{FileManager.CLAIMS_FILE, FileManager.CUSTOMERS_FILE}) {
+             Path target = Paths.get(fileName).toAbsolutePath();
+             try (DirectoryStream<Path> generations = Files.newDirectoryStream(target.getParent(), target.getFileName() + ".*")) {
+                 for (Path generation : generations) {
+                     long sequence = generationOf(generation, target);
+                     if (sequence == checkpoint) {
+                         Files.move(generation, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                         FileManager.syncDirectory(target.getParent());
+                     } else if (sequence >= 0 && sequence < checkpoint) {
+                         Files.deleteIfExists(generation);
+                     }
+                 }
+             } catch (IOException e) {
+                 e.printStackTrace();
+             }
+         }
+     }
+ 
+     private static String generationFile(String fileName, long sequence) {
+         return fileName + "." + sequence;
+     }
+ 
+     // Method returning the sequence of a generation file of target, or -1 for other files such as target.tmp
+     private static long generationOf(Path file, Path target) {
+         String suffix = file.getFileName().toString().substring(target.getFileName().toString().length() + 1);
+         for (int i = 0; i < suffix.length(); i++) {
+             if (suffix.charAt(i) < '0' || suffix.charAt(i) > '9') {
+                 return -1;
+             }
+         }
+         return suffix.isEmpty() || suffix.length() > 18 ? -1 : Long.parseLong(suffix);
+     }
+ 
+     // Method returning the sequence of the last entry on disk without loading the claim book, so copies of the
+     // book can tell whether it changed since they were made
+     static long currentSequence() {
+         return Math.max(readCheckpoint(), Math.max(lastSequence(SEALED_LOG_FILE), lastSequence(LOG_FILE)));
+     }
+ 
+     // Sequence number of the last entry handed to the log
+     public synchronized long getLastSequence() {
+         return nextSequence - 1;
+     }
+ 
+     // Method to write pending entries and stop the background threads; later calls do nothing
+     public void close() {
+         scheduler.shutdown();
+         try {
+             scheduler.awaitTermination(1, TimeUnit.MINUTES);
+         } catch (InterruptedException e) {
+             Thread.currentThread().interrupt();
+         }
+         synchronized (this) {
+             if (!channel.isOpen()) {
+                 return;
+             }
+             flush();
+             try {
+                 channel.force(false);
+                 channel.close();
+             } catch (IOException e) {
+                 e.printStackTrace();
+             }
+         }
+     }
+ 
+     private static FileChannel openLog() throws IOException {
+         return FileChannel.open(Paths.get(LOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+     }
+ 
+     // Entry format: sequence,type,crc32,payload
+     private static String formatEntry(long sequence, char type, String payload) {
+         String body = sequence + "," + type + "," + payload;
+         CRC32 crc = new CRC32();
+         crc.update(body.getBytes(StandardCharsets.UTF_8));
+         return Long.toHexString(crc.getValue()) + "," + body + "\n";
+     }
+ 
+     // Method to replay a log file; entries at or below the checkpoint are already in the snapshot
+     private static long replay(String fileName, long checkpoint, Map<String, Claim> claimsById, List<Customer> customers) {
+         Path path = Paths.get(fileName);
+         long lastSequence = checkpoint;
+         if (!Files.exists(path)) {
+             return lastSequence;
+         }
+         try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+             String line;
+             while ((line = reader.readLine()) != null) {
+                 int crcEnd = line.indexOf(',');
+                 if (crcEnd < 0) {
+                     continue;
+                 }
+                 String body = line.substring(crcEnd + 1);
+                 CRC32 crc = new CRC32();
+                 crc.update(body.getBytes(StandardCharsets.UTF_8));
+                 if (!Long.toHexString(crc.getValue()).equals(line.substring(0, crcEnd))) {
+                     System.out.println("Skipping corrupt journal entry: " + line); // Debug output, usually a torn last write
+                     continue;
+                 }
+                 int sequenceEnd = body.indexOf(',');
+                 long sequence = Long.parseLong(body.substring(0, sequenceEnd));
+                 char type = body.charAt(sequenceEnd + 1);
+                 String payload = body.substring(sequenceEnd + 3);
+                 if (sequence <= checkpoint) {
+                     continue;
+                 }
+                 lastSequence = Math.max(lastSequence, sequence);
+                 apply(type, payload, claimsById, customers);
+             }
+         } catch (IOException e) {
+             e.printStackTrace();
+         }
+         return lastSequence;
+     }
+ 
+     private static void apply(char type, String payload, Map<String, Claim> claimsById, List<Customer> customers) {
+         switch (type) {
+             case CLAIM_ADDED:
+             case CLAIM_UPDATED:
+                 Claim claim = FileManager.parseClaim(payload);
+                 if (claim != null) {
+                     claimsById.put(claim.getId(), claim);
+                 }
+                 break;
+             case CLAIM_DELETED:
+                 claimsById.remove(payload);
+                 break;
+             case CUSTOMER_ADDED:
+                 Customer customer = FileManager.parseCustomer(payload);
+                 if (customer != null) {
+                     customers.add(customer);
+                 }
+                 break;
+             case CUSTOMER_REMOVED:
+                 Iterator<Customer> customerIterator = customers.iterator();
+                 while (customerIterator.hasNext()) {
+                     if (FileManager.formatCustomer(customerIterator.next()).equals(payload)) {
+                         customerIterator.remove();
+                         break;
+                     }
+                 }
+                 break;
+             default:
+                 System.out.println("Unknown journal entry type: " + type); // Debug output
+         }
+     }
+ 
+     // Method to find the highest sequence number in a log file without checking or applying its entries
+     private static long lastSequence(String fileName) {
+         Path path = Paths.get(fileName);
+         if (!Files.exists(path)) {
+             return 0;
+         }
+         long lastSequence = 0;
+         try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+             String line;
+             while ((line = reader.readLine()) != null) {
+                 int sequenceStart = line.indexOf(',') + 1;
+                 int sequenceEnd = line.indexOf(',', sequenceStart);
+                 if (sequenceStart > 0 && sequenceEnd > 0) {
+                     try {
+                         lastSequence = Math.max(lastSequence, Long.parseLong(line.substring(sequenceStart, sequenceEnd)));
+                     } catch (NumberFormatException e) {
+                         // Torn entry, replay skips it as well
+                     }
+                 }
+             }
+         } catch (IOException e) {
+             e.printStackTrace();
+         }
+         return lastSequence;
+     }
+ 
+     private static int countEntries(String fileName) {
+         Path path = Paths.get(fileName);
+         if (!Files.exists(path)) {
+             return 0;
+         }
+         try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+             int count = 0;
+             while (reader.readLine() != null) {
+                 count++;
+             }
+             return count;
+         } catch (IOException e) {
+             e.printStackTrace();
+             return 0;
+         }
+     }
+ 
+     private static long readCheckpoint() {
+         Path path = Paths.get(CHECKPOINT_FILE);
+         if (!Files.exists(path)) {
+             return 0;
+         }
+         try {
+             return Long.parseLong(new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim());
+         } catch (IOException | NumberFormatException e) {
+             e.printStackTrace();
+             return 0;
+         }
+     }
+ }
+ 
+ // Class keeping a binary image of every customer and claim, written on clean shutdown so the next start
+ // does not have to parse customers.txt and claims.txt. It is only used while both text files are exactly
+ // as they were when it was written (a compaction or --generate replaces them), and journal entries after
+ // its sequence number are replayed on top as usual.
+ // Claim documents are stored as codes into a table of distinct names and stay encoded until they are read.
+ final class ClaimSnapshot {
+     static final String SNAPSHOT_FILE = "claims.snapshot";
+     private static final int MAGIC = 0x434C4D53; // "CLMS"
+     private static final int VERSION = 1;
+     private static final int HEADER_SIZE = 48;
+     private static final int NO_DATE = Integer.MIN_VALUE;
+     private static final ClaimStatus[] CLAIM_STATUSES = ClaimStatus.values();
+ 
+     private static final ClaimMetrics.Histogram LOAD = ClaimMetrics.timer("load.snapshot");
+     private static final ClaimMetrics.Histogram SAVE = ClaimMetrics.timer("persist.snapshot");
+ 
+     private ClaimSnapshot() {
+     }
+ 
+     // Method to write the snapshot unless the current one already holds this state, reporting failures;
+     // the old snapshot is kept if it cannot be replaced
+     static void save(Collection<Customer> customers, Collection<Claim> claims, long sequence) {
+         try {
+             if (currentSequence() == sequence) {
+                 return;
+             }
+             write(customers, claims, sequence);
+         } catch (IOException e) {
+             e.printStackTrace();
+         }
+     }
+ 
+     // Method to write the snapshot of the given state, which must contain every journal entry up to sequence
+     // Layout: magic, version, sequence, size and modification time of customers.txt and claims.txt,
+     // customers, claims with their document codes, the document name table, magic
+     static void write(Collection<Customer> customers, Collection<Claim> claims, long sequence) throws IOException {
+         long start = ClaimMetrics.start();
+         FileManager.writeBinaryAtomically(SNAPSHOT_FILE, out -> {
+             out.writeInt(MAGIC);
+             out.writeInt(VERSION);
+             out.writeLong(sequence);
+             writeStamp(out, FileManager.CUSTOMERS_FILE);
+             writeStamp(out, FileManager.CLAIMS_FILE);
+ 
+             out.writeInt(customers.size());
+             for (Customer customer : customers) {
+                 writeString(out, customer.getFullName());
+                 out.writeInt(customer.getAge());
+                 writeString(out, customer.getGender());
+                 writeString(out, customer.getAddress());
+                 writeString(out, customer.getPhoneNumber());
+             }
+ 
+             StringDictionary documentNames = new StringDictionary();
+             out.writeInt(claims.size());
+             for (Claim claim : claims) {
+                 ReceiverBankingInfo bankingInfo = claim.getReceiverBankingInfo();
+                 writeString(out, claim.getId());
+                 out.writeLong(claim.getCardNumber());
+                 out.writeInt(toDay(claim.getClaimDate()));
+                 out.writeInt(toDay(claim.getExamDate()));
+                 out.writeDouble(claim.getClaimAmount());
+                 out.writeByte(claim.getStatus().ordinal());
+                 writeString(out, bankingInfo.getBankName());
+                 writeString(out, bankingInfo.getAccountName());
+                 writeString(out, bankingInfo.getAccountNumber());
+                 writeString(out, claim.getFullName());
+                 List<String> documents = claim.getDocuments();
+                 String documentPrefix = CompactClaimTable.documentPrefix(claim.getId(), claim.getCardNumber());
+                 out.writeInt(documents.size());
+                 for (String document : documents) {
+                     // Like CompactClaimTable, -(c + 1) stands for the claim's ClaimId_CardNumber_ prefix and name c
+                     out.writeInt(document.startsWith(documentPrefix)
+                             ? -documentNames.code(document.substring(documentPrefix.length())) - 1
+                             : documentNames.code(document));
+                 }
+             }
+ 
+             out.writeInt(documentNames.size());
+             for (int code = 0; code < documentNames.size(); code++) {
+                 writeString(out, documentNames.get(code));
+             }
+             out.writeInt(MAGIC);
+         });
+         SAVE.stop(start);
+     }
+ 
+     // Method to load the snapshot into the empty lists if it matches the current text files;
+     // returns the sequence of the last journal entry it contains, or -1 if the text files must be read instead
+     static long load(List<Customer> customers, List<Claim> claims) {
+         Path path = Paths.get(SNAPSHOT_FILE);
+         if (!Files.exists(path)) {
+             return -1;
+         }
+         long start = ClaimMetrics.start();
+         try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+             if (channel.size() > Integer.MAX_VALUE) {
+                 return -1;
+             }
+             ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+             long sequence = readHeader(buffer);
+             if (sequence < 0) {
+                 return -1;
+             }
+             StringReader strings = new StringReader(buffer);
+ 
+             int customerCount = buffer.getInt();
+             for (int i = 0; i < customerCount; i++) {
+                 Customer customer = new Customer(strings.next(), buffer.getInt(), strings.next(), strings.next(), strings.next());
+                 customer.markClean();
+                 customers.add(customer);
+             }
+ 
+             int claimCount = buffer.getInt();
+             DocumentTable documents = new DocumentTable(claimCount);
+             for (int row = 0; row < claimCount; row++) {
+                 String id = strings.next();
+                 long cardNumber = buffer.getLong();
+                 Date claimDate = fromDay(buffer.getInt());
+                 Date examDate = fromDay(buffer.getInt());
+                 double claimAmount = buffer.getDouble();
+                 ClaimStatus status = CLAIM_STATUSES[buffer.get()];
+                 ReceiverBankingInfo bankingInfo = new ReceiverBankingInfo(strings.next(), strings.next(), strings.next());
+                 String fullName = strings.next();
+                 documents.read(buffer, row);
+                 Claim claim = new Claim(id, claimDate, cardNumber, examDate, new Documents(documents, row, id, cardNumber),
+                         claimAmount, status, bankingInfo, fullName);
+                 claim.markClean();
+                 claims.add(claim);
+             }
+ 
+             String[] documentNames = new String[buffer.getInt()];
+             for (int code = 0; code < documentNames.length; code++) {
+                 documentNames[code] = strings.next();
+             }
+             documents.finish(documentNames);
+             if (buffer.getInt() != MAGIC) {
+                 throw new IOException("Truncated snapshot");
+             }
+             LOAD.stop(start);
+             return sequence;
+         } catch (IOException | RuntimeException e) {
+             System.out.println("Unable to read " + SNAPSHOT_FILE + " (" + e + "), loading the text files instead.");
+             customers.clear();
+             claims.clear();
+             return -1;
+         }
+     }
+ 
+     // Strings are stored as [byte length][UTF-8 bytes]
+     private static void writeString(DataOutputStream out, String value) throws IOException {
+         byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+         out.writeInt(bytes.length);
+         out.write(bytes);
+     }
+ 
+     // Decoder for consecutive strings, reusing one buffer for their bytes
+     private static final class StringReader {
+         private final ByteBuffer buffer;
+         private byte[] bytes = new byte[256];
+ 
+         StringReader(ByteBuffer buffer) {
+             this.buffer = buffer;
+         }
+ 
+         String next() {
+             int length = buffer.getInt();
+             if (length > bytes.length) {
+                 bytes = new byte[Math.max(length, bytes.length * 2)];
+             }
+             buffer.get(bytes, 0, length);
+             return new String(bytes, 0, length, StandardCharsets.UTF_8);
+         }
+     }
+ 
+     // Method returning the sequence of the snapshot on disk, or -1 if there is none that could be loaded
+     private static long currentSequence() throws IOException {
+         Path path = Paths.get(SNAPSHOT_FILE);
+         if (!Files.exists(path)) {
+             return -1;
+         }
+         try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+             ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+             while (header.hasRemaining() && channel.read(header) >= 0) {
+                 // Keep reading until the header is complete or the file ends
+             }
+             header.flip();
+             return readHeader(header);
+         }
+     }
+ 
+     // Method to check the header: magic, version, sequence and the stamps of both text files;
+     // returns the sequence, or -1 if the snapshot is from another version or the text files have changed
+     private static long readHeader(ByteBuffer buffer) throws IOException {
+         if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+             return -1;
+         }
+         long sequence = buffer.getLong();
+         boolean customersUnchanged = matchesStamp(buffer, FileManager.CUSTOMERS_FILE);
+         boolean claimsUnchanged = matchesStamp(buffer, FileManager.CLAIMS_FILE);
+         return customersUnchanged && claimsUnchanged ? sequence : -1;
+     }
+ 
+     // A text file is identified by its size and modification time, or -1 and -1 if it does not exist
+     private static void writeStamp(DataOutputStream out, String fileName) throws IOException {
+         Path path = Paths.get(fileName);
+         boolean exists = Files.exists(path);
+         out.writeLong(exists ? Files.size(path) : -1);
+         out.writeLong(exists ? Files.getLastModifiedTime(path).toMillis() : -1);
+     }
+ 
+     private static boolean matchesStamp(ByteBuffer buffer, String fileName) throws IOException {
+         long size = buffer.getLong();
+         long modified = buffer.getLong();
+         Path path = Paths.get(fileName);
+         if (!Files.exists(path)) {
+             return size == -1;
+         }
+         return Files.size(path) == size && Files.getLastModifiedTime(path).toMillis() == modified;
+     }
+ 
+     private static int toDay(Date date) {
+         return date == null ? NO_DATE : (int) ClaimDates.toEpochDay(date);
+     }
+ 
+     private static Date fromDay(int epochDay) {
+         return epochDay == NO_DATE ? null : ClaimDates.fromEpochDay(epochDay);
+     }
+ 
+     // Document codes of every loaded claim, those of row r are codes[starts[r] .. starts[r + 1]);
+     // the names follow the claims in the file, so they are only set once every row has been read
+     private static final class DocumentTable {
+         private final int[] starts;
+         private int[] codes = new int[1024];
+         private String[] names;
+ 
+         DocumentTable(int claimCount) {
+             this.starts = new int[claimCount + 1];
+         }
+ 
+         void read(ByteBuffer buffer, int row) {
+             int end = starts[row] + buffer.getInt();
+             if (end > codes.length) {
+                 codes = Arrays.copyOf(codes, Math.max(end, codes.length * 2));
+             }
+             for (int i = starts[row]; i < end; i++) {
+                 codes[i] = buffer.getInt();
+             }
+             starts[row + 1] = end;
+         }
+ 
+         void finish(String[] names) {
+             this.names = names;
+             this.codes = Arrays.copyOf(codes, starts[starts.length - 1]);
+         }
+     }
+ 
+     // Read-only documents of one loaded claim, built from the shared table each time they are read
+     private static final class Documents extends AbstractList<String> implements RandomAccess {
+         private final DocumentTable table;
+         private final int row;
+         private final String id;
+         private final long cardNumber;
+ 
+         Documents(DocumentTable table, int row, String id, long cardNumber) {
+             this.table = table;
+             this.row = row;
+             this.id = id;
+             this.cardNumber = cardNumber;
+         }
+ 
+         @Override
+         public String get(int index) {
+             Objects.checkIndex(index, size());
+             int code = table.codes[table.starts[row] + index];
+             return code < 0 ? CompactClaimTable.documentPrefix(id, cardNumber) + table.names[-code - 1] : table.names[code];
+         }
+ 
+         @Override
+         public int size() {
+             return table.starts[row + 1] - table.starts[row];
+         }
+     }
+ }
+ 
+ // Class providing a memory-mapped binary alternative to claims.txt
+ // Layout: header, fixed-width claim records, a string heap and an open-addressing id index,
+ // so a single claim can be read by id without decoding the rest of the file
+ class BinaryClaimStore {
+     static final String BINARY_CLAIMS_FILE = "claims.bin";
+     private static final int MAGIC = 0x434C4D42; // "CLMB"
+     private static final int VERSION = 1;
+     private static final int NO_DATE = Integer.MIN_VALUE;
+     private static final int EMPTY_SLOT = -1;
+ 
+     // Header: magic, version, record count, index capacity, then section offsets
+     private static final int HEADER_SIZE = 40;
+ 
+     // Record layout, one fixed-width record per claim; string fields are offsets into the heap
+     private static final int CARD_NUMBER = 0; // long
+     private static final int CLAIM_DATE = 8; // int epoch day
+     private static final int EXAM_DATE = 12; // int epoch day
+     private static final int CLAIM_AMOUNT = 16; // double
+     private static final int STATUS = 24; // int ordinal
+     private static final int ID = 28;
+     private static final int BANK_NAME = 32;
+     private static final int ACCOUNT_NAME = 36;
+     private static final int ACCOUNT_NUMBER = 40;
+     private static final int FULL_NAME = 44;
+     private static final int DOCUMENTS = 48; // heap offset of [count][string offsets...]
+     private static final int RECORD_SIZE = 52;
+ 
+     private static final ClaimStatus[] CLAIM_STATUSES = ClaimStatus.values();
+ 
+     private final MappedByteBuffer buffer;
+     private final int recordCount;
+     private final int indexCapacity;
+     private final int recordsOffset;
+     private final int heapOffset;
+     private final int indexOffset;
+ 
+     private BinaryClaimStore(MappedByteBuffer buffer) throws IOException {
+         this.buffer = buffer;
+         if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+             throw new IOException("Not a binary claims file");
+         }
+         if (buffer.getInt(4) != VERSION) {
+             throw new IOException("Unsupported binary claims version " + buffer.getInt(4));
+         }
+         this.recordCount = buffer.getInt(8);
+         this.indexCapacity = buffer.getInt(12);
+         this.recordsOffset = (int) buffer.getLong(16);
+         this.heapOffset = (int) buffer.getLong(24);
+         this.indexOffset = (int) buffer.getLong(32);
+     }
+ 
+     // Method to map a binary claims file; pages are only read from disk when a record is touched
+     public static BinaryClaimStore open(String fileName) throws IOException {
+         try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+             if (channel.size() > Integer.MAX_VALUE) {
+                 throw new IOException("Binary claims file larger than 2 GB: " + fileName);
+             }
+             return new BinaryClaimStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+         }
+     }
+ 
+     public int size() {
+         return recordCount;
+     }
+ 
+     // Method to look up one claim through the id index, returns null if the id is not present
+     public Claim getClaimById(String id) {
+         int record = findRecord(id);
+         return record < 0 ? null : readClaim(record);
+     }
+ 
+     // Method to decode the claim stored at the given record number
+     public Claim getClaim(int record) {
+         if (record < 0 || record >= recordCount) {
+             throw new IndexOutOfBoundsException("Record " + record + " of " + recordCount);
+         }
+         return readClaim(record);
+     }
+ 
+     // Method to decode every claim in file order
+     public void forEach(Consumer<Claim> consumer) {
+         for (int record = 0; record < recordCount; record++) {
+             consumer.accept(readClaim(record));
+         }
+     }
+ 
+     public List<Claim> getAllClaims() {
+         List<Claim> claims = new ArrayList<>(recordCount);
+         forEach(claims::add);
+         return claims;
+     }
+ 
+     private int findRecord(String id) {
+         int mask = indexCapacity - 1;
+         for (int slot = spread(id.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+             int record = buffer.getInt(indexOffset + slot * 4);
+             if (record == EMPTY_SLOT) {
+                 return -1;
+             }
+             if (readString(buffer.getInt(recordsOffset + record * RECORD_SIZE + ID)).equals(id)) {
+                 return record;
+             }
+         }
+     }
+ 
+     private Claim readClaim(int record) {
+         int base = recordsOffset + record * RECORD_SIZE;
+         int documentsOffset = buffer.getInt(base + DOCUMENTS);
+         int documentCount = buffer.getInt(heapOffset + documentsOffset);
+         List<String> documents = new ArrayList<>(documentCount);
+         for (int i = 0; i < documentCount; i++) {
+             documents.add(readString(buffer.getInt(heapOffset + documentsOffset + 4 + i * 4)));
+         }
+         ReceiverBankingInfo receiverBankingInfo = new ReceiverBankingInfo(
+                 readString(buffer.getInt(base + BANK_NAME)),
+                 readString(buffer.getInt(base + ACCOUNT_NAME)),
+                 readString(buffer.getInt(base + ACCOUNT_NUMBER)));
+         return new Claim(readString(buffer.getInt(base + ID)),
+                 readDate(buffer.getInt(base + CLAIM_DATE)),
+                 buffer.getLong(base + CARD_NUMBER),
+                 readDate(buffer.getInt(base + EXAM_DATE)),
+                 documents,
+                 buffer.getDouble(base + CLAIM_AMOUNT),
+                 CLAIM_STATUSES[buffer.getInt(base + STATUS)],
+                 receiverBankingInfo,
+                 readString(buffer.getInt(base + FULL_NAME)));
+     }
+ 
+     // Heap strings are stored as [byte length][UTF-8 bytes]
+     private String readString(int offset) {
+         int length = buffer.getInt(heapOffset + offset);
+         byte[] bytes = new byte[length];
+         buffer.get(heapOffset + offset + 4, bytes);
+         return new String(bytes, StandardCharsets.UTF_8);
+     }
+ 
+     private static Date readDate(int epochDay) {
+         return epochDay == NO_DATE ? null : ClaimDates.fromEpochDay(epochDay);
+     }
+ 
+     private static int spread(int hash) {
+         return hash ^ (hash >>> 16);
+     }
+ 
+     // Method to write claims in the binary format, through a temporary file and an atomic rename
+     public static void write(Collection<Claim> claims, String fileName) throws IOException {
+         int recordCount = claims.size();
+         int indexCapacity = Integer.highestOneBit(Math.max(1, recordCount) * 2 - 1) << 1; // load factor <= 0.5
+         ByteBuffer records = ByteBuffer.allocate(recordCount * RECORD_SIZE);
+         StringHeap heap = new StringHeap();
+         int[] index = new int[indexCapacity];
+         Arrays.fill(index, EMPTY_SLOT);
+ 
+         int record = 0;
+         for (Claim claim : claims) {
+             int base = record * RECORD_SIZE;
+             records.putLong(base + CARD_NUMBER, claim.getCardNumber());
+             records.putInt(base + CLAIM_DATE, claim.getClaimDate() == null ? NO_DATE : (int) ClaimDates.toEpochDay(claim.getClaimDate()));
+             records.putInt(base + EXAM_DATE, claim.getExamDate() == null ? NO_DATE : (int) ClaimDates.toEpochDay(claim.getExamDate()));
+             records.putDouble(base + CLAIM_AMOUNT, claim.getClaimAmount());
+             records.putInt(base + STATUS, claim.getStatus().ordinal());
+             records.putInt(base + ID, heap.add(claim.getId()));
+             records.putInt(base + BANK_NAME, heap.add(claim.getReceiverBankingInfo().getBankName()));
+             records.putInt(base + ACCOUNT_NAME, heap.add(claim.getReceiverBankingInfo().getAccountName()));
+             records.putInt(base + ACCOUNT_NUMBER, heap.add(claim.getReceiverBankingInfo().getAccountNumber()));
+             records.putInt(base + FULL_NAME, heap.add(claim.getFullName()));
+             records.putInt(base + DOCUMENTS, heap.addList(claim.getDocuments()));
+ 
+             int mask = indexCapacity - 1;
+             int slot = spread(claim.getId().hashCode()) & mask;
+             while (index[slot] != EMPTY_SLOT) {
+                 slot = (slot + 1) & mask;
+             }
+             index[slot] = record;
+             record++;
+         }
+ 
+         long recordsOffset = HEADER_SIZE;
+         long heapOffset = recordsOffset + records.capacity();
+         long indexOffset = heapOffset + heap.size();
+         ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+         header.putInt(MAGIC).putInt(VERSION).putInt(recordCount).putInt(indexCapacity)
+                 .putLong(recordsOffset).putLong(heapOffset).putLong(indexOffset).flip();
+         ByteBuffer indexBuffer = ByteBuffer.allocate(indexCapacity * 4);
+         indexBuffer.asIntBuffer().put(index);
+ 
+         Path target = Paths.get(fileName);
+         Path tmp = Paths.get(fileName + ".tmp");
+         try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+             writeFully(channel, header);
+             writeFully(channel, records);
+             writeFully(channel, heap.toByteBuffer());
+             writeFully(channel, indexBuffer);
+             channel.force(true);
+         }
+         Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+         FileManager.syncDirectory(target.toAbsolutePath().getParent());
+     }
+ 
+     private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+         buffer.rewind();
+         while (buffer.hasRemaining()) {
+             channel.write(buffer);
+         }
+     }
+ 
+     // Method to convert claims.txt format to the binary format
+     public static int convertTextToBinary(String textFile, String binaryFile) throws IOException {
+         List<Claim> claims = new ArrayList<>();
+         FileManager.streamClaims(textFile, claims::add);
+         write(claims, binaryFile);
+         return claims.size();
+     }
+ 
+     // Method to convert the binary format back to claims.txt format
+     public static int convertBinaryToText(String binaryFile, String textFile) throws IOException {
+         BinaryClaimStore store = open(binaryFile);
+         try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(textFile)))) {
+             StringBuilder claimData = new StringBuilder(256);
+             store.forEach(claim -> {
+                 claimData.setLength(0);
+                 FileManager.appendClaim(claimData, claim);
+                 writer.println(claimData);
+             });
+         }
+         return store.size();
+     }
+ 
+     // Heap builder; identical strings (bank names, repeated customer names) are stored once
+     private static final class StringHeap {
+         private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         private final DataOutputStream out = new DataOutputStream(bytes);
+         private final Map<String, Integer> offsets = new HashMap<>();
+ 
+         int add(String value) throws IOException {
+             Integer existing = offsets.get(value);
+             if (existing != null) {
+                 return existing;
+             }
+             int offset = size();
+             byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+             out.writeInt(encoded.length);
+             out.write(encoded);
+             offsets.put(value, offset);
+             return offset;
+         }
+ 
+         int addList(List<String> values) throws IOException {
+             int[] stringOffsets = new int[values.size()];
+             for (int i = 0; i < stringOffsets.length; i++) {
+                 stringOffsets[i] = add(values.get(i));
+             }
+             int offset = size();
+             out.writeInt(stringOffsets.length);
+             for (int stringOffset : stringOffsets) {
+                 out.writeInt(stringOffset);
+             }
+             return offset;
+         }
+ 
+         int size() {
+             return bytes.size();
+         }
+ 
+         ByteBuffer toByteBuffer() {
+             return ByteBuffer.wrap(bytes.toByteArray());
+         }
+     }
+ }
+ 
+ // Class holding claims column by column instead of as one object graph per claim
+ // Numbers and dates are primitive arrays, repeated strings (banks, account holders, customer
+ // names, document names) are dictionary codes, and Claim objects are only built when asked for.
+ // Documents named ClaimId_CardNumber_DocumentName.pdf only store the DocumentName.pdf code, and
+ // all-digit account numbers are stored as numbers.
+ class CompactClaimTable {
+     private static final int NO_DATE = Integer.MIN_VALUE;
+     private static final int EMPTY_SLOT = -1;
+     private static final ClaimStatus[] CLAIM_STATUSES = ClaimStatus.values();
+ 
+     private final StringDictionary dictionary = new StringDictionary();
+     private int size;
+     private String[] ids;
+     private long[] cardNumbers;
+     private int[] claimDays;
+     private int[] examDays;
+     private double[] claimAmounts;
+     private byte[] statuses;
+     private int[] bankNames;
+     private int[] accountNames;
+     private long[] accountNumbers; // digits behind a leading 1, or -(dictionary code + 1)
+     private int[] fullNames;
+     // Documents of row r are documentCodes[documentStarts[r] .. documentStarts[r + 1]); a negative
+     // code -(c + 1) means the conventional ClaimId_CardNumber_ prefix followed by string c
+     private int[] documentStarts;
+     private int[] documentCodes = new int[16];
+     private int documentCount;
+     // Open-addressing id index holding row numbers, load factor <= 0.5
+     private int[] index;
+ 
+     public CompactClaimTable() {
+         this(16);
+     }
+ 
+     public CompactClaimTable(int expectedSize) {
+         int capacity = Math.max(16, expectedSize);
+         ids = new String[capacity];
+         cardNumbers = new long[capacity];
+         claimDays = new int[capacity];
+         examDays = new int[capacity];
+         claimAmounts = new double[capacity];
+         statuses = new byte[capacity];
+         bankNames = new int[capacity];
+         accountNames = new int[capacity];
+         accountNumbers = new long[capacity];
+         fullNames = new int[capacity];
+         documentStarts = new int[capacity + 1];
+         index = newIndex(capacity * 2);
+     }
+ 
+     public static CompactClaimTable of(Collection<Claim> claims) {
+         CompactClaimTable table = new CompactClaimTable(claims.size());
+         for (Claim claim : claims) {
+             table.add(claim);
+         }
+         return table;
+     }
+ 
+     // Method to append a claim, returns its row; the Claim object itself is not retained
+     public int add(Claim claim) {
+         if (rowOf(claim.getId()) != EMPTY_SLOT) {
+             throw new IllegalArgumentException("Claim with ID " + claim.getId() + " already exists.");
+         }
+         if (size == ids.length) {
+             grow();
+         }
+         int row = size++;
+         ids[row] = claim.getId();
+         cardNumbers[row] = claim.getCardNumber();
+         claimDays[row] = toDay(claim.getClaimDate());
+         examDays[row] = toDay(claim.getExamDate());
+         claimAmounts[row] = claim.getClaimAmount();
+         statuses[row] = (byte) claim.getStatus().ordinal();
+         ReceiverBankingInfo bankingInfo = claim.getReceiverBankingInfo();
+         bankNames[row] = dictionary.code(bankingInfo.getBankName());
+         accountNames[row] = dictionary.code(bankingInfo.getAccountName());
+         accountNumbers[row] = encodeAccountNumber(bankingInfo.getAccountNumber());
+         fullNames[row] = dictionary.code(claim.getFullName());
+         String documentPrefix = documentPrefix(claim.getId(), claim.getCardNumber());
+         for (String document : claim.getDocuments()) {
+             if (documentCount == documentCodes.length) {
+                 documentCodes = Arrays.copyOf(documentCodes, documentCount * 2);
+             }
+             documentCodes[documentCount++] = document.startsWith(documentPrefix)
+                     ? -dictionary.code(document.substring(documentPrefix.length())) - 1
+                     : dictionary.code(document);
+         }
+         documentStarts[row + 1] = documentCount;
+ 
+         int mask = index.length - 1;
+         int slot = spread(claim.getId().hashCode()) & mask;
+         while (index[slot] != EMPTY_SLOT) {
+             slot = (slot + 1) & mask;
+         }
+         index[slot] = row;
+         return row;
+     }
+ 
+     public int size() {
+         return size;
+     }
+ 
+     // Method to find the row of a claim id, or -1 if it is not in the table
+     public int rowOf(String id) {
+         int mask = index.length - 1;
+         for (int slot = spread(id.hashCode()) & mask; index[slot] != EMPTY_SLOT; slot = (slot + 1) & mask) {
+             if (ids[index[slot]].equals(id)) {
+                 return index[slot];
+             }
+         }
+         return EMPTY_SLOT;
+     }
+ 
+     public Claim getClaimById(String id) {
+         int row = rowOf(id);
+         return row == EMPTY_SLOT ? null : getClaim(row);
+     }
+ 
+     // Method to build a Claim from one row; each call returns a new, independent object
+     public Claim getClaim(int row) {
+         checkRow(row);
+         List<String> documents = new ArrayList<>(documentStarts[row + 1] - documentStarts[row]);
+         String documentPrefix = documentPrefix(ids[row], cardNumbers[row]);
+         for (int i = documentStarts[row]; i < documentStarts[row + 1]; i++) {
+             int code = documentCodes[i];
+             documents.add(code < 0 ? documentPrefix + dictionary.get(-code - 1) : dictionary.get(code));
+         }
+         return new Claim(ids[row], fromDay(claimDays[row]), cardNumbers[row], fromDay(examDays[row]), documents,
+                 claimAmounts[row], CLAIM_STATUSES[statuses[row]],
+                 new ReceiverBankingInfo(dictionary.get(bankNames[row]), dictionary.get(accountNames[row]),
+                         decodeAccountNumber(accountNumbers[row])),
+                 dictionary.get(fullNames[row]));
+     }
+ 
+     public void forEach(Consumer<Claim> action) {
+         for (int row = 0; row < size; row++) {
+             action.accept(getClaim(row));
+         }
+     }
+ 
+     // Column accessors for scans that do not need a whole Claim
+     public String getId(int row) {
+         checkRow(row);
+         return ids[row];
+     }
+ 
+     public long getCardNumber(int row) {
+         checkRow(row);
+         return cardNumbers[row];
+     }
+ 
+     public double getClaimAmount(int row) {
+         checkRow(row);
+         return claimAmounts[row];
+     }
+ 
+     public ClaimStatus getStatus(int row) {
+         checkRow(row);
+         return CLAIM_STATUSES[statuses[row]];
+     }
+ 
+     // Method returning the claim date as an epoch day, or Integer.MIN_VALUE if there is none
+     public int getClaimEpochDay(int row) {
+         checkRow(row);
+         return claimDays[row];
+     }
+ 
+     public String getFullName(int row) {
+         checkRow(row);
+         return dictionary.get(fullNames[row]);
+     }
+ 
+     // Method to count the distinct strings shared between rows
+     public int distinctStrings() {
+         return dictionary.size();
+     }
+ 
+     private void checkRow(int row) {
+         if (row < 0 || row >= size) {
+             throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+         }
+     }
+ 
+     private void grow() {
+         int capacity = ids.length * 2;
+         ids = Arrays.copyOf(ids, capacity);
+         cardNumbers = Arrays.copyOf(cardNumbers, capacity);
+         claimDays = Arrays.copyOf(claimDays, capacity);
+         examDays = Arrays.copyOf(examDays, capacity);
+         claimAmounts = Arrays.copyOf(claimAmounts, capacity);
+         statuses = Arrays.copyOf(statuses, capacity);
+         bankNames = Arrays.copyOf(bankNames, capacity);
+         accountNames = Arrays.copyOf(accountNames, capacity);
+         accountNumbers = Arrays.copyOf(accountNumbers, capacity);
+         fullNames = Arrays.copyOf(fullNames, capacity);
+         documentStarts = Arrays.copyOf(documentStarts, capacity + 1);
+         index = newIndex(capacity * 2);
+         int mask = index.length - 1;
+         for (int row = 0; row < size; row++) {
+             int slot = spread(ids[row].hashCode()) & mask;
+             while (index[slot] != EMPTY_SLOT) {
+                 slot = (slot + 1) & mask;
+             }
+             index[slot] = row;
+         }
+     }
+ 
+     private static int[] newIndex(int minimumCapacity) {
+         int[] index = new int[Integer.highestOneBit(minimumCapacity - 1) << 1];
+         Arrays.fill(index, EMPTY_SLOT);
+         return index;
+     }
+ 
+     private static int spread(int hash) {
+         return hash ^ (hash >>> 16);
+     }
+ 
+     static String documentPrefix(String id, long cardNumber) {
+         return id + "_" + cardNumber + "_";
+     }
+ 
+     // Account numbers of up to 18 digits, leading zeros included, fit in a long behind a leading 1
+     private long encodeAccountNumber(String accountNumber) {
+         if (accountNumber != null && !accountNumber.isEmpty() && accountNumber.length() <= 18
+                 && accountNumber.chars().allMatch(c -> c >= '0' && c <= '9')) {
+             return Long.parseLong("1" + accountNumber);
+         }
+         return -dictionary.code(accountNumber) - 1L;
+     }
+ 
+     private String decodeAccountNumber(long encoded) {
+         return encoded < 0 ? dictionary.get((int) (-encoded - 1)) : Long.toString(encoded).substring(1);
+     }
+ 
+     private static int toDay(Date date) {
+         return date == null ? NO_DATE : (int) ClaimDates.toEpochDay(date);
+     }
+ 
+     private static Date fromDay(int epochDay) {
+         return epochDay == NO_DATE ? null : ClaimDates.fromEpochDay(epochDay);
+     }
+ }
+ 
+ // Dictionary giving every distinct string one int code
+ final class StringDictionary {
+     private final Map<String, Integer> codes = new HashMap<>();
+     private String[] strings = new String[16];
+ 
+     int code(String value) {
+         Integer code = codes.get(value);
+         if (code == null) {
+             code = codes.size();
+             if (code == strings.length) {
+                 strings = Arrays.copyOf(strings, code * 2);
+             }
+             strings[code] = value;
+             codes.put(value, code);
+         }
+         return code;
+     }
+ 
+     String get(int code) {
+         return strings[code];
+     }
+ 
+     int size() {
+         return codes.size();
+     }
+ 
+     // Method to copy the strings out in code order
+     String[] toArray() {
+         return Arrays.copyOf(strings, codes.size());
+     }
+ }
+ 
+ // Class representing a Customer
+ class Customer {
+     private String fullName;
+     private int age;
+     private String gender;
+     private String address;
+     private String phoneNumber;
+     private boolean dirty = true; // changed since it was last read or written
+ 
+     public Customer(String fullName, int age, String gender, String address, String phoneNumber) {
+         this.fullName = fullName;
+         this.age = age;
+         this.gender = gender;
+         this.address = address;
+         this.phoneNumber = phoneNumber;
+     }
+ 
+     // Getters and setters
+     public String getFullName() {
+         return fullName;
+     }
+ 
+     public int getAge() {
+         return age;
+     }
+ 
+     public String getGender() {
+         return gender;
+     }
+ 
+     public String getAddress() {
+         return address;
+     }
+ 
+     public String getPhoneNumber() {
+         return phoneNumber;
+     }
+ 
+     public void setFullName(String fullName) {
+         this.fullName = fullName;
+         dirty = true;
+     }
+ 
+     // Methods for persistence to tell changed customers from ones already on disk
+     public boolean isDirty() {
+         return dirty;
+     }
+ 
+     public void markClean() {
+         dirty = false;
+     }
+ }
+ 
+ // Abstract class representing a Person
+ abstract class Person {
+     protected String id;
+     protected String fullName;
+ 
+     public Person(String id, String fullName) {
+         this.id = id;
+         this.fullName = fullName;
+     }
+ 
+     public String getId() {
+         return id;
+     }
+ 
+     public String getFullName() {
+         return fullName;
+     }
+ }
+ 
+ // Class representing a Policy Holder, inherits from Person
+ class PolicyHolder extends Person {
+     private List<Dependent> dependents;
+     protected InsuranceCard insuranceCard;
+ 
+     public PolicyHolder(String id, String fullName, InsuranceCard insuranceCard) {
+         super(id, fullName);
+         this.insuranceCard = insuranceCard;
+         this.dependents = new ArrayList<>();
+     }
+ 
+     public void addDependent(Dependent dependent) {
+         dependents.add(dependent);
+     }
+ 
+     public List<Dependent> getDependents() {
+         return Collections.unmodifiableList(dependents);
+     }
+ 
+     public InsuranceCard getInsuranceCard() {
+         return insuranceCard;
+     }
+ 
+     // The holder is identified by the number of their own card
+     void setInsuranceCard(InsuranceCard insuranceCard) {
+         this.insuranceCard = insuranceCard;
+         this.id = Long.toString(insuranceCard.getCardNumber());
+     }
+ }
+ 
+ // Class representing a Dependent, inherits from Person
+ class Dependent extends Person {
+     private InsuranceCard insuranceCard;
+ 
+     public Dependent(String id, String fullName) {
+         super(id, fullName);
+     }
+ 
+     public Dependent(String id, String fullName, InsuranceCard insuranceCard) {
+         super(id, fullName);
+         this.insuranceCard = insuranceCard;
+     }
+ 
+     public InsuranceCard getInsuranceCard() {
+         return insuranceCard;
+     }
+ }
+ 
+ // Class representing an Insurance Card
+ class InsuranceCard {
+     private long cardNumber;
+     private String cardHolder;
+     private String policyOwner;
+     private Date expirationDate;
+ 
+     public InsuranceCard(long cardNumber, String cardHolder, String policyOwner, Date expirationDate) {
+         this.cardNumber = cardNumber;
+         this.cardHolder = cardHolder;
+         this.policyOwner = policyOwner;
+         this.expirationDate = expirationDate;
+     }
+ 
+     public long getCardNumber() {
+         return cardNumber;
+     }
+ 
+     public String getCardHolder() {
+         return cardHolder;
+     }
+ 
+     public String getPolicyOwner() {
+         return policyOwner;
+     }
+ 
+     public Date getExpirationDate() {
+         return expirationDate;
+     }
+ }
+ 
+ // Class representing a Claim
+ class Claim {
+     private String id;
+     private Date claimDate;
+     private long cardNumber;
+     private Date examDate;
+     private List<String> documents;
+     private double claimAmount;
+     private ClaimStatus status;
+     private ReceiverBankingInfo receiverBankingInfo;
+     private String fullName; // Adding Full Name attribute
+     private long version; // Incremented on every update, used for optimistic concurrency control
+     private boolean dirty = true; // changed since it was last read or written
+     // Set when documents and banking info have been moved out of the heap; both fields above are then null
+     private ClaimDetailCache detailCache;
+     private long detailReference;
+ 
+     // Constructor
+     public Claim(String id, Date claimDate, long cardNumber, Date examDate,
+                  List<String> documents, double claimAmount, ClaimStatus status,
+                  ReceiverBankingInfo receiverBankingInfo, String fullName) {
+         this.id = id;
+         this.claimDate = claimDate;
+         this.cardNumber = cardNumber;
+         this.examDate = examDate;
+         this.documents = documents;
+         this.claimAmount = claimAmount;
+         this.status = status;
+         this.receiverBankingInfo = receiverBankingInfo;
+         this.fullName = fullName;
+     }
+ 
+     // Getters and setters for other attributes
+     public String getId() {
+         return id;
+     }
+ 
+     public Date getClaimDate() {
+         return claimDate;
+     }
+ 
+     public void setClaimDate(Date claimDate) {
+         this.claimDate = claimDate;
+         dirty = true;
+     }
+ 
+     public long getCardNumber() {
+         return cardNumber;
+     }
+ 
+     public Date getExamDate() {
+         return examDate;
+     }
+ 
+     public List<String> getDocuments() {
+         ClaimDetailCache cache = detailCache;
+         return cache == null ? documents : cache.get(detailReference).getDocuments();
+     }
+ 
+     public double getClaimAmount() {
+         return claimAmount;
+     }
+ 
+     public ClaimStatus getStatus() {
+         return status;
+     }
+ 
+     public ReceiverBankingInfo getReceiverBankingInfo() {
+         ClaimDetailCache cache = detailCache;
+         return cache == null ? receiverBankingInfo : cache.get(detailReference).getReceiverBankingInfo();
+     }
+ 
+     public String getFullName() {
+         return fullName;
+     }
+ 
+     public long getVersion() {
+         return version;
+     }
+ 
+     public void setVersion(long version) {
+         this.version = version;
+     }
+ 
+     // Methods for persistence to tell changed claims from ones already on disk
+     public boolean isDirty() {
+         return dirty;
+     }
+ 
+     public void markClean() {
+         dirty = false;
+     }
+ 
+     // Method to move documents and banking info to the cache's store, keeping only a reference
+     void moveDetailsTo(ClaimDetailCache cache) throws IOException {
+         if (detailCache == null) {
+             detailReference = cache.write(new ClaimDetails(documents, receiverBankingInfo));
+             detailCache = cache;
+             documents = null;
+             receiverBankingInfo = null;
+         }
+     }
+ 
+     // Method to bring documents and banking info back before one of them is replaced
+     private void loadDetails() {
+         if (detailCache != null) {
+             ClaimDetails details = detailCache.get(detailReference);
+             documents = details.getDocuments();
+             receiverBankingInfo = details.getReceiverBankingInfo();
+             detailCache = null;
+         }
+     }
+ 
+     // Setters for other attributes
+     public void setCardNumber(long cardNumber) {
+         this.cardNumber = cardNumber;
+         dirty = true;
+     }
+ 
+     public void setExamDate(Date examDate) {
+         this.examDate = examDate;
+         dirty = true;
+     }
+ 
+     public void setDocuments(List<String> documents) {
+         loadDetails();
+         this.documents = documents;
+         dirty = true;
+     }
+ 
+     public void setClaimAmount(double claimAmount) {
+         this.claimAmount = claimAmount;
+         dirty = true;
+     }
+ 
+     public void setStatus(ClaimStatus status) {
+         this.status = status;
+         dirty = true;
+     }
+ 
+     public void setReceiverBankingInfo(ReceiverBankingInfo receiverBankingInfo) {
+         loadDetails();
+         this.receiverBankingInfo = receiverBankingInfo;
+         dirty = true;
+     }
+ }
+ 
+ // Class representing banking information for claim receivers
+ class ReceiverBankingInfo {
+     private String bankName;
+     private String accountName;
+     private String accountNumber;
+ 
+     public ReceiverBankingInfo(String bankName, String accountName, String accountNumber) {
+         this.bankName = bankName;
+         this.accountName = accountName;
+         this.accountNumber = accountNumber;
+     }
+ 
+     // Getters
+     public String getBankName() {
+         return bankName;
+     }
+ 
+     public String getAccountName() {
+         return accountName;
+     }
+ 
+     public String getAccountNumber() {
+         return accountNumber;
+     }
+ }
+ 
+ // Class holding the cold part of a claim: its documents and banking information
+ final class ClaimDetails {
+     private final List<String> documents;
+     private final ReceiverBankingInfo receiverBankingInfo;
+ 
+     public ClaimDetails(List<String> documents, ReceiverBankingInfo receiverBankingInfo) {
+         this.documents = documents;
+         this.receiverBankingInfo = receiverBankingInfo;
+     }
+ 
+     public List<String> getDocuments() {
+         return documents;
+     }
+ 
+     public ReceiverBankingInfo getReceiverBankingInfo() {
+         return receiverBankingInfo;
+     }
+ }
+ 
+ // Interface for a store keeping claim details outside the heap; the store chooses the references
+ interface ClaimDetailStore extends Closeable {
+     long write(ClaimDetails details) throws IOException;
+     ClaimDetails read(long reference) throws IOException;
+ }
+ 
+ // Class reading and writing the strings of binary records as [int byte length, or -1 for null][UTF-8 bytes]
+ final class RecordStrings {
+     private RecordStrings() {
+     }
+ 
+     static void write(DataOutputStream out, String value) throws IOException {
+         if (value == null) {
+             out.writeInt(-1);
+             return;
+         }
+         byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+         out.writeInt(bytes.length);
+         out.write(bytes);
+     }
+ 
+     // Method to read the string at the position of an array-backed buffer and move past it
+     static String read(ByteBuffer buffer) {
+         int length = buffer.getInt();
+         if (length < 0) {
+             return null;
+         }
+         String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+         buffer.position(buffer.position() + length);
+         return value;
+     }
+ }
+ 
+ // Class storing claim details in a temporary file, deleted when the store is closed or the process ends
+ // Records are [int length][payload] and a reference is the record's offset; appends go through a buffer
+ // that is written out before any read that needs it.
+ class FileClaimDetailStore implements ClaimDetailStore {
+     private static final int BUFFER_SIZE = 64 * 1024;
+     private static final int FIRST_READ = 512; // most records are read with one positional read
+ 
+     private final FileChannel channel;
+     private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+     private final DataOutputStream recordOut = new DataOutputStream(record);
+     private final ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+     private long written; // bytes already in the file
+ 
+     public FileClaimDetailStore() throws IOException {
+         Path path = Files.createTempFile("claim-details", ".bin");
+         this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+         path.toFile().deleteOnExit();
+     }
+ 
+     @Override
+     public synchronized long write(ClaimDetails details) throws IOException {
+         record.reset();
+         recordOut.writeInt(0);
+         recordOut.writeInt(details.getDocuments().size());
+         for (String document : details.getDocuments()) {
+             RecordStrings.write(recordOut, document);
+         }
+         ReceiverBankingInfo bankingInfo = details.getReceiverBankingInfo();
+         recordOut.writeBoolean(bankingInfo != null);
+         if (bankingInfo != null) {
+             RecordStrings.write(recordOut, bankingInfo.getBankName());
+             RecordStrings.write(recordOut, bankingInfo.getAccountName());
+             RecordStrings.write(recordOut, bankingInfo.getAccountNumber());
+         }
+         byte[] bytes = record.toByteArray();
+         ByteBuffer.wrap(bytes).putInt(0, bytes.length - 4);
+ 
+         long reference = written + pending.position();
+         if (bytes.length > pending.remaining()) {
+             flush();
+         }
+         if (bytes.length > pending.capacity()) {
+             writeFully(ByteBuffer.wrap(bytes));
+         } else {
+             pending.put(bytes);
+         }
+         return reference;
+     }
+ 
+     @Override
+     public synchronized ClaimDetails read(long reference) throws IOException {
+         if (reference >= written) {
+             flush();
+         }
+         ByteBuffer buffer = ByteBuffer.allocate(FIRST_READ);
+         readFully(buffer, reference, Math.min(FIRST_READ, written - reference));
+         int length = buffer.getInt(0);
+         if (length + 4 > buffer.capacity()) {
+             ByteBuffer whole = ByteBuffer.allocate(length + 4);
+             readFully(whole, reference, length + 4);
+             buffer = whole;
+         }
+         buffer.position(4);
+         int documentCount = buffer.getInt();
+         List<String> documents = new ArrayList<>(documentCount);
+         for (int i = 0; i < documentCount; i++) {
+             documents.add(RecordStrings.read(buffer));
+         }
+         ReceiverBankingInfo bankingInfo = buffer.get() != 0
+                 ? new ReceiverBankingInfo(RecordStrings.read(buffer), RecordStrings.read(buffer), RecordStrings.read(buffer))
+                 : null;
+         return new ClaimDetails(documents, bankingInfo);
+     }
+ 
+     @Override
+     public synchronized void close() throws IOException {
+         channel.close();
+     }
+ 
+     private void flush() throws IOException {
+         pending.flip();
+         writeFully(pending);
+         pending.clear();
+     }
+ 
+     private void writeFully(ByteBuffer buffer) throws IOException {
+         while (buffer.hasRemaining()) {
+             written += channel.write(buffer, written);
+         }
+     }
+ 
+     private void readFully(ByteBuffer buffer, long position, long length) throws IOException {
+         buffer.limit((int) length);
+         while (buffer.hasRemaining()) {
+             if (channel.read(buffer, position + buffer.position()) < 0) {
+                 throw new EOFException("Claim details truncated at " + position);
+             }
+         }
+     }
+ }
+ 
+ // Class keeping the details of recently read claims in memory in front of a ClaimDetailStore
+ // Claims handed to offload keep only a reference, so resident memory follows the claims being worked on
+ // instead of the whole book. The cache is a segmented LRU: details enter a probation segment and move to
+ // the protected segment when read again, so one pass over every claim (a report, the search index)
+ // only cycles the probation segment and does not push out the claims adjusters keep coming back to.
+ class ClaimDetailCache {
+     static final int DEFAULT_CAPACITY = Integer.getInteger("claims.details.cache", 10_000);
+     private static final double PROTECTED_SHARE = 0.8;
+ 
+     private static final ClaimMetrics.Counter HITS = ClaimMetrics.counter("cache.details.hits");
+     private static final ClaimMetrics.Counter MISSES = ClaimMetrics.counter("cache.details.misses");
+     private static final ClaimMetrics.Counter EVICTIONS = ClaimMetrics.counter("cache.details.evictions");
+     private static final ClaimMetrics.Histogram MISS_LOAD = ClaimMetrics.timer("cache.details.load");
+ 
+     private final ClaimDetailStore store;
+     private final int probationCapacity;
+     private final int protectedCapacity;
+     private final LinkedHashMap<Long, ClaimDetails> probation = new LinkedHashMap<>(16, 0.75f, true);
+     private final LinkedHashMap<Long, ClaimDetails> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+     private long hits;
+     private long misses;
+     private long evictions;
+ 
+     public ClaimDetailCache(ClaimDetailStore store, int capacity) {
+         if (capacity < 2) {
+             throw new IllegalArgumentException("Cache capacity must be at least 2: " + capacity);
+         }
+         this.store = store;
+         this.protectedCapacity = (int) (capacity * PROTECTED_SHARE);
+         this.probationCapacity = capacity - protectedCapacity;
+     }
+ 
+     // Method to move the details of the claims to a new temporary file behind a cache of DEFAULT_CAPACITY
+     // entries; returns null and leaves the claims as they are when -Dclaims.details.cache=0 or on failure
+     static ClaimDetailCache offloadToFile(Collection<Claim> claims) {
+         if (DEFAULT_CAPACITY <= 0) {
+             return null;
+         }
+         try {
+             ClaimDetailCache cache = new ClaimDetailCache(new FileClaimDetailStore(), Math.max(2, DEFAULT_CAPACITY));
+             cache.offload(claims);
+             return cache;
+         } catch (IOException e) {
+             e.printStackTrace();
+             return null;
+         }
+     }
+ 
+     // Method to move the details of every claim to the store, leaving a reference in each claim
+     public void offload(Collection<Claim> claims) throws IOException {
+         for (Claim claim : claims) {
+             claim.moveDetailsTo(this);
+         }
+     }
+ 
+     long write(ClaimDetails details) throws IOException {
+         return store.write(details);
+     }
+ 
+     // Method to return the details behind a reference, reading them from the store on a miss
+     public synchronized ClaimDetails get(long reference) {
+         ClaimDetails details = protectedSegment.get(reference);
+         if (details == null) {
+             details = probation.remove(reference);
+             if (details != null) {
+                 promote(reference, details);
+             }
+         }
+         if (details != null) {
+             hits++;
+             HITS.increment();
+             return details;
+         }
+         misses++;
+         MISSES.increment();
+         long start = ClaimMetrics.start();
+         try {
+             details = store.read(reference);
+         } catch (IOException e) {
+             throw new UncheckedIOException("Unable to read claim details", e);
+         }
+         MISS_LOAD.stop(start);
+         probation.put(reference, details);
+         if (probation.size() > probationCapacity) {
+             evictEldest(probation);
+         }
+         return details;
+     }
+ 
+     // Details read a second time are worth keeping; the protected segment's least recent entry
+     // goes back to probation for one more chance
+     private void promote(long reference, ClaimDetails details) {
+         protectedSegment.put(reference, details);
+         if (protectedSegment.size() > protectedCapacity) {
+             Map.Entry<Long, ClaimDetails> eldest = protectedSegment.entrySet().iterator().next();
+             protectedSegment.remove(eldest.getKey());
+             probation.put(eldest.getKey(), eldest.getValue());
+             if (probation.size() > probationCapacity) {
+                 evictEldest(probation);
+             }
+         }
+     }
+ 
+     private void evictEldest(LinkedHashMap<Long, ClaimDetails> segment) {
+         Iterator<ClaimDetails> eldest = segment.values().iterator();
+         eldest.next();
+         eldest.remove();
+         evictions++;
+         EVICTIONS.increment();
+     }
+ 
+     public synchronized int size() {
+         return probation.size() + protectedSegment.size();
+     }
+ 
+     public synchronized double hitRate() {
+         return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+     }
+ 
+     public void close() throws IOException {
+         store.close();
+     }
+ 
+     public synchronized void printStats(PrintStream out) {
+         out.printf("Claim detail cache: %d of %d entries, %d hits, %d misses (%.1f%% hit rate), %d evictions%n",
+                 size(), probationCapacity + protectedCapacity, hits, misses, hitRate() * 100, evictions);
+     }
+ }
+ 
+ // Interface defining operations for claim process management
+ interface ClaimProcessManager {
+     void addClaim(Claim claim);
+     void updateClaim(String id, Claim updatedClaim);
+     void deleteClaim(String id);
      Claim getClaimById(String id);
      List<Claim> getAllClaims();
  }
  
- // Class responsible for managing claims
- class ClaimManager {
-     // Method to parse date string into Date object
-     private static Date parseDate(String dateString) {
-         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+ // Class holding the customers, indexed by normalized full name
+ // Claims reference customers by full name, so this is the customer side of the customer/claim join
+ class CustomerDirectory {
+     private final Set<Customer> customers = new LinkedHashSet<>();
+     private final Map<String, List<Customer>> customersByName = new HashMap<>();
+     private final List<CustomerChangeListener> listeners = new ArrayList<>();
+ 
+     public CustomerDirectory(Collection<Customer> customers) {
+         for (Customer customer : customers) {
+             add(customer);
+         }
+     }
+ 
+     // Method to normalize a full name into the join key shared with ClaimRepository
+     static String normalizeName(String fullName) {
+         return fullName.trim().toLowerCase(Locale.ROOT);
+     }
+ 
+     public void add(Customer customer) {
+         customers.add(customer);
+         customersByName.computeIfAbsent(normalizeName(customer.getFullName()), key -> new ArrayList<>()).add(customer);
+         for (CustomerChangeListener listener : listeners) {
+             listener.customerAdded(customer);
+         }
+     }
+ 
+     // Method to remove every customer with the given name, returns the removed customers
+     public List<Customer> removeByName(String fullName) {
+         List<Customer> removed = customersByName.remove(normalizeName(fullName));
+         if (removed == null) {
+             return Collections.emptyList();
+         }
+         customers.removeAll(removed);
+         for (Customer customer : removed) {
+             for (CustomerChangeListener listener : listeners) {
+                 listener.customerRemoved(customer);
+             }
+         }
+         return removed;
+     }
+ 
+     // Method to register a component that must follow every customer added or removed
+     public void addListener(CustomerChangeListener listener) {
+         listeners.add(listener);
+     }
+ 
+     public Collection<Customer> getByName(String fullName) {
+         long start = ClaimMetrics.start();
+         List<Customer> matches = customersByName.get(normalizeName(fullName));
+         ClaimMetrics.LOOKUP_CUSTOMERS_BY_NAME.stop(start);
+         return matches == null ? Collections.emptyList() : Collections.unmodifiableList(matches);
+     }
+ 
+     public Collection<Customer> getAll() {
+         return Collections.unmodifiableSet(customers);
+     }
+ 
+     public int size() {
+         return customers.size();
+     }
+ }
+ 
+ // Class holding the insurance cards, persisted in cards.txt next to the claims
+ // Cards sit in an open-addressing table keyed by the primitive card number, so finding the card of a
+ // claim is one probe run over a long[] with no boxing. Cards are grouped by policy owner on first use,
+ // so a policy rollup reads only the claims filed on the cards of the holder and their dependents.
+ class CardRegistry {
+     static final String CARDS_FILE = "cards.txt";
+ 
+     private static final ClaimMetrics.Histogram POLICY_ROLLUP = ClaimMetrics.timer("report.policy");
+ 
+     private long[] cardNumbers = new long[16];
+     private InsuranceCard[] cards = new InsuranceCard[16]; // a null slot is free
+     private int size;
+     private Map<String, List<InsuranceCard>> cardsByOwner; // by normalized policy owner name, built on first use
+     private boolean dirty; // cards registered since the file was read or written
+ 
+     // Totals of the claims filed on the cards of one policy
+     static final class PolicyRollup {
+         final PolicyHolder holder;
+         final int cardCount;
+         final Map<String, double[]> byCardHolder = new LinkedHashMap<>(); // {count, total amount}
+         long claimCount;
+         double totalAmount;
+ 
+         PolicyRollup(PolicyHolder holder, int cardCount) {
+             this.holder = holder;
+             this.cardCount = cardCount;
+         }
+ 
+         void add(String cardHolder, Collection<Claim> claims) {
+             double[] totals = byCardHolder.computeIfAbsent(cardHolder, key -> new double[2]);
+             for (Claim claim : claims) {
+                 totals[0]++;
+                 totals[1] += claim.getClaimAmount();
+                 claimCount++;
+                 totalAmount += claim.getClaimAmount();
+             }
+         }
+ 
+         void printTo(PrintWriter out) {
+             out.printf("Policy of %s: %d cards, %d claims, $%,.2f%n", holder.getFullName(), cardCount, claimCount, totalAmount);
+             for (Map.Entry<String, double[]> cardHolder : byCardHolder.entrySet()) {
+                 out.printf("\t%-28s %6.0f claims  $%,14.2f%n", cardHolder.getKey(), cardHolder.getValue()[0], cardHolder.getValue()[1]);
+             }
+         }
+     }
+ 
+     // Method to read the cards of the given file, or start an empty registry if there is none yet
+     static CardRegistry load(String fileName) {
+         CardRegistry registry = new CardRegistry();
+         if (Files.exists(Paths.get(fileName))) {
+             List<InsuranceCard> loaded = new ArrayList<>();
+             FileManager.parseInParallel(fileName, FileManager.PARALLEL_RANGE_BYTES, CardRegistry::parseCard, loaded);
+             for (InsuranceCard card : loaded) {
+                 registry.put(card);
+             }
+         }
+         return registry;
+     }
+ 
+     // Method to register the card of every claim whose card is unknown; this also recovers cards
+     // registered in a session that ended before the registry was saved
+     void registerAll(Collection<Claim> claims) {
+         for (Claim claim : claims) {
+             register(claim);
+         }
+     }
+ 
+     // Method to register the card of a claim if it is unknown, as the claimant's own policy with no
+     // known expiration date; returns true if the card is new
+     boolean register(Claim claim) {
+         if (get(claim.getCardNumber()) != null) {
+             return false;
+         }
+         put(new InsuranceCard(claim.getCardNumber(), claim.getFullName(), claim.getFullName(), null));
+         dirty = true;
+         return true;
+     }
+ 
+     public InsuranceCard get(long cardNumber) {
+         int mask = cards.length - 1;
+         for (int slot = slot(cardNumber, mask); cards[slot] != null; slot = (slot + 1) & mask) {
+             if (cardNumbers[slot] == cardNumber) {
+                 return cards[slot];
+             }
+         }
+         return null;
+     }
+ 
+     public int size() {
+         return size;
+     }
+ 
+     // Method to check a claim against its card, returns the reason it is invalid or null if it is fine;
+     // a card that is not registered yet is accepted and registered with the claim
+     public String validate(Claim claim) {
+         InsuranceCard card = get(claim.getCardNumber());
+         if (card == null) {
+             return null;
+         }
+         if (!CustomerDirectory.normalizeName(card.getCardHolder()).equals(CustomerDirectory.normalizeName(claim.getFullName()))) {
+             return "card " + card.getCardNumber() + " is held by " + card.getCardHolder();
+         }
+         if (card.getExpirationDate() != null && claim.getExamDate() != null && claim.getExamDate().after(card.getExpirationDate())) {
+             return "card " + card.getCardNumber() + " expired on " + ClaimDates.format(card.getExpirationDate());
+         }
+         return null;
+     }
+ 
+     // Method returning the policy held under a name with its dependents, or null if there is none;
+     // a holder with several cards of their own is linked to the first
+     public PolicyHolder getPolicyHolder(String policyOwner) {
+         List<InsuranceCard> policyCards = policyCards(policyOwner);
+         if (policyCards.isEmpty()) {
+             return null;
+         }
+         PolicyHolder holder = new PolicyHolder(null, policyCards.get(0).getPolicyOwner(), null);
+         for (InsuranceCard card : policyCards) {
+             if (!isOwnCard(card)) {
+                 holder.addDependent(new Dependent(Long.toString(card.getCardNumber()), card.getCardHolder(), card));
+             } else if (holder.getInsuranceCard() == null) {
+                 holder.setInsuranceCard(card);
+             }
+         }
+         return holder;
+     }
+ 
+     // Method to total the claims on every card of a policy, the holder's and their dependents',
+     // through the card index; returns null if nobody holds a policy under that name
+     public PolicyRollup rollup(String policyOwner, ClaimRepository repository) {
+         long start = ClaimMetrics.start();
+         PolicyHolder holder = getPolicyHolder(policyOwner);
+         if (holder == null) {
+             return null;
+         }
+         List<InsuranceCard> policyCards = policyCards(policyOwner);
+         PolicyRollup rollup = new PolicyRollup(holder, policyCards.size());
+         for (InsuranceCard card : policyCards) {
+             rollup.add(card.getCardHolder(), repository.getClaimsByCardNumber(card.getCardNumber()));
+         }
+         POLICY_ROLLUP.stop(start);
+         return rollup;
+     }
+ 
+     // Method to replace the given file with the cards if any were registered since it was read
+     void save(String fileName) throws IOException {
+         if (!dirty) {
+             return;
+         }
+         FileManager.writeAtomically(fileName, writer -> {
+             StringBuilder line = new StringBuilder(64);
+             for (InsuranceCard card : cards) {
+                 if (card != null) {
+                     line.setLength(0);
+                     line.append(card.getCardNumber()).append(',').append(card.getCardHolder()).append(',').append(card.getPolicyOwner()).append(',');
+                     if (card.getExpirationDate() != null) {
+                         ClaimDates.appendTo(line, card.getExpirationDate());
+                     }
+                     writer.append(line);
+                     writer.newLine();
+                 }
+             }
+         });
+         dirty = false;
+     }
+ 
+     // Method to parse one line of cards.txt, returns null if the line is malformed;
+     // the fields are card number, card holder, policy owner and an optional expiration date
+     static InsuranceCard parseCard(FieldTokenizer fields) {
+         try {
+             if (fields.fieldCount() < 4) {
+                 throw new IllegalArgumentException("expected 4 fields but found " + fields.fieldCount());
+             }
+             Date expirationDate = fields.field(3).isEmpty() ? null : fields.dateField(3);
+             return new InsuranceCard(fields.longField(0), fields.field(1), fields.field(2), expirationDate);
+         } catch (IllegalArgumentException | DateTimeException e) {
+             System.out.println("Invalid line format: " + fields.line() + " (" + e.getMessage() + ")"); // Debug output
+             return null;
+         }
+     }
+ 
+     // Method to add a card, replacing any card with the same number
+     private void put(InsuranceCard card) {
+         if ((size + 1) * 2 > cards.length) {
+             resize(cards.length * 2);
+         }
+         int mask = cards.length - 1;
+         int slot = slot(card.getCardNumber(), mask);
+         while (cards[slot] != null && cardNumbers[slot] != card.getCardNumber()) {
+             slot = (slot + 1) & mask;
+         }
+         if (cards[slot] == null) {
+             size++;
+             if (cardsByOwner != null) {
+                 link(card);
+             }
+         } else {
+             cardsByOwner = null; // regrouped on next use
+         }
+         cardNumbers[slot] = card.getCardNumber();
+         cards[slot] = card;
+     }
+ 
+     private void resize(int capacity) {
+         long[] oldNumbers = cardNumbers;
+         InsuranceCard[] oldCards = cards;
+         cardNumbers = new long[capacity];
+         cards = new InsuranceCard[capacity];
+         int mask = capacity - 1;
+         for (int i = 0; i < oldCards.length; i++) {
+             if (oldCards[i] != null) {
+                 int slot = slot(oldNumbers[i], mask);
+                 while (cards[slot] != null) {
+                     slot = (slot + 1) & mask;
+                 }
+                 cardNumbers[slot] = oldNumbers[i];
+                 cards[slot] = oldCards[i];
+             }
+         }
+     }
+ 
+     // Card numbers are often sequential, so they are spread before masking
+     private static int slot(long cardNumber, int mask) {
+         return (int) ((cardNumber * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+     }
+ 
+     private List<InsuranceCard> policyCards(String policyOwner) {
+         if (cardsByOwner == null) {
+             cardsByOwner = new HashMap<>();
+             for (InsuranceCard card : cards) {
+                 if (card != null) {
+                     link(card);
+                 }
+             }
+         }
+         return cardsByOwner.getOrDefault(CustomerDirectory.normalizeName(policyOwner), Collections.emptyList());
+     }
+ 
+     private void link(InsuranceCard card) {
+         cardsByOwner.computeIfAbsent(CustomerDirectory.normalizeName(card.getPolicyOwner()), key -> new ArrayList<>(1)).add(card);
+     }
+ 
+     private static boolean isOwnCard(InsuranceCard card) {
+         return CustomerDirectory.normalizeName(card.getCardHolder()).equals(CustomerDirectory.normalizeName(card.getPolicyOwner()));
+     }
+ }
+ 
+ // Interface for components kept up to date with every customer added or removed
+ interface CustomerChangeListener {
+     void customerAdded(Customer customer);
+     void customerRemoved(Customer customer);
+ }
+ 
+ // Interface for components kept up to date with every claim mutation
+ interface ClaimChangeListener {
+     void claimAdded(Claim claim);
+     void claimUpdated(Claim before, Claim after);
+     void claimDeleted(Claim claim);
+ }
+ 
+ // Class describing one change to the claim book as published to downstream systems
+ final class ClaimChangeEvent {
+     enum Type { ADDED, UPDATED, DELETED }
+ 
+     final long sequence;
+     final long timestamp; // epoch milliseconds
+     final Type type;
+     final Claim before; // null for ADDED
+     final Claim after; // null for DELETED
+ 
+     ClaimChangeEvent(long sequence, long timestamp, Type type, Claim before, Claim after) {
+         this.sequence = sequence;
+         this.timestamp = timestamp;
+         this.type = type;
+         this.before = before;
+         this.after = after;
+     }
+ 
+     String getClaimId() {
+         return after != null ? after.getId() : before.getId();
+     }
+ 
+     // Method to format the event as one JSON object, with the claims in the ClaimJson format
+     String toJson() {
+         return "{\"sequence\":" + sequence
+                 + ",\"timestamp\":" + ClaimJson.quote(Instant.ofEpochMilli(timestamp).toString())
+                 + ",\"type\":" + ClaimJson.quote(type.name())
+                 + ",\"claimId\":" + ClaimJson.quote(getClaimId())
+                 + ",\"before\":" + (before == null ? "null" : ClaimJson.toJson(before))
+                 + ",\"after\":" + (after == null ? "null" : ClaimJson.toJson(after)) + "}";
+     }
+ }
+ 
+ // Class publishing every claim change into a bounded ring buffer read by pluggable subscribers
+ // Each subscriber has its own thread and cursor and receives the events in sequence order, in batches of
+ // whatever was published since it last caught up. A publisher waits while the slowest subscriber is a
+ // whole ring behind, so no event is dropped and the buffer never grows.
+ class ClaimChangeFeed implements ClaimChangeListener, Closeable {
+     static final int DEFAULT_CAPACITY = 4096;
+ 
+     private static final ClaimMetrics.Counter PUBLISHED = ClaimMetrics.counter("changes.published");
+     private static final ClaimMetrics.Counter FAILED = ClaimMetrics.counter("changes.failed");
+     private static final ClaimMetrics.Histogram PUBLISH_WAIT = ClaimMetrics.timer("changes.publish.wait");
+ 
+     // Receiver of change events; endOfBatch follows the last event available when it was called
+     interface Subscriber {
+         void onEvent(ClaimChangeEvent event) throws IOException;
+ 
+         default void endOfBatch() throws IOException {
+         }
+     }
+ 
+     private final ClaimChangeEvent[] ring;
+     private final int mask;
+     private final List<Subscription> subscriptions = new ArrayList<>();
+     private long nextSequence; // sequence number of the next event, guarded by this feed
+     private boolean closed;
+ 
+     // A subscriber with the sequence number of the next event it will receive
+     private final class Subscription implements Runnable {
+         final String name;
+         final Subscriber subscriber;
+         final Thread thread;
+         long cursor; // guarded by the feed
+ 
+         Subscription(String name, Subscriber subscriber, long cursor) {
+             this.name = name;
+             this.subscriber = subscriber;
+             this.cursor = cursor;
+             this.thread = new Thread(this, "claim-changes-" + name);
+             thread.setDaemon(true);
+         }
+ 
+         @Override
+         public void run() {
+             while (true) {
+                 long from;
+                 long to;
+                 synchronized (ClaimChangeFeed.this) {
+                     while (cursor == nextSequence && !closed) {
+                         try {
+                             ClaimChangeFeed.this.wait();
+                         } catch (InterruptedException e) {
+                             return;
+                         }
+                     }
+                     if (cursor == nextSequence) {
+                         return; // closed and drained
+                     }
+                     from = cursor;
+                     to = nextSequence;
+                 }
+                 // Slots from the cursor on are not reused until the cursor moves, so they are read without the lock.
+                 // An event the subscriber fails on is recorded and skipped; the rest of the batch is still delivered.
+                 for (long sequence = from; sequence < to; sequence++) {
+                     try {
+                         subscriber.onEvent(ring[(int) sequence & mask]);
+                     } catch (IOException | RuntimeException e) {
+                         failed("event " + sequence, e);
+                     }
+                 }
+                 try {
+                     subscriber.endOfBatch();
+                 } catch (IOException | RuntimeException e) {
+                     failed("events " + from + " to " + (to - 1), e);
+                 }
+                 synchronized (ClaimChangeFeed.this) {
+                     cursor = to;
+                     ClaimChangeFeed.this.notifyAll();
+                 }
+             }
+         }
+ 
+         private void failed(String events, Exception e) {
+             FAILED.increment();
+             System.err.println("Change subscriber " + name + " failed on " + events + ":");
+             e.printStackTrace();
+         }
+     }
+ 
+     // Capacity is rounded up to a power of two; firstSequence continues the numbering of earlier runs
+     public ClaimChangeFeed(long firstSequence, int capacity) {
+         int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+         this.ring = new ClaimChangeEvent[size];
+         this.mask = size - 1;
+         this.nextSequence = firstSequence;
+     }
+ 
+     // Method to attach a subscriber, which receives the events published from now on
+     public synchronized void subscribe(String name, Subscriber subscriber) {
+         Subscription subscription = new Subscription(name, subscriber, nextSequence);
+         subscriptions.add(subscription);
+         subscription.thread.start();
+     }
+ 
+     @Override
+     public void claimAdded(Claim claim) {
+         publish(ClaimChangeEvent.Type.ADDED, null, claim);
+     }
+ 
+     @Override
+     public void claimUpdated(Claim before, Claim after) {
+         publish(ClaimChangeEvent.Type.UPDATED, before, after);
+     }
+ 
+     @Override
+     public void claimDeleted(Claim claim) {
+         publish(ClaimChangeEvent.Type.DELETED, claim, null);
+     }
+ 
+     private synchronized void publish(ClaimChangeEvent.Type type, Claim before, Claim after) {
+         if (closed) {
+             return;
+         }
+         if (nextSequence - slowestCursor() >= ring.length) {
+             long start = ClaimMetrics.start();
+             try {
+                 while (nextSequence - slowestCursor() >= ring.length) {
+                     wait();
+                 }
+             } catch (InterruptedException e) {
+                 Thread.currentThread().interrupt();
+                 return;
+             }
+             PUBLISH_WAIT.stop(start);
+         }
+         ring[(int) nextSequence & mask] = new ClaimChangeEvent(nextSequence, System.currentTimeMillis(), type, before, after);
+         nextSequence++;
+         PUBLISHED.increment();
+         notifyAll();
+     }
+ 
+     private long slowestCursor() {
+         long slowest = nextSequence;
+         for (Subscription subscription : subscriptions) {
+             slowest = Math.min(slowest, subscription.cursor);
+         }
+         return slowest;
+     }
+ 
+     // Method to stop publishing, let every subscriber receive what was published and close the ones that
+     // are closeable; safe to call more than once
+     @Override
+     public void close() {
+         List<Subscription> stopping;
+         synchronized (this) {
+             if (closed) {
+                 return;
+             }
+             closed = true;
+             notifyAll();
+             stopping = new ArrayList<>(subscriptions);
+         }
+         for (Subscription subscription : stopping) {
+             try {
+                 subscription.thread.join();
+                 if (subscription.subscriber instanceof Closeable) {
+                     ((Closeable) subscription.subscriber).close();
+                 }
+             } catch (IOException e) {
+                 e.printStackTrace();
+             } catch (InterruptedException e) {
+                 Thread.currentThread().interrupt();
+                 return;
+             }
+         }
+     }
+ }
+ 
+ // Class appending change events to claims.changes, one JSON object per line, for consumers that tail it
+ // Each batch is written with one write and forced to disk. The file only grows and sequence numbers
+ // increase line by line, so a consumer resumes from the last sequence it processed by binary search.
+ class ClaimChangeFileSink implements ClaimChangeFeed.Subscriber, Closeable {
+     static final String CHANGES_FILE = "claims.changes";
+     private static final String SEQUENCE_PREFIX = "{\"sequence\":";
+ 
+     private static final ClaimMetrics.Histogram WRITE = ClaimMetrics.timer("changes.file.write");
+ 
+     private final FileChannel channel;
+     private final StringBuilder pending = new StringBuilder(4096);
+ 
+     public ClaimChangeFileSink(String fileName) throws IOException {
+         this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+     }
+ 
+     // Method to open a feed whose sequence numbers continue those of the given file, with the file subscribed
+     static ClaimChangeFeed openFeed(String fileName) {
+         try {
+             ClaimChangeFeed feed = new ClaimChangeFeed(lastSequence(fileName) + 1, ClaimChangeFeed.DEFAULT_CAPACITY);
+             feed.subscribe("file", new ClaimChangeFileSink(fileName));
+             return feed;
+         } catch (IOException e) {
+             throw new UncheckedIOException("Unable to open change file", e);
+         }
+     }
+ 
+     @Override
+     public void onEvent(ClaimChangeEvent event) {
+         pending.append(event.toJson()).append('\n');
+     }
+ 
+     @Override
+     public void endOfBatch() throws IOException {
+         if (pending.length() == 0) {
+             return;
+         }
+         long start = ClaimMetrics.start();
+         ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(pending));
+         pending.setLength(0);
+         while (bytes.hasRemaining()) {
+             channel.write(bytes);
+         }
+         channel.force(false);
+         WRITE.stop(start);
+     }
+ 
+     @Override
+     public void close() throws IOException {
+         endOfBatch();
+         channel.close();
+     }
+ 
+     // Method returning the sequence number of the last complete event in the file, or 0 if there is none
+     static long lastSequence(String fileName) throws IOException {
+         Path path = Paths.get(fileName);
+         if (!Files.exists(path)) {
+             return 0;
+         }
+         try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+             ByteBuffer probe = ByteBuffer.allocate(4096);
+             long end = lastNewline(channel, 0, channel.size(), probe);
+             return end < 0 ? 0 : sequenceAt(channel, lastNewline(channel, 0, end, probe) + 1, probe);
+         }
+     }
+ 
+     // Method to find the offset of the first event with a sequence number of at least fromSequence
+     static long offsetOf(String fileName, long fromSequence) throws IOException {
+         try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+             ByteBuffer probe = ByteBuffer.allocate(4096);
+             // Every line before low has a smaller sequence number and the line at high, if any, does not
+             long low = 0;
+             long high = lastNewline(channel, 0, channel.size(), probe) + 1;
+             while (high - low > probe.capacity()) {
+                 long middle = BufferedLineReader.nextLineStart(channel, (low + high) >>> 1, high, probe);
+                 if (middle >= high) {
+                     break;
+                 }
+                 if (sequenceAt(channel, middle, probe) < fromSequence) {
+                     low = middle;
+                 } else {
+                     high = middle;
+                 }
+             }
+             while (low < high && sequenceAt(channel, low, probe) < fromSequence) {
+                 low = BufferedLineReader.nextLineStart(channel, low + 1, high, probe);
+             }
+             return low;
+         }
+     }
+ 
+     // Method to pass every complete line from the given offset to the consumer,
+     // returns the offset to continue from once the file has grown
+     static long readFrom(String fileName, long offset, Consumer<String> consumer) throws IOException {
+         Path path = Paths.get(fileName);
+         long end;
+         try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+             end = lastNewline(channel, offset, channel.size(), ByteBuffer.allocate(4096)) + 1;
+         }
+         if (end <= offset) {
+             return offset; // nothing complete yet; a line being appended is left for the next call
+         }
+         try (BufferedLineReader reader = new BufferedLineReader(path, offset, end)) {
+             FieldTokenizer fields = new FieldTokenizer();
+             while (reader.next(fields)) {
+                 consumer.accept(fields.line());
+             }
+         }
+         return end;
+     }
+ 
+     // Method to find the last '\n' in [from, to), returns from - 1 if there is none
+     private static long lastNewline(FileChannel channel, long from, long to, ByteBuffer probe) throws IOException {
+         long end = to;
+         while (end > from) {
+             int length = (int) Math.min(probe.capacity(), end - from);
+             probe.clear().limit(length);
+             channel.read(probe, end - length);
+             for (int i = length - 1; i >= 0; i--) {
+                 if (probe.get(i) == '\n') {
+                     return end - length + i;
+                 }
+             }
+             end -= length;
+         }
+         return from - 1;
+     }
+ 
+     private static long sequenceAt(FileChannel channel, long offset, ByteBuffer probe) throws IOException {
+         probe.clear().limit(SEQUENCE_PREFIX.length() + 20);
+         channel.read(probe, offset);
+         long sequence = 0;
+         for (int i = SEQUENCE_PREFIX.length(); i < probe.position(); i++) {
+             int digit = probe.get(i) - '0';
+             if (digit < 0 || digit > 9) {
+                 break;
+             }
+             sequence = sequence * 10 + digit;
+         }
+         return sequence;
+     }
+ }
+ 
+ // Class keeping every revision of the claims changed since history was first recorded, in claims.history
+ // A revision stores only the fields that differ from the revision before it, except that every
+ // CHECKPOINT_INTERVAL-th revision of a claim stores all of them, so rebuilding any revision reads at most
+ // CHECKPOINT_INTERVAL records. A claim's state before its first change is written with that change,
+ // so claims that never change take no space: the claim book holds their only version. The file only
+ // grows; the times and offsets of each claim's revisions are indexed in memory when it is opened.
+ class ClaimHistory implements ClaimChangeFeed.Subscriber, Closeable {
+     static final String HISTORY_FILE = "claims.history";
+     static final int CHECKPOINT_INTERVAL = 16;
+ 
+     private static final int BUFFER_SIZE = 64 * 1024;
+     private static final int FIRST_READ = 512; // most records are read with one positional read
+     private static final int NO_DATE = Integer.MIN_VALUE;
+     private static final long SINCE_START = Long.MIN_VALUE; // time of a state from before history was kept
+     private static final ClaimStatus[] STATUSES = ClaimStatus.values();
+ 
+     // Records are [int length][byte kind][long time][string id] followed by nothing for ADDED and DELETED,
+     // [int changed fields][changed fields] for UPDATED, [int changed fields][all fields] for CHECKPOINT
+     // and [all fields] for BASELINE
+     private static final byte ADDED = 1;
+     private static final byte UPDATED = 2;
+     private static final byte CHECKPOINT = 3;
+     private static final byte BASELINE = 4; // the state before the first update or delete, dated when it began
+     private static final byte DELETED = 5;
+ 
+     // Field bits, in the order the fields are stored
+     private static final int CLAIM_DATE = 1;
+     private static final int CARD_NUMBER = 1 << 1;
+     private static final int EXAM_DATE = 1 << 2;
+     private static final int DOCUMENTS = 1 << 3;
+     private static final int CLAIM_AMOUNT = 1 << 4;
+     private static final int STATUS = 1 << 5;
+     private static final int BANKING_INFO = 1 << 6;
+     private static final int FULL_NAME = 1 << 7;
+     private static final int ALL_FIELDS = (1 << 8) - 1;
+     private static final String[] FIELD_NAMES = {
+             "claim date", "card number", "exam date", "documents", "amount", "status", "banking info", "full name"};
+ 
+     private static final ClaimMetrics.Histogram WRITE = ClaimMetrics.timer("history.write");
+     private static final ClaimMetrics.Histogram AS_OF = ClaimMetrics.timer("history.as.of");
+ 
+     private final FileChannel channel; // null when reading a history that has not been started
+     // Claim id to the time it was added while that is its only revision, otherwise to its Revisions
+     private final Map<String, Object> revisions = new HashMap<>();
+     private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+     private final DataOutputStream recordOut = new DataOutputStream(record);
+     private final ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+     private long written; // bytes of complete records in the file
+ 
+     // Times, kinds and file offsets of one claim's revisions, oldest first
+     private static final class Revisions {
+         long[] times = new long[4];
+         long[] offsets = new long[4];
+         byte[] kinds = new byte[4];
+         int count;
+ 
+         void add(long time, byte kind, long offset) {
+             if (count == times.length) {
+                 times = Arrays.copyOf(times, count * 2);
+                 offsets = Arrays.copyOf(offsets, count * 2);
+                 kinds = Arrays.copyOf(kinds, count * 2);
+             }
+             times[count] = time;
+             offsets[count] = offset;
+             kinds[count] = kind;
+             count++;
+         }
+ 
+         // Method returning the index of the last revision at or before the given time, or -1 if there is none
+         int indexAt(long time) {
+             int low = 0;
+             int high = count;
+             while (low < high) {
+                 int middle = (low + high) >>> 1;
+                 if (times[middle] <= time) {
+                     low = middle + 1;
+                 } else {
+                     high = middle;
+                 }
+             }
+             return low - 1;
+         }
+ 
+         // Method returning the index of the last revision holding every field
+         int lastFull() {
+             int index = count - 1;
+             while (index >= 0 && kinds[index] != CHECKPOINT && kinds[index] != BASELINE) {
+                 index--;
+             }
+             return index;
+         }
+     }
+ 
+     // Fields of one claim while a revision is rebuilt from a full record and the deltas after it
+     private static final class Fields {
+         Date claimDate;
+         long cardNumber;
+         Date examDate;
+         List<String> documents = Collections.emptyList();
+         double claimAmount;
+         ClaimStatus status;
+         ReceiverBankingInfo bankingInfo;
+         String fullName;
+ 
+         void read(ByteBuffer buffer, int fields) {
+             if ((fields & CLAIM_DATE) != 0) {
+                 claimDate = fromDay(buffer.getInt());
+             }
+             if ((fields & CARD_NUMBER) != 0) {
+                 cardNumber = buffer.getLong();
+             }
+             if ((fields & EXAM_DATE) != 0) {
+                 examDate = fromDay(buffer.getInt());
+             }
+             if ((fields & DOCUMENTS) != 0) {
+                 int documentCount = buffer.getInt();
+                 documents = new ArrayList<>(documentCount);
+                 for (int i = 0; i < documentCount; i++) {
+                     documents.add(RecordStrings.read(buffer));
+                 }
+             }
+             if ((fields & CLAIM_AMOUNT) != 0) {
+                 claimAmount = buffer.getDouble();
+             }
+             if ((fields & STATUS) != 0) {
+                 status = STATUSES[buffer.get()];
+             }
+             if ((fields & BANKING_INFO) != 0) {
+                 bankingInfo = buffer.get() != 0
+                         ? new ReceiverBankingInfo(RecordStrings.read(buffer), RecordStrings.read(buffer), RecordStrings.read(buffer))
+                         : null;
+             }
+             if ((fields & FULL_NAME) != 0) {
+                 fullName = RecordStrings.read(buffer);
+             }
+         }
+ 
+         // Method to format the value of one field for the revision list
+         String format(int field) {
+             switch (field) {
+                 case CLAIM_DATE:
+                     return claimDate == null ? "none" : ClaimDates.format(claimDate);
+                 case CARD_NUMBER:
+                     return Long.toString(cardNumber);
+                 case EXAM_DATE:
+                     return examDate == null ? "none" : ClaimDates.format(examDate);
+                 case DOCUMENTS:
+                     return documents.toString();
+                 case CLAIM_AMOUNT:
+                     return String.format("$%.2f", claimAmount);
+                 case STATUS:
+                     return String.valueOf(status);
+                 case BANKING_INFO:
+                     return bankingInfo == null ? "none"
+                             : bankingInfo.getBankName() + " / " + bankingInfo.getAccountName() + " / " + bankingInfo.getAccountNumber();
+                 default:
+                     return fullName;
+             }
+         }
+ 
+         Claim toClaim(String id) {
+             return new Claim(id, claimDate, cardNumber, examDate, documents, claimAmount, status, bankingInfo, fullName);
+         }
+     }
+ 
+     private ClaimHistory(Path path, boolean writable) throws IOException {
+         if (!writable && !Files.exists(path)) {
+             this.channel = null;
+             return;
+         }
+         this.channel = writable
+                 ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                 : FileChannel.open(path, StandardOpenOption.READ);
+         written = loadIndex(path, channel.size());
+         if (writable && written < channel.size()) {
+             channel.truncate(written); // a record cut short when the last run ended
+         }
+     }
+ 
+     // Method to open the history for recording, to be subscribed to the change feed
+     static ClaimHistory open(String fileName) {
+         try {
+             return new ClaimHistory(Paths.get(fileName), true);
+         } catch (IOException e) {
+             throw new UncheckedIOException("Unable to open claim history", e);
+         }
+     }
+ 
+     // Method to open the history for queries only, leaving a file that another process appends to untouched
+     static ClaimHistory read(String fileName) throws IOException {
+         return new ClaimHistory(Paths.get(fileName), false);
+     }
+ 
+     // Method to read an as-of time: an instant such as 2024-05-01T12:00:00Z, or a date meaning the end of that day
+     static long parseTime(String text) {
+         if (text.length() > 10) {
+             return Instant.parse(text).toEpochMilli();
+         }
+         return ClaimDates.fromEpochDay(ClaimDates.toEpochDay(ClaimDates.parse(text)) + 1).getTime() - 1;
+     }
+ 
+     @Override
+     public synchronized void onEvent(ClaimChangeEvent event) throws IOException {
+         String id = event.getClaimId();
+         if (event.type == ClaimChangeEvent.Type.ADDED) {
+             append(id, ADDED, event.timestamp, null, 0);
+             return;
+         }
+         Revisions claimRevisions = revisionsOf(id);
+         // Revisions must stay in time order for the binary search, even if the clock was set back
+         long time = claimRevisions.count == 0 ? event.timestamp : Math.max(event.timestamp, claimRevisions.times[claimRevisions.count - 1]);
+         byte last = claimRevisions.count == 0 ? 0 : claimRevisions.kinds[claimRevisions.count - 1];
+         if (last == 0 || last == ADDED || last == DELETED) {
+             append(id, BASELINE, last == 0 ? SINCE_START : claimRevisions.times[claimRevisions.count - 1], event.before, ALL_FIELDS);
+         }
+         if (event.type == ClaimChangeEvent.Type.DELETED) {
+             append(id, DELETED, time, null, 0);
+         } else {
+             boolean checkpoint = claimRevisions.count - claimRevisions.lastFull() >= CHECKPOINT_INTERVAL;
+             append(id, checkpoint ? CHECKPOINT : UPDATED, time, event.after, changedFields(event.before, event.after));
+         }
+     }
+ 
+     @Override
+     public synchronized void endOfBatch() throws IOException {
+         if (pending.position() == 0) {
+             return;
+         }
+         long start = ClaimMetrics.start();
+         flush();
+         channel.force(false);
+         WRITE.stop(start);
+     }
+ 
+     @Override
+     public synchronized void close() throws IOException {
+         if (channel != null) {
+             endOfBatch();
+             channel.close();
+         }
+     }
+ 
+     // Method returning the number of claims with recorded revisions
+     public synchronized int trackedClaims() {
+         return revisions.size();
+     }
+ 
+     // Method returning the claim as it was at the given time, or null if it did not exist then;
+     // current is the claim with this id in the book now, or null if there is none
+     public synchronized Claim asOf(String id, long time, Claim current) throws IOException {
+         Object value = revisions.get(id);
+         if (value == null) {
+             return current; // unchanged since history began
+         }
+         long start = ClaimMetrics.start();
+         flush();
+         Revisions claimRevisions = toRevisions(value);
+         Claim claim = rebuild(id, claimRevisions, claimRevisions.indexAt(time), current);
+         AS_OF.stop(start);
+         return claim;
+     }
+ 
+     // Method returning every claim as it was at the given time, given the book now;
+     // claims with recorded revisions are rebuilt in parallel
+     public synchronized List<Claim> bookAsOf(long time, Collection<Claim> current) throws IOException {
+         flush();
+         List<Claim> book = new ArrayList<>(current.size());
+         Map<String, Claim> changed = new HashMap<>();
+         for (Claim claim : current) {
+             if (revisions.containsKey(claim.getId())) {
+                 changed.put(claim.getId(), claim);
+             } else {
+                 book.add(claim);
+             }
+         }
+         try {
+             revisions.entrySet().parallelStream()
+                     .map(entry -> {
+                         try {
+                             Revisions claimRevisions = toRevisions(entry.getValue());
+                             return rebuild(entry.getKey(), claimRevisions, claimRevisions.indexAt(time), changed.get(entry.getKey()));
+                         } catch (IOException e) {
+                             throw new UncheckedIOException(e);
+                         }
+                     })
+                     .filter(Objects::nonNull)
+                     .forEachOrdered(book::add);
+         } catch (UncheckedIOException e) {
+             throw e.getCause();
+         }
+         return book;
+     }
+ 
+     // Method to print when a claim was added, updated and deleted, with the old and new value of every field
+     // an update changed; returns false if the claim has no recorded revisions
+     public synchronized boolean printRevisions(String id, PrintWriter out) throws IOException {
+         Object value = revisions.get(id);
+         if (value == null) {
+             return false;
+         }
+         flush();
+         Revisions claimRevisions = toRevisions(value);
+         Fields fields = new Fields();
+         for (int i = 0; i < claimRevisions.count; i++) {
+             byte kind = claimRevisions.kinds[i];
+             String time = claimRevisions.times[i] == SINCE_START ? "before history" : Instant.ofEpochMilli(claimRevisions.times[i]).toString();
+             if (kind == ADDED) {
+                 out.printf("%-24s  added%n", time);
+             } else if (kind == DELETED) {
+                 out.printf("%-24s  deleted%n", time);
+             } else {
+                 ByteBuffer buffer = readBody(claimRevisions.offsets[i]);
+                 if (kind == BASELINE) {
+                     fields.read(buffer, ALL_FIELDS);
+                     if (claimRevisions.times[i] == SINCE_START) {
+                         out.printf("%-24s  %s, %s, %s%n", time, fields.format(CLAIM_AMOUNT), fields.format(STATUS), fields.format(BANKING_INFO));
+                     }
+                     continue;
+                 }
+                 int changed = buffer.getInt();
+                 StringBuilder changes = new StringBuilder();
+                 String[] before = new String[FIELD_NAMES.length];
+                 for (int field = 0; field < FIELD_NAMES.length; field++) {
+                     if ((changed & 1 << field) != 0) {
+                         before[field] = fields.format(1 << field);
+                     }
+                 }
+                 fields.read(buffer, kind == CHECKPOINT ? ALL_FIELDS : changed);
+                 for (int field = 0; field < FIELD_NAMES.length; field++) {
+                     if (before[field] != null) {
+                         changes.append(changes.length() == 0 ? "" : ", ").append(FIELD_NAMES[field]).append(' ')
+                                 .append(before[field]).append(" -> ").append(fields.format(1 << field));
+                     }
+                 }
+                 out.printf("%-24s  updated  %s%n", time, changes.length() == 0 ? "no fields changed" : changes);
+             }
+         }
+         return true;
+     }
+ 
+     // Method to rebuild the revision at index from the last full record before it and the deltas after that
+     private Claim rebuild(String id, Revisions claimRevisions, int index, Claim current) throws IOException {
+         if (index < 0 || claimRevisions.kinds[index] == DELETED) {
+             return null;
+         }
+         if (claimRevisions.kinds[index] == ADDED) {
+             return current; // not changed since it was added
+         }
+         int first = index;
+         while (claimRevisions.kinds[first] != CHECKPOINT && claimRevisions.kinds[first] != BASELINE) {
+             first--;
+         }
+         Fields fields = new Fields();
+         for (int i = first; i <= index; i++) {
+             ByteBuffer buffer = readBody(claimRevisions.offsets[i]);
+             byte kind = claimRevisions.kinds[i];
+             int changed = kind == BASELINE ? ALL_FIELDS : buffer.getInt();
+             fields.read(buffer, kind == UPDATED ? changed : ALL_FIELDS);
+         }
+         return fields.toClaim(id);
+     }
+ 
+     private Revisions revisionsOf(String id) {
+         Object value = revisions.get(id);
+         if (value instanceof Revisions) {
+             return (Revisions) value;
+         }
+         Revisions claimRevisions = value == null ? new Revisions() : toRevisions(value);
+         revisions.put(id, claimRevisions);
+         return claimRevisions;
+     }
+ 
+     private static Revisions toRevisions(Object value) {
+         if (value instanceof Revisions) {
+             return (Revisions) value;
+         }
+         Revisions claimRevisions = new Revisions();
+         claimRevisions.add((Long) value, ADDED, -1); // an added record has no fields to read back
+         return claimRevisions;
+     }
+ 
+     private void index(String id, byte kind, long time, long offset) {
+         if (kind == ADDED && !revisions.containsKey(id)) {
+             revisions.put(id, time);
+         } else {
+             revisionsOf(id).add(time, kind, offset);
+         }
+     }
+ 
+     // Method to index every complete record of the file, returns the end of the last one
+     private long loadIndex(Path path, long size) throws IOException {
+         long offset = 0;
+         try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE))) {
+             byte[] body = new byte[256];
+             while (offset + 4 <= size) {
+                 int length = in.readInt();
+                 if (length < 0 || offset + 4 + length > size) {
+                     break;
+                 }
+                 if (length > body.length) {
+                     body = new byte[Math.max(length, body.length * 2)];
+                 }
+                 in.readFully(body, 0, length);
+                 ByteBuffer buffer = ByteBuffer.wrap(body, 0, length);
+                 byte kind = buffer.get();
+                 long time = buffer.getLong();
+                 index(RecordStrings.read(buffer), kind, time, offset);
+                 offset += 4 + length;
+             }
+         }
+         return offset;
+     }
+ 
+     private void append(String id, byte kind, long time, Claim claim, int changed) throws IOException {
+         record.reset();
+         recordOut.writeInt(0);
+         recordOut.writeByte(kind);
+         recordOut.writeLong(time);
+         RecordStrings.write(recordOut, id);
+         if (kind == UPDATED || kind == CHECKPOINT) {
+             recordOut.writeInt(changed);
+         }
+         if (kind != ADDED && kind != DELETED) {
+             writeFields(claim, kind == UPDATED ? changed : ALL_FIELDS);
+         }
+         byte[] bytes = record.toByteArray();
+         ByteBuffer.wrap(bytes).putInt(0, bytes.length - 4);
+ 
+         long offset = written + pending.position();
+         if (bytes.length > pending.remaining()) {
+             flush();
+         }
+         if (bytes.length > pending.capacity()) {
+             writeFully(ByteBuffer.wrap(bytes));
+         } else {
+             pending.put(bytes);
+         }
+         index(id, kind, time, offset);
+     }
+ 
+     private void writeFields(Claim claim, int fields) throws IOException {
+         if ((fields & CLAIM_DATE) != 0) {
+             recordOut.writeInt(toDay(claim.getClaimDate()));
+         }
+         if ((fields & CARD_NUMBER) != 0) {
+             recordOut.writeLong(claim.getCardNumber());
+         }
+         if ((fields & EXAM_DATE) != 0) {
+             recordOut.writeInt(toDay(claim.getExamDate()));
+         }
+         if ((fields & DOCUMENTS) != 0) {
+             List<String> documents = claim.getDocuments();
+             recordOut.writeInt(documents.size());
+             for (String document : documents) {
+                 RecordStrings.write(recordOut, document);
+             }
+         }
+         if ((fields & CLAIM_AMOUNT) != 0) {
+             recordOut.writeDouble(claim.getClaimAmount());
+         }
+         if ((fields & STATUS) != 0) {
+             recordOut.writeByte(claim.getStatus().ordinal());
+         }
+         if ((fields & BANKING_INFO) != 0) {
+             ReceiverBankingInfo bankingInfo = claim.getReceiverBankingInfo();
+             recordOut.writeBoolean(bankingInfo != null);
+             if (bankingInfo != null) {
+                 RecordStrings.write(recordOut, bankingInfo.getBankName());
+                 RecordStrings.write(recordOut, bankingInfo.getAccountName());
+                 RecordStrings.write(recordOut, bankingInfo.getAccountNumber());
+             }
+         }
+         if ((fields & FULL_NAME) != 0) {
+             RecordStrings.write(recordOut, claim.getFullName());
+         }
+     }
+ 
+     // Method returning the bits of the fields that differ between two versions of a claim
+     private static int changedFields(Claim before, Claim after) {
+         int changed = 0;
+         if (!Objects.equals(before.getClaimDate(), after.getClaimDate())) {
+             changed |= CLAIM_DATE;
+         }
+         if (before.getCardNumber() != after.getCardNumber()) {
+             changed |= CARD_NUMBER;
+         }
+         if (!Objects.equals(before.getExamDate(), after.getExamDate())) {
+             changed |= EXAM_DATE;
+         }
+         if (!Objects.equals(before.getDocuments(), after.getDocuments())) {
+             changed |= DOCUMENTS;
+         }
+         if (Double.compare(before.getClaimAmount(), after.getClaimAmount()) != 0) {
+             changed |= CLAIM_AMOUNT;
+         }
+         if (before.getStatus() != after.getStatus()) {
+             changed |= STATUS;
+         }
+         ReceiverBankingInfo oldInfo = before.getReceiverBankingInfo();
+         ReceiverBankingInfo newInfo = after.getReceiverBankingInfo();
+         if (oldInfo == null || newInfo == null ? oldInfo != newInfo
+                 : !Objects.equals(oldInfo.getBankName(), newInfo.getBankName())
+                 || !Objects.equals(oldInfo.getAccountName(), newInfo.getAccountName())
+                 || !Objects.equals(oldInfo.getAccountNumber(), newInfo.getAccountNumber())) {
+             changed |= BANKING_INFO;
+         }
+         if (!Objects.equals(before.getFullName(), after.getFullName())) {
+             changed |= FULL_NAME;
+         }
+         return changed;
+     }
+ 
+     // Method to read a record and return it positioned after its kind, time and id
+     private ByteBuffer readBody(long offset) throws IOException {
+         ByteBuffer buffer = ByteBuffer.allocate(FIRST_READ);
+         readFully(buffer, offset, Math.min(FIRST_READ, written - offset));
+         int length = buffer.getInt(0);
+         if (length + 4 > buffer.capacity()) {
+             buffer = ByteBuffer.allocate(length + 4);
+             readFully(buffer, offset, length + 4);
+         }
+         buffer.position(4 + 1 + 8);
+         RecordStrings.read(buffer);
+         return buffer;
+     }
+ 
+     private static int toDay(Date date) {
+         return date == null ? NO_DATE : (int) ClaimDates.toEpochDay(date);
+     }
+ 
+     private static Date fromDay(int epochDay) {
+         return epochDay == NO_DATE ? null : ClaimDates.fromEpochDay(epochDay);
+     }
+ 
+     private void flush() throws IOException {
+         if (pending.position() == 0) {
+             return;
+         }
+         pending.flip();
+         writeFully(pending);
+         pending.clear();
+     }
+ 
+     private void writeFully(ByteBuffer buffer) throws IOException {
+         while (buffer.hasRemaining()) {
+             written += channel.write(buffer, written);
+         }
+     }
+ 
+     private void readFully(ByteBuffer buffer, long position, long length) throws IOException {
+         buffer.limit((int) length);
+         while (buffer.hasRemaining()) {
+             if (channel.read(buffer, position + buffer.position()) < 0) {
+                 throw new EOFException("Claim history truncated at " + position);
+             }
+         }
+     }
+ }
+ 
+ // Class implementing claim process management on top of in-memory hash indexes
+ // Claims are keyed by id, with secondary indexes on card number, normalized full name and status
+ class ClaimRepository implements ClaimProcessManager {
+     private final Map<String, Claim> claimsById = new LinkedHashMap<>();
+     private final Map<Long, Map<String, Claim>> claimsByCardNumber = new HashMap<>();
+     private final Map<String, Map<String, Claim>> claimsByFullName = new HashMap<>();
+     private final Map<ClaimStatus, Map<String, Claim>> claimsByStatus = new EnumMap<>(ClaimStatus.class);
+     private final List<ClaimChangeListener> listeners = new ArrayList<>();
+ 
+     public ClaimRepository() {
+     }
+ 
+     public ClaimRepository(Collection<Claim> claims) {
+         for (Claim claim : claims) {
+             addClaim(claim);
+         }
+     }
+ 
+     @Override
+     public void addClaim(Claim claim) {
+         if (claimsById.containsKey(claim.getId())) {
+             throw new IllegalArgumentException("Claim ID already exists: " + claim.getId());
+         }
+         claimsById.put(claim.getId(), claim);
+         index(claim);
+         for (ClaimChangeListener listener : listeners) {
+             listener.claimAdded(claim);
+         }
+     }
+ 
+     @Override
+     public void updateClaim(String id, Claim updatedClaim) {
+         if (!id.equals(updatedClaim.getId())) {
+             throw new IllegalArgumentException("Updated claim must keep ID " + id);
+         }
+         Claim existingClaim = claimsById.get(id);
+         if (existingClaim == null) {
+             throw new IllegalArgumentException("Claim not found: " + id);
+         }
+         ClaimStatus.checkTransition(id, existingClaim.getStatus(), updatedClaim.getStatus());
+         unindex(existingClaim);
+         claimsById.put(id, updatedClaim);
+         index(updatedClaim);
+         for (ClaimChangeListener listener : listeners) {
+             listener.claimUpdated(existingClaim, updatedClaim);
+         }
+     }
+ 
+     @Override
+     public void deleteClaim(String id) {
+         Claim existingClaim = claimsById.remove(id);
+         if (existingClaim == null) {
+             throw new IllegalArgumentException("Claim not found: " + id);
+         }
+         unindex(existingClaim);
+         for (ClaimChangeListener listener : listeners) {
+             listener.claimDeleted(existingClaim);
+         }
+     }
+ 
+     // Method to register a component that must follow every add, update and delete
+     public void addListener(ClaimChangeListener listener) {
+         listeners.add(listener);
+     }
+ 
+     @Override
+     public Claim getClaimById(String id) {
+         long start = ClaimMetrics.start();
+         Claim claim = claimsById.get(id);
+         ClaimMetrics.LOOKUP_CLAIM_BY_ID.stop(start);
+         return claim;
+     }
+ 
+     @Override
+     public List<Claim> getAllClaims() {
+         return new ArrayList<>(claimsById.values());
+     }
+ 
+     // Method returning a read-only live view of every claim, for scans that do not need a copy
+     public Collection<Claim> viewAllClaims() {
+         return Collections.unmodifiableCollection(claimsById.values());
+     }
+ 
+     // Secondary index lookups, returned as read-only views in insertion order
+     public Collection<Claim> getClaimsByCardNumber(long cardNumber) {
+         return view(claimsByCardNumber.get(cardNumber));
+     }
+ 
+     public Collection<Claim> getClaimsByFullName(String fullName) {
+         long start = ClaimMetrics.start();
+         Map<String, Claim> claims = claimsByFullName.get(CustomerDirectory.normalizeName(fullName));
+         ClaimMetrics.LOOKUP_CLAIMS_BY_NAME.stop(start);
+         return view(claims);
+     }
+ 
+     public Collection<Claim> getClaimsByStatus(ClaimStatus status) {
+         return view(claimsByStatus.get(status));
+     }
+ 
+     public int size() {
+         return claimsById.size();
+     }
+ 
+     private void index(Claim claim) {
+         claimsByCardNumber.computeIfAbsent(claim.getCardNumber(), key -> new LinkedHashMap<>()).put(claim.getId(), claim);
+         claimsByFullName.computeIfAbsent(CustomerDirectory.normalizeName(claim.getFullName()), key -> new LinkedHashMap<>()).put(claim.getId(), claim);
+         claimsByStatus.computeIfAbsent(claim.getStatus(), key -> new LinkedHashMap<>()).put(claim.getId(), claim);
+     }
+ 
+     private void unindex(Claim claim) {
+         removeFrom(claimsByCardNumber, claim.getCardNumber(), claim.getId());
+         removeFrom(claimsByFullName, CustomerDirectory.normalizeName(claim.getFullName()), claim.getId());
+         removeFrom(claimsByStatus, claim.getStatus(), claim.getId());
+     }
+ 
+     // Method to remove a claim from one secondary index, dropping empty buckets
+     private static <K> void removeFrom(Map<K, Map<String, Claim>> index, K key, String id) {
+         Map<String, Claim> bucket = index.get(key);
+         if (bucket != null) {
+             bucket.remove(id);
+             if (bucket.isEmpty()) {
+                 index.remove(key);
+             }
+         }
+     }
+ 
+     private static Collection<Claim> view(Map<String, Claim> bucket) {
+         return bucket == null ? Collections.emptyList() : Collections.unmodifiableCollection(bucket.values());
+     }
+ }
+ 
+ // Class responsible for managing claims
+ class ClaimManager {
+     private static final int FIND_LIMIT = 50; // claims listed by a range search
+ 
+     // Method to parse date string into Date object
+     private static Date parseDate(String dateString) {
+         try {
+             return ClaimDates.parse(dateString);
+         } catch (DateTimeException e) {
+             System.err.println("Error parsing date: " + e.getMessage());
+             return null;
+         }
+     }
+ 
+     // Method to add a new claim
+     public static void addClaim(Scanner scanner, ClaimRepository repository, CustomerDirectory customers, ClaimJournal journal,
+                                 CardRegistry cards, ClaimFraudDetector fraud) {
+         // Prompt for customer details
+         System.out.println("Enter customer details:");
+         System.out.print("Full Name: ");
+         String fullName = scanner.nextLine();
+         System.out.print("Age: ");
+         int age = Integer.parseInt(scanner.nextLine());
+         System.out.print("Gender: ");
+         String gender = scanner.nextLine();
+         System.out.print("Address: ");
+         String address = scanner.nextLine();
+         System.out.print("Phone Number: ");
+         String phoneNumber = scanner.nextLine();
+ 
+         Customer customer = new Customer(fullName, age, gender, address, phoneNumber);
+ 
+         // Prompt for claim details
+         System.out.println("Enter claim details:");
+         System.out.print("Enter claim ID: ");
+         String id = scanner.nextLine();
+         if (repository.getClaimById(id) != null) {
+             System.out.println("Claim ID already exists.");
+             return;
+         }
+         System.out.print("Enter claim date (YYYY-MM-DD): ");
+         Date claimDate = parseDate(scanner.nextLine());
+         System.out.print("Enter card number: ");
+         long cardNumber = Long.parseLong(scanner.nextLine());
+         System.out.print("Enter exam date (YYYY-MM-DD): ");
+         Date examDate = parseDate(scanner.nextLine());
+         System.out.print("Enter claim amount: ");
+         double claimAmount = Double.parseDouble(scanner.nextLine());
+         System.out.print("Enter status (NEW, PROCESSING, DONE): ");
+         ClaimStatus status = ClaimStatus.valueOf(scanner.nextLine());
+         System.out.print("Enter bank name: ");
+         String bankName = scanner.nextLine();
+         System.out.print("Enter account name: ");
+         String accountName = scanner.nextLine();
+         System.out.print("Enter account number: ");
+         String accountNumber = scanner.nextLine();
+         System.out.print("Enter number of documents: ");
+         int numDocuments = Integer.parseInt(scanner.nextLine());
+         List<String> documents = new ArrayList<>();
+         for (int i = 0; i < numDocuments; i++) {
+             System.out.print("Enter document name: ");
+             documents.add(scanner.nextLine());
+         }
+         ReceiverBankingInfo receiverBankingInfo = new ReceiverBankingInfo(bankName, accountName, accountNumber);
+         // Create Claim object and add it together with its customer
+         Claim claim = new Claim(id, claimDate, cardNumber, examDate, documents, claimAmount, status, receiverBankingInfo, fullName);
+         // Claims that could not be written to the journal or the claim files are rejected before the repository sees them
+         String invalid = BatchImporter.validate(claim);
+         if (invalid == null) {
+             invalid = BatchImporter.validate(customer);
+         }
+         if (invalid == null) {
+             invalid = cards.validate(claim);
+         }
+         if (invalid != null) {
+             System.out.println("Claim not added: " + invalid + ".");
+             return;
+         }
+         List<String> suspicions = fraud.check(claim);
+         customers.add(customer);
+         repository.addClaim(claim);
+         cards.register(claim);
+         System.out.println("Claim added successfully.");
+         for (String suspicion : suspicions) {
+             System.out.println("Warning: flagged for review, " + suspicion + ".");
+         }
+ 
+         // Record the new customer and claim in the journal
+         journal.logCustomerAdded(customer);
+         journal.logClaimAdded(claim);
+     }
+ 
+     // Method to update an existing claim
+     public static void updateClaim(Scanner scanner, ClaimRepository repository, ClaimJournal journal, CardRegistry cards) {
+         System.out.print("Enter claim ID to update: ");
+         String idToUpdate = scanner.nextLine();
+         Claim claimToUpdate = repository.getClaimById(idToUpdate);
+         if (claimToUpdate != null) {
+             // Prompt for new claim details
+             System.out.print("Enter new claim date (YYYY-MM-DD): ");
+             Date newClaimDate = parseDate(scanner.nextLine());
+             System.out.print("Enter new card number: ");
+             long newCardNumber = Long.parseLong(scanner.nextLine());
+             System.out.print("Enter new exam date (YYYY-MM-DD): ");
+             Date newExamDate = parseDate(scanner.nextLine());
+             System.out.print("Enter new claim amount: ");
+             double newClaimAmount = Double.parseDouble(scanner.nextLine());
+             System.out.print("Enter new status (NEW, PROCESSING, DONE): ");
+             ClaimStatus newStatus = ClaimStatus.valueOf(scanner.nextLine());
+             System.out.print("Enter new bank name: ");
+             String newBankName = scanner.nextLine();
+             System.out.print("Enter new account name: ");
+             String newAccountName = scanner.nextLine();
+             System.out.print("Enter new account number: ");
+             String newAccountNumber = scanner.nextLine();
+             System.out.print("Enter new number of documents: ");
+             int newNumDocuments = Integer.parseInt(scanner.nextLine());
+             List<String> newDocuments = new ArrayList<>();
+             for (int i = 0; i < newNumDocuments; i++) {
+                 System.out.print("Enter new document name: ");
+                 newDocuments.add(scanner.nextLine());
+             }
+             ReceiverBankingInfo newReceiverBankingInfo = new ReceiverBankingInfo(newBankName, newAccountName, newAccountNumber);
+ 
+             // Replace the claim so the repository can re-index the changed attributes
+             Claim updatedClaim = new Claim(idToUpdate, newClaimDate, newCardNumber, newExamDate, newDocuments,
+                     newClaimAmount, newStatus, newReceiverBankingInfo, claimToUpdate.getFullName());
+             String invalid = BatchImporter.validate(updatedClaim);
+             if (invalid == null) {
+                 invalid = cards.validate(updatedClaim);
+             }
+             if (invalid != null) {
+                 System.out.println("Claim not updated: " + invalid + ".");
+                 return;
+             }
+             try {
+                 repository.updateClaim(idToUpdate, updatedClaim);
+             } catch (IllegalStateException e) {
+                 System.out.println(e.getMessage() + ". Claims go from NEW to PROCESSING to DONE.");
+                 return;
+             }
+             cards.register(updatedClaim);
+ 
+             System.out.println("Claim updated successfully.");
+ 
+             // Record the updated claim in the journal
+             journal.logClaimUpdated(updatedClaim);
+         } else {
+             System.out.println("Claim not found.");
+         }
+     }
+ 
+     // Method to delete a claim
+     public static void deleteClaim(Scanner scanner, ClaimRepository repository, CustomerDirectory customers, ClaimJournal journal) {
+         System.out.print("Enter claim ID to delete: ");
+         String idToDelete = scanner.nextLine();
+         if (repository.getClaimById(idToDelete) == null) {
+             System.out.println("Claim not found.");
+             return;
+         }
+         List<Customer> removedCustomers = removeClaim(idToDelete, repository, customers);
+         System.out.println("Claim deleted successfully.");
+         journal.logClaimDeleted(idToDelete);
+         for (Customer customer : removedCustomers) {
+             journal.logCustomerRemoved(customer);
+             System.out.println("Customer '" + customer.getFullName() + "' removed as no associated claims exist.");
+         }
+     }
+ 
+     // Method to delete a claim and remove its customer if no other claims are associated with them,
+     // returns the removed customers
+     static List<Customer> removeClaim(String id, ClaimRepository repository, CustomerDirectory customers) {
+         Claim claimToDelete = repository.getClaimById(id);
+         repository.deleteClaim(id);
+         if (repository.getClaimsByFullName(claimToDelete.getFullName()).isEmpty()) {
+             return customers.removeByName(claimToDelete.getFullName());
+         }
+         return Collections.emptyList();
+     }
+ 
+     // Method to view all customers and their associated claims, one page at a time
+     public static void viewAllCustomersAndClaims(Scanner scanner, CustomerDirectory customers, ClaimRepository repository) {
+         PrintWriter out = CustomerClaimReport.consoleWriter();
+         CustomerClaimReport report = new CustomerClaimReport(customers, repository, CustomerClaimReport.Format.TEXT);
+         report.writeHeader(out);
+         while (report.hasMore()) {
+             report.writePage(out, CustomerClaimReport.PAGE_SIZE);
+             out.flush();
+             if (report.hasMore()) {
+                 System.out.print("-- Shown " + report.getWritten() + " of " + customers.size()
+                         + " customers. Press Enter for the next page or q to return to the menu: ");
+                 if (scanner.nextLine().trim().equalsIgnoreCase("q")) {
+                     break;
+                 }
+             }
+         }
+     }
+ 
+     // Method to find customers and claims by partial name, phone, address, document or account number
+     public static void search(Scanner scanner, ClaimSearch search) {
+         System.out.print("Enter search text (every word must match the start or end of a field word): ");
+         String query = scanner.nextLine();
+         long start = System.nanoTime();
+         List<Customer> customers = search.findCustomers(query, ClaimSearch.MAX_RESULTS);
+         List<Claim> claims = search.findClaims(query, ClaimSearch.MAX_RESULTS);
+         long elapsed = System.nanoTime() - start;
+         PrintWriter out = CustomerClaimReport.consoleWriter();
+         out.println("Customers:");
+         for (Customer customer : customers) {
+             out.println("\t" + customer.getFullName() + ", " + customer.getPhoneNumber() + ", " + customer.getAddress());
+         }
+         out.println("Claims:");
+         for (Claim claim : claims) {
+             out.println("\t" + claim.getId() + ", " + claim.getFullName() + ", card " + claim.getCardNumber() + ", account "
+                     + claim.getReceiverBankingInfo().getAccountNumber() + ", " + claim.getStatus() + ", documents " + claim.getDocuments());
+         }
+         if (customers.isEmpty() && claims.isEmpty()) {
+             out.println("\tNo matches.");
+         }
+         out.printf("(first %d of each shown, %.3f ms)%n", ClaimSearch.MAX_RESULTS, elapsed / 1e6);
+         out.flush();
+     }
+ 
+     // Method to list claims inside date and amount ranges, optionally limited to some statuses
+     public static void findClaims(Scanner scanner, ClaimRangeIndex ranges) {
+         System.out.println("Leave any value empty for no limit.");
+         ClaimRangeQuery query = new ClaimRangeQuery();
+         query.setClaimDateFrom(promptDay(scanner, "Claim date from (YYYY-MM-DD): "));
+         query.setClaimDateTo(promptDay(scanner, "Claim date to (YYYY-MM-DD): "));
+         query.setExamDateFrom(promptDay(scanner, "Exam date from (YYYY-MM-DD): "));
+         query.setExamDateTo(promptDay(scanner, "Exam date to (YYYY-MM-DD): "));
+         query.setMinAmount(promptAmount(scanner, "Minimum claim amount: "));
+         query.setMaxAmount(promptAmount(scanner, "Maximum claim amount: "));
+         System.out.print("Statuses, comma separated (NEW, PROCESSING, DONE): ");
+         for (String status : scanner.nextLine().split(",")) {
+             if (!status.trim().isEmpty()) {
+                 try {
+                     query.getStatuses().add(ClaimStatus.valueOf(status.trim().toUpperCase(Locale.ROOT)));
+                 } catch (IllegalArgumentException e) {
+                     System.out.println("Unknown status: " + status.trim());
+                     return;
+                 }
+             }
+         }
+ 
+         long start = System.nanoTime();
+         PrintWriter out = CustomerClaimReport.consoleWriter();
+         long[] shown = new long[1];
+         ranges.find(query).limit(FIND_LIMIT).forEach(claim -> {
+             out.println("\t" + claim.getId() + ", " + claim.getFullName() + ", claim date " + ClaimDates.format(claim.getClaimDate())
+                     + ", exam date " + ClaimDates.format(claim.getExamDate()) + ", $" + claim.getClaimAmount() + ", " + claim.getStatus());
+             shown[0]++;
+         });
+         long elapsed = System.nanoTime() - start;
+         ClaimMetrics.LOOKUP_RANGE.record(elapsed);
+         out.printf("%d claims shown (at most %d), %.3f ms%n", shown[0], FIND_LIMIT, elapsed / 1e6);
+         out.flush();
+     }
+ 
+     private static LocalDate promptDay(Scanner scanner, String prompt) {
+         System.out.print(prompt);
+         String text = scanner.nextLine().trim();
+         Date date = text.isEmpty() ? null : parseDate(text);
+         return date == null ? null : LocalDate.ofEpochDay(ClaimDates.toEpochDay(date));
+     }
+ 
+     private static Double promptAmount(Scanner scanner, String prompt) {
+         System.out.print(prompt);
+         String text = scanner.nextLine().trim();
+         return text.isEmpty() ? null : Double.valueOf(text);
+     }
+ 
+     // Method to view details of one customer and their associated claims
+     public static void viewOneCustomerAndClaim(Scanner scanner, CustomerDirectory customers, ClaimRepository repository, CardRegistry cards) {
+         System.out.print("Enter the full name of the customer to view: ");
+         String fullName = scanner.nextLine();
+         Collection<Customer> matches = customers.getByName(fullName);
+         if (matches.isEmpty()) {
+             System.out.println("Customer not found.");
+             return;
+         }
+         Customer customer = matches.iterator().next();
+         PrintWriter out = CustomerClaimReport.consoleWriter();
+         CustomerClaimReport.writeText(out, customer, repository.getClaimsByFullName(customer.getFullName()));
+         // A policy holder's dependents claim on their own cards, so the family total comes from the card index
+         CardRegistry.PolicyRollup rollup = cards.rollup(customer.getFullName(), repository);
+         if (rollup != null && !rollup.holder.getDependents().isEmpty()) {
+             rollup.printTo(out);
+         }
+         out.flush();
+     }
+ }
+ 
+ // Class rendering the customers and claims report into one buffered writer
+ // Customers are streamed from a cursor over the directory and their claims come from the
+ // name index, so only the page being rendered is held in memory
+ class CustomerClaimReport {
+     enum Format { TEXT, CSV, JSON }
+ 
+     static final int PAGE_SIZE = 200;
+     private static final String CSV_HEADER = "fullName,age,gender,address,phoneNumber,claimId,claimDate,cardNumber,"
+             + "examDate,claimAmount,status,bankName,accountName,accountNumber,documents";
+ 
+     private final ClaimRepository repository;
+     private final Format format;
+     private final Iterator<Customer> cursor;
+     private int written;
+ 
+     public CustomerClaimReport(CustomerDirectory customers, ClaimRepository repository, Format format) {
+         this.repository = repository;
+         this.format = format;
+         this.cursor = customers.getAll().iterator();
+     }
+ 
+     // Method to wrap the console in a large buffer; it is flushed, never closed
+     static PrintWriter consoleWriter() {
+         return new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024), false);
+     }
+ 
+     static Format formatFor(String fileName) {
+         String lowerCase = fileName.toLowerCase(Locale.ROOT);
+         if (lowerCase.endsWith(".csv")) {
+             return Format.CSV;
+         }
+         if (lowerCase.endsWith(".json")) {
+             return Format.JSON;
+         }
+         return Format.TEXT;
+     }
+ 
+     // Method to write the whole report to a file, format chosen by extension; returns the customer count
+     static int export(CustomerDirectory customers, ClaimRepository repository, String fileName) throws IOException {
+         long start = ClaimMetrics.start();
+         CustomerClaimReport report = new CustomerClaimReport(customers, repository, formatFor(fileName));
+         try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName), 64 * 1024))) {
+             report.writeHeader(out);
+             while (report.hasMore()) {
+                 report.writePage(out, PAGE_SIZE);
+             }
+             report.writeFooter(out);
+         }
+         ClaimMetrics.REPORT_EXPORT.stop(start);
+         return report.getWritten();
+     }
+ 
+     public boolean hasMore() {
+         return cursor.hasNext();
+     }
+ 
+     public int getWritten() {
+         return written;
+     }
+ 
+     public void writeHeader(PrintWriter out) {
+         switch (format) {
+             case TEXT:
+                 out.println("Viewing all customers and claims...");
+                 break;
+             case CSV:
+                 out.println(CSV_HEADER);
+                 break;
+             case JSON:
+                 out.print('[');
+                 break;
+         }
+     }
+ 
+     public void writeFooter(PrintWriter out) {
+         if (format == Format.JSON) {
+             out.println(']');
+         }
+     }
+ 
+     // Method to render the next page of customers, returns how many were rendered
+     public int writePage(PrintWriter out, int pageSize) {
+         long start = ClaimMetrics.start();
+         int count = 0;
+         while (count < pageSize && cursor.hasNext()) {
+             Customer customer = cursor.next();
+             Collection<Claim> claims = repository.getClaimsByFullName(customer.getFullName());
+             switch (format) {
+                 case TEXT:
+                     writeText(out, customer, claims);
+                     break;
+                 case CSV:
+                     writeCsv(out, customer, claims);
+                     break;
+                 case JSON:
+                     writeJson(out, customer, claims, written + count == 0);
+                     break;
+             }
+             count++;
+         }
+         written += count;
+         ClaimMetrics.REPORT_PAGE.stop(start);
+         return count;
+     }
+ 
+     // Method to render one customer followed by their claims in the console layout
+     static void writeText(PrintWriter out, Customer customer, Collection<Claim> claims) {
+         out.println("Customer Information:");
+         out.println("Full Name: " + customer.getFullName());
+         out.println("Age: " + customer.getAge());
+         out.println("Gender: " + customer.getGender());
+         out.println("Address: " + customer.getAddress());
+         out.println("Phone Number: " + customer.getPhoneNumber());
+ 
+         out.println("\nAssociated Claims:");
+         for (Claim claim : claims) {
+             writeClaim(out, claim);
+             out.println();
+         }
+         if (claims.isEmpty()) {
+             out.println("\tThis customer currently has no claims.");
+         }
+     }
+ 
+     // Method to render one claim in the console layout
+     static void writeClaim(PrintWriter out, Claim claim) {
+         out.println("\tClaim ID: " + claim.getId());
+         out.println("\tClaim date: " + claim.getClaimDate());
+         out.println("\tCard number: " + claim.getCardNumber());
+         out.println("\tExam date: " + claim.getExamDate());
+         out.println("\tClaim amount: $" + claim.getClaimAmount());
+         out.println("\tStatus: " + claim.getStatus());
+         ReceiverBankingInfo receiverInfo = claim.getReceiverBankingInfo();
+         out.println("\tBank name: " + receiverInfo.getBankName());
+         out.println("\tAccount name: " + receiverInfo.getAccountName());
+         out.println("\tAccount number: " + receiverInfo.getAccountNumber());
+         List<String> documents = claim.getDocuments();
+         out.println("\tNumber of Documents: " + documents.size());
+         if (!documents.isEmpty()) {
+             out.println("\tDocuments:");
+             for (String document : documents) {
+                 out.println("\t" + document);
+             }
+         }
+     }
+ 
+     // One row per claim; a customer without claims gets one row with empty claim columns
+     private static void writeCsv(PrintWriter out, Customer customer, Collection<Claim> claims) {
+         String customerColumns = csv(customer.getFullName()) + "," + customer.getAge() + "," + csv(customer.getGender())
+                 + "," + csv(customer.getAddress()) + "," + csv(customer.getPhoneNumber());
+         if (claims.isEmpty()) {
+             out.println(customerColumns + ",,,,,,,,,,");
+             return;
+         }
+         for (Claim claim : claims) {
+             ReceiverBankingInfo receiverInfo = claim.getReceiverBankingInfo();
+             out.println(customerColumns + "," + csv(claim.getId())
+                     + "," + ClaimDates.format(claim.getClaimDate())
+                     + "," + claim.getCardNumber()
+                     + "," + ClaimDates.format(claim.getExamDate())
+                     + "," + claim.getClaimAmount()
+                     + "," + claim.getStatus()
+                     + "," + csv(receiverInfo.getBankName())
+                     + "," + csv(receiverInfo.getAccountName())
+                     + "," + csv(receiverInfo.getAccountNumber())
+                     + "," + csv(String.join(";", claim.getDocuments())));
+         }
+     }
+ 
+     private static void writeJson(PrintWriter out, Customer customer, Collection<Claim> claims, boolean first) {
+         if (!first) {
+             out.print(',');
+         }
+         out.print("\n{\"customer\":");
+         out.print(ClaimJson.toJson(customer));
+         out.print(",\"claims\":[");
+         boolean firstClaim = true;
+         for (Claim claim : claims) {
+             if (!firstClaim) {
+                 out.print(',');
+             }
+             out.print(ClaimJson.toJson(claim));
+             firstClaim = false;
+         }
+         out.print("]}");
+     }
+ 
+     // Method to quote a CSV value only when it needs it
+     private static String csv(String value) {
+         if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+             return value;
+         }
+         return "\"" + value.replace("\"", "\"\"") + "\"";
+     }
+ }
+ 
+ // Class accumulating claim totals in primitive arrays: amounts by status, by bank and by
+ // claim month, plus the exam-to-claim lag distribution. Instances are filled in parallel and
+ // merged, and as a listener they keep following adds, updates and deletes.
+ class ClaimAggregates implements ClaimChangeListener {
+     private static final ClaimStatus[] STATUSES = ClaimStatus.values();
+     static final int MAX_TRACKED_LAG_DAYS = 365; // longer lags share one overflow bucket
+ 
+     private final long[] countByStatus = new long[STATUSES.length];
+     private final double[] amountByStatus = new double[STATUSES.length];
+     private final Map<String, double[]> byBank = new HashMap<>(); // {count, total amount}
+     private final Map<YearMonth, double[]> byMonth = new TreeMap<>(); // {count, total amount}
+     private final long[] lagCounts = new long[MAX_TRACKED_LAG_DAYS + 2]; // index = lag in days, last = overflow
+     private long negativeLags; // exam recorded after the claim date
+ 
+     // Method to fold one claim in (sign 1) or out (sign -1)
+     void accumulate(Claim claim, int sign) {
+         int status = claim.getStatus().ordinal();
+         countByStatus[status] += sign;
+         amountByStatus[status] += sign * claim.getClaimAmount();
+         addTo(byBank, claim.getReceiverBankingInfo().getBankName(), claim.getClaimAmount(), sign);
+         if (claim.getClaimDate() == null) {
+             return;
+         }
+         long claimDay = ClaimDates.toEpochDay(claim.getClaimDate());
+         addTo(byMonth, YearMonth.from(LocalDate.ofEpochDay(claimDay)), claim.getClaimAmount(), sign);
+         if (claim.getExamDate() != null) {
+             long lag = claimDay - ClaimDates.toEpochDay(claim.getExamDate());
+             if (lag < 0) {
+                 negativeLags += sign;
+             } else {
+                 lagCounts[(int) Math.min(lag, MAX_TRACKED_LAG_DAYS + 1)] += sign;
+             }
+         }
+     }
+ 
+     void add(Claim claim) {
+         accumulate(claim, 1);
+     }
+ 
+     // Method to combine the partial result of another thread into this one
+     void merge(ClaimAggregates other) {
+         for (int i = 0; i < STATUSES.length; i++) {
+             countByStatus[i] += other.countByStatus[i];
+             amountByStatus[i] += other.amountByStatus[i];
+         }
+         other.byBank.forEach((bank, totals) -> addTo(byBank, bank, totals));
+         other.byMonth.forEach((month, totals) -> addTo(byMonth, month, totals));
+         for (int i = 0; i < lagCounts.length; i++) {
+             lagCounts[i] += other.lagCounts[i];
+         }
+         negativeLags += other.negativeLags;
+     }
+ 
+     @Override
+     public void claimAdded(Claim claim) {
+         accumulate(claim, 1);
+     }
+ 
+     @Override
+     public void claimUpdated(Claim before, Claim after) {
+         accumulate(before, -1);
+         accumulate(after, 1);
+     }
+ 
+     @Override
+     public void claimDeleted(Claim claim) {
+         accumulate(claim, -1);
+     }
+ 
+     public long getCount(ClaimStatus status) {
+         return countByStatus[status.ordinal()];
+     }
+ 
+     public double getTotal(ClaimStatus status) {
+         return amountByStatus[status.ordinal()];
+     }
+ 
+     public Map<String, double[]> getByBank() {
+         return Collections.unmodifiableMap(byBank);
+     }
+ 
+     public Map<YearMonth, double[]> getByMonth() {
+         return Collections.unmodifiableMap(byMonth);
+     }
+ 
+     public long getNegativeLags() {
+         return negativeLags;
+     }
+ 
+     public long getLagCount() {
+         long count = 0;
+         for (long lagCount : lagCounts) {
+             count += lagCount;
+         }
+         return count;
+     }
+ 
+     // Method returning the lag in days at the given percentile (0-100), or -1 without data;
+     // MAX_TRACKED_LAG_DAYS + 1 means "longer than a year"
+     public int lagPercentile(double percentile) {
+         long count = getLagCount();
+         if (count == 0) {
+             return -1;
+         }
+         long rank = (long) Math.ceil(percentile / 100 * count);
+         long seen = 0;
+         for (int lag = 0; lag < lagCounts.length; lag++) {
+             seen += lagCounts[lag];
+             if (seen >= Math.max(1, rank)) {
+                 return lag;
+             }
+         }
+         return lagCounts.length - 1;
+     }
+ 
+     public double meanLag() {
+         long count = getLagCount();
+         double sum = 0;
+         for (int lag = 0; lag < lagCounts.length; lag++) {
+             sum += (double) lag * lagCounts[lag];
+         }
+         return count == 0 ? 0 : sum / count;
+     }
+ 
+     // Method to count lags in [fromDays, toDays]
+     public long lagsBetween(int fromDays, int toDays) {
+         long count = 0;
+         for (int lag = fromDays; lag <= Math.min(toDays, lagCounts.length - 1); lag++) {
+             count += lagCounts[lag];
+         }
+         return count;
+     }
+ 
+     private static <K> void addTo(Map<K, double[]> totals, K key, double amount, int sign) {
+         double[] bucket = totals.computeIfAbsent(key, ignored -> new double[2]);
+         bucket[0] += sign;
+         bucket[1] += sign * amount;
+         if (bucket[0] == 0) {
+             totals.remove(key);
+         }
+     }
+ 
+     private static <K> void addTo(Map<K, double[]> totals, K key, double[] other) {
+         double[] bucket = totals.computeIfAbsent(key, ignored -> new double[2]);
+         bucket[0] += other[0];
+         bucket[1] += other[1];
+     }
+ }
+ 
+ // Class answering operational questions about the claim book
+ // The first request aggregates every claim on a parallel stream; after that the totals are
+ // maintained incrementally as claims are added, updated or deleted
+ class ClaimAnalytics {
+     private static final int[][] LAG_BUCKETS = {{0, 0}, {1, 7}, {8, 30}, {31, 90}, {91, 180}, {181, 365}};
+ 
+     private final ClaimRepository repository;
+     private ClaimAggregates running;
+ 
+     public ClaimAnalytics(ClaimRepository repository) {
+         this.repository = repository;
+     }
+ 
+     // Method to aggregate a set of claims using all cores
+     static ClaimAggregates compute(Collection<Claim> claims) {
+         return claims.parallelStream().collect(ClaimAggregates::new, ClaimAggregates::add, ClaimAggregates::merge);
+     }
+ 
+     // Method returning the current aggregates, computing them on first use
+     public ClaimAggregates current() {
+         if (running == null) {
+             running = compute(repository.getAllClaims());
+             repository.addListener(running);
+         }
+         return running;
+     }
+ 
+     public void printReport() {
+         long start = System.nanoTime();
+         ClaimAggregates totals = current();
+         long elapsed = System.nanoTime() - start;
+         ClaimMetrics.REPORT_ANALYTICS.record(elapsed);
+         print(totals, elapsed);
+     }
+ 
+     // Method to print aggregates computed elsewhere, such as shard by shard
+     static void print(ClaimAggregates totals, long elapsedNanos) {
+         PrintWriter out = CustomerClaimReport.consoleWriter();
+ 
+         out.println("Claim amount by status:");
+         for (ClaimStatus status : ClaimStatus.values()) {
+             long count = totals.getCount(status);
+             out.printf("\t%-12s %8d claims  $%,16.2f  (average $%,.2f)%n", status, count, totals.getTotal(status),
+                     count == 0 ? 0 : totals.getTotal(status) / count);
+         }
+ 
+         out.println("\nClaim amount by bank:");
+         List<Map.Entry<String, double[]>> banks = new ArrayList<>(totals.getByBank().entrySet());
+         banks.sort((a, b) -> Double.compare(b.getValue()[1], a.getValue()[1]));
+         for (Map.Entry<String, double[]> bank : banks) {
+             out.printf("\t%-20s %8.0f claims  $%,16.2f%n", bank.getKey(), bank.getValue()[0], bank.getValue()[1]);
+         }
+ 
+         out.println("\nClaim amount by month of claim date:");
+         for (Map.Entry<YearMonth, double[]> month : totals.getByMonth().entrySet()) {
+             out.printf("\t%s %8.0f claims  $%,16.2f%n", month.getKey(), month.getValue()[0], month.getValue()[1]);
+         }
+ 
+         out.println("\nExam-to-claim lag:");
+         out.printf("\tmean %.1f days, median %s, 90th percentile %s, 99th percentile %s%n", totals.meanLag(),
+                 lagLabel(totals.lagPercentile(50)), lagLabel(totals.lagPercentile(90)), lagLabel(totals.lagPercentile(99)));
+         for (int[] bucket : LAG_BUCKETS) {
+             out.printf("\t%3d-%3d days: %8d%n", bucket[0], bucket[1], totals.lagsBetween(bucket[0], bucket[1]));
+         }
+         out.printf("\tover a year:  %8d%n", totals.lagsBetween(ClaimAggregates.MAX_TRACKED_LAG_DAYS + 1, ClaimAggregates.MAX_TRACKED_LAG_DAYS + 1));
+         if (totals.getNegativeLags() > 0) {
+             out.printf("\texam after claim date: %d%n", totals.getNegativeLags());
+         }
+         out.printf("%nComputed in %.1f ms.%n", elapsedNanos / 1e6);
+         out.flush();
+     }
+ 
+     private static String lagLabel(int days) {
+         if (days < 0) {
+             return "n/a";
+         }
+         return days > ClaimAggregates.MAX_TRACKED_LAG_DAYS ? "over a year" : days + " days";
+     }
+ }
+ 
+ // Class mapping lower-case words to the records containing them
+ // Postings are found through a hash map; for prefix searches the distinct words are also kept in a
+ // sorted array, built in one sort after a bulk load, plus a small sorted set of words added since,
+ // which is merged into the array once it grows. Numbers that are searched by their last digits
+ // are also stored reversed behind a '#', which turns "ends with 4567" into a prefix search too.
+ class TokenIndex<T> {
+     private static final char REVERSED = '#'; // never part of a word, see tokenize
+     private static final int MAX_MEMBERSHIP_WORDS = 16;
+     private static final int MERGE_THRESHOLD = 50_000;
+ 
+     // A word held by a single record maps to that record, otherwise to the set of records
+     private final Map<String, Object> postings = new HashMap<>();
+     private final Function<T, Set<String>> words;
+     private String[] sortedWords = new String[0]; // may still hold words whose postings are gone
+     private final NavigableSet<String> recentWords = new TreeSet<>();
+     private int size;
+ 
+     TokenIndex(Function<T, Set<String>> words) {
+         this.words = words;
+     }
+ 
+     // Method to split text into lower-case runs of letters and digits
+     static void tokenize(String text, Set<String> words) {
+         if (text == null) {
+             return;
+         }
+         String lower = text.toLowerCase(Locale.ROOT);
+         int start = -1;
+         for (int i = 0; i <= lower.length(); i++) {
+             boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+             if (wordChar && start < 0) {
+                 start = i;
+             } else if (!wordChar && start >= 0) {
+                 words.add(lower.substring(start, i));
+                 start = -1;
+             }
+         }
+     }
+ 
+     static Set<String> tokenize(String text) {
+         Set<String> words = new LinkedHashSet<>();
+         tokenize(text, words);
+         return words;
+     }
+ 
+     // Method to tokenize text whose numbers should also be found by their last digits
+     static void tokenizeWithSuffixes(String text, Set<String> words) {
+         Set<String> textWords = tokenize(text);
+         words.addAll(textWords);
+         for (String word : textWords) {
+             if (isDigits(word)) {
+                 words.add(REVERSED + reverse(word));
+             }
+         }
+     }
+ 
+     // Method to index many records at once, sorting the new words in one go
+     public void addAll(Collection<T> records) {
+         List<String> newWords = new ArrayList<>();
+         for (T record : records) {
+             for (String word : words.apply(record)) {
+                 if (addPosting(word, record)) {
+                     newWords.add(word);
+                 }
+             }
+             size++;
+         }
+         mergeWords(newWords);
+     }
+ 
+     public void add(T record) {
+         for (String word : words.apply(record)) {
+             if (addPosting(word, record)) {
+                 recentWords.add(word);
+             }
+         }
+         size++;
+         if (recentWords.size() >= MERGE_THRESHOLD) {
+             mergeWords(new ArrayList<>(recentWords));
+             recentWords.clear();
+         }
+     }
+ 
+     public void remove(T record) {
+         for (String word : words.apply(record)) {
+             removePosting(word, record);
+         }
+         size--;
+     }
+ 
+     public int size() {
+         return size;
+     }
+ 
+     // Method to find up to limit records where every query word starts (or, for digits, ends) a word
+     // of the record. Candidates come from the query word matching the fewest records and are then
+     // checked against the others.
+     public List<T> search(String query, int limit) {
+         List<String> queryWords = new ArrayList<>(tokenize(query));
+         if (queryWords.isEmpty()) {
+             return Collections.emptyList();
+         }
+         String rarest = null;
+         int fewestRecords = Integer.MAX_VALUE;
+         for (String queryWord : queryWords) {
+             int records = countRecords(queryWord, fewestRecords);
+             if (records < fewestRecords) {
+                 fewestRecords = records;
+                 rarest = queryWord;
+             }
+         }
+         if (fewestRecords == 0) {
+             return Collections.emptyList();
+         }
+         queryWords.remove(rarest);
+         // Other query words matching only a few index words are checked against those postings,
+         // the rest against the words of each candidate
+         List<List<Object>> otherPostings = new ArrayList<>();
+         List<String> otherWords = new ArrayList<>();
+         for (String queryWord : queryWords) {
+             List<Object> postingsOfWord = postingsIfFew(queryWord);
+             if (postingsOfWord != null) {
+                 otherPostings.add(postingsOfWord);
+             } else {
+                 otherWords.add(queryWord);
+             }
+         }
+         Set<T> matches = new LinkedHashSet<>();
+         for (Object posting : matching(rarest)) {
+             for (T record : RecordSet.<T>of(posting)) {
+                 if (matches.size() >= limit) {
+                     return new ArrayList<>(matches);
+                 }
+                 if (!matches.contains(record) && inAll(record, otherPostings) && matchesAll(record, otherWords)) {
+                     matches.add(record);
+                 }
+             }
+         }
+         return new ArrayList<>(matches);
+     }
+ 
+     // Method returning the postings of every word starting with the query word, and for digits of
+     // every word ending with it
+     private Iterable<Object> matching(String queryWord) {
+         List<String> prefixes = new ArrayList<>(2);
+         prefixes.add(queryWord);
+         if (isDigits(queryWord)) {
+             prefixes.add(REVERSED + reverse(queryWord));
+         }
+         return () -> new Iterator<Object>() {
+             private final Iterator<String> prefixIterator = prefixes.iterator();
+             private Iterator<String> wordIterator = Collections.emptyIterator();
+             private Object next;
+ 
+             @Override
+             public boolean hasNext() {
+                 while (next == null) {
+                     if (wordIterator.hasNext()) {
+                         next = postings.get(wordIterator.next());
+                     } else if (prefixIterator.hasNext()) {
+                         wordIterator = wordsStartingWith(prefixIterator.next());
+                     } else {
+                         return false;
+                     }
+                 }
+                 return true;
+             }
+ 
+             @Override
+             public Object next() {
+                 if (!hasNext()) {
+                     throw new NoSuchElementException();
+                 }
+                 Object result = next;
+                 next = null;
+                 return result;
+             }
+         };
+     }
+ 
+     // Method iterating the sorted array range of a prefix followed by the recent words with that prefix
+     private Iterator<String> wordsStartingWith(String prefix) {
+         String end = prefix + Character.MAX_VALUE;
+         int from = lowerBound(prefix);
+         int to = lowerBound(end);
+         Iterator<String> recent = recentWords.subSet(prefix, end).iterator();
+         return new Iterator<String>() {
+             private int index = from;
+ 
+             @Override
+             public boolean hasNext() {
+                 return index < to || recent.hasNext();
+             }
+ 
+             @Override
+             public String next() {
+                 return index < to ? sortedWords[index++] : recent.next();
+             }
+         };
+     }
+ 
+     private int lowerBound(String word) {
+         int index = Arrays.binarySearch(sortedWords, word);
+         return index >= 0 ? index : -index - 1;
+     }
+ 
+     private void mergeWords(List<String> newWords) {
+         String[] merged = Arrays.copyOf(sortedWords, sortedWords.length + newWords.size());
+         int length = 0;
+         for (String word : merged) {
+             if (word != null && postings.containsKey(word)) { // drop words whose postings are gone
+                 merged[length++] = word;
+             }
+         }
+         for (String word : newWords) {
+             if (postings.containsKey(word)) {
+                 merged[length++] = word;
+             }
+         }
+         Arrays.sort(merged, 0, length);
+         // A word removed and added again can appear twice
+         int distinct = 0;
+         for (int i = 0; i < length; i++) {
+             if (distinct == 0 || !merged[i].equals(merged[distinct - 1])) {
+                 merged[distinct++] = merged[i];
+             }
+         }
+         sortedWords = Arrays.copyOf(merged, distinct);
+     }
+ 
+     // Method to count records matching a query word, stopping once the count reaches cap
+     private int countRecords(String queryWord, int cap) {
+         int count = 0;
+         for (Object posting : matching(queryWord)) {
+             count += RecordSet.<T>of(posting).size();
+             if (count >= cap) {
+                 return count;
+             }
+         }
+         return count;
+     }
+ 
+     // Method returning the postings of the index words matching a query word, or null if there are many
+     private List<Object> postingsIfFew(String queryWord) {
+         List<Object> result = new ArrayList<>();
+         for (Object posting : matching(queryWord)) {
+             if (result.size() == MAX_MEMBERSHIP_WORDS) {
+                 return null;
+             }
+             result.add(posting);
+         }
+         return result;
+     }
+ 
+     private boolean inAll(T record, List<List<Object>> otherPostings) {
+         for (List<Object> postingsOfWord : otherPostings) {
+             boolean found = false;
+             for (Object posting : postingsOfWord) {
+                 if (posting == record || (posting instanceof RecordSet && ((RecordSet<?>) posting).contains(record))) {
+                     found = true;
+                     break;
+                 }
+             }
+             if (!found) {
+                 return false;
+             }
+         }
+         return true;
+     }
+ 
+     private boolean matchesAll(T record, List<String> queryWords) {
+         if (queryWords.isEmpty()) {
+             return true;
+         }
+         Set<String> recordWords = words.apply(record);
+         for (String queryWord : queryWords) {
+             String reversed = isDigits(queryWord) ? REVERSED + reverse(queryWord) : null;
+             boolean found = false;
+             for (String word : recordWords) {
+                 if (word.startsWith(queryWord) || (reversed != null && word.startsWith(reversed))) {
+                     found = true;
+                     break;
+                 }
+             }
+             if (!found) {
+                 return false;
+             }
+         }
+         return true;
+     }
+ 
+     // Method to add a record to the postings of a word, returns true if the word is new to the index
+     private boolean addPosting(String word, T record) {
+         return RecordSet.addTo(postings, word, record);
+     }
+ 
+     private void removePosting(String word, T record) {
+         RecordSet.removeFrom(postings, word, record);
+     }
+ 
+     private static boolean isDigits(String word) {
+         for (int i = 0; i < word.length(); i++) {
+             if (word.charAt(i) < '0' || word.charAt(i) > '9') {
+                 return false;
+             }
+         }
+         return !word.isEmpty();
+     }
+ 
+     private static String reverse(String word) {
+         return new StringBuilder(word).reverse().toString();
+     }
+ }
+ 
+ // Class holding the records that share one index key (a word, a day, an amount)
+ // It is an identity set using open addressing, so millions of postings do not each need an entry
+ // object. Index maps store a key held by a single record as the record itself and only switch to a
+ // RecordSet when a second record arrives; being a type of its own, a RecordSet can never be
+ // mistaken for an indexed record.
+ final class RecordSet<T> extends AbstractCollection<T> {
+     private Object[] table = new Object[8];
+     private int size;
+ 
+     // Method to add a record under a key of an index map, returns true if the key is new to the map
+     @SuppressWarnings("unchecked")
+     static <K, T> boolean addTo(Map<K, Object> postings, K key, T record) {
+         Object posting = postings.get(key);
+         if (posting == null) {
+             postings.put(key, record);
+             return true;
+         } else if (posting instanceof RecordSet) {
+             ((RecordSet<T>) posting).add(record);
+         } else if (posting != record) {
+             RecordSet<T> set = new RecordSet<>();
+             set.add((T) posting);
+             set.add(record);
+             postings.put(key, set);
+         }
+         return false;
+     }
+ 
+     // Method to remove a record from under a key of an index map
+     @SuppressWarnings("unchecked")
+     static <K, T> void removeFrom(Map<K, Object> postings, K key, T record) {
+         Object posting = postings.get(key);
+         if (posting == record) {
+             postings.remove(key);
+         } else if (posting instanceof RecordSet) {
+             RecordSet<T> set = (RecordSet<T>) posting;
+             set.remove(record);
+             if (set.size() == 1) {
+                 postings.put(key, set.iterator().next());
+             }
+         }
+     }
+ 
+     // Method returning the records stored under one key of an index map
+     @SuppressWarnings("unchecked")
+     static <T> Collection<T> of(Object posting) {
+         return posting instanceof RecordSet ? (RecordSet<T>) posting : Collections.singletonList((T) posting);
+     }
+ 
+ 
+     @Override
+     public boolean add(T record) {
+         if (contains(record)) {
+             return false;
+         }
+         if ((size + 1) * 2 > table.length) {
+             resize(table.length * 2);
+         }
+         insert(table, record);
+         size++;
+         return true;
+     }
+ 
+     @Override
+     public boolean contains(Object record) {
+         int mask = table.length - 1;
+         for (int slot = slot(record, mask); table[slot] != null; slot = (slot + 1) & mask) {
+             if (table[slot] == record) {
+                 return true;
+             }
+         }
+         return false;
+     }
+ 
+     // Removal shifts later entries of the same probe run back, so no tombstones are needed
+     @Override
+     public boolean remove(Object record) {
+         int mask = table.length - 1;
+         int slot = slot(record, mask);
+         while (table[slot] != record) {
+             if (table[slot] == null) {
+                 return false;
+             }
+             slot = (slot + 1) & mask;
+         }
+         table[slot] = null;
+         size--;
+         for (int next = (slot + 1) & mask; table[next] != null; next = (next + 1) & mask) {
+             Object moved = table[next];
+             table[next] = null;
+             insert(table, moved);
+         }
+         return true;
+     }
+ 
+     @Override
+     public int size() {
+         return size;
+     }
+ 
+     @Override
+     public Iterator<T> iterator() {
+         return new Iterator<T>() {
+             private int index = advance(0);
+ 
+             private int advance(int from) {
+                 while (from < table.length && table[from] == null) {
+                     from++;
+                 }
+                 return from;
+             }
+ 
+             @Override
+             public boolean hasNext() {
+                 return index < table.length;
+             }
+ 
+             @Override
+             @SuppressWarnings("unchecked")
+             public T next() {
+                 if (!hasNext()) {
+                     throw new NoSuchElementException();
+                 }
+                 T record = (T) table[index];
+                 index = advance(index + 1);
+                 return record;
+             }
+         };
+     }
+ 
+     private void resize(int capacity) {
+         Object[] resized = new Object[capacity];
+         for (Object record : table) {
+             if (record != null) {
+                 insert(resized, record);
+             }
+         }
+         table = resized;
+     }
+ 
+     private static void insert(Object[] table, Object record) {
+         int mask = table.length - 1;
+         int slot = slot(record, mask);
+         while (table[slot] != null) {
+             slot = (slot + 1) & mask;
+         }
+         table[slot] = record;
+     }
+ 
+     private static int slot(Object record, int mask) {
+         int hash = System.identityHashCode(record) * 0x9E3779B9;
+         return (hash ^ (hash >>> 16)) & mask;
+     }
+ }
+ 
+ // Class answering partial lookups over customers (name, phone, address) and claims (account
+ // number, document names) for the call center; phone and account numbers also match by their
+ // last digits
+ // The indexes are built on the first search and then follow every add, update and delete
+ class ClaimSearch implements ClaimChangeListener, CustomerChangeListener {
+     static final int MAX_RESULTS = 20;
+ 
+     private final CustomerDirectory customers;
+     private final ClaimRepository repository;
+     private TokenIndex<Customer> customerIndex;
+     private TokenIndex<Claim> claimIndex;
+ 
+     public ClaimSearch(CustomerDirectory customers, ClaimRepository repository) {
+         this.customers = customers;
+         this.repository = repository;
+     }
+ 
+     static Set<String> customerWords(Customer customer) {
+         Set<String> words = new LinkedHashSet<>();
+         TokenIndex.tokenize(customer.getFullName(), words);
+         TokenIndex.tokenizeWithSuffixes(customer.getPhoneNumber(), words);
+         TokenIndex.tokenize(customer.getAddress(), words);
+         return words;
+     }
+ 
+     // Claim ids and card numbers are found through ClaimRepository, so documents named
+     // ClaimId_CardNumber_DocumentName.pdf only contribute the words of DocumentName.pdf
+     static Set<String> claimWords(Claim claim) {
+         Set<String> words = new LinkedHashSet<>();
+         TokenIndex.tokenizeWithSuffixes(claim.getReceiverBankingInfo().getAccountNumber(), words);
+         String documentPrefix = claim.getId() + "_" + claim.getCardNumber() + "_";
+         for (String document : claim.getDocuments()) {
+             TokenIndex.tokenize(document.startsWith(documentPrefix) ? document.substring(documentPrefix.length()) : document, words);
+         }
+         return words;
+     }
+ 
+     public List<Customer> findCustomers(String query, int limit) {
+         ensureIndexed();
+         long start = ClaimMetrics.start();
+         List<Customer> matches = customerIndex.search(query, limit);
+         ClaimMetrics.LOOKUP_SEARCH.stop(start);
+         return matches;
+     }
+ 
+     public List<Claim> findClaims(String query, int limit) {
+         ensureIndexed();
+         long start = ClaimMetrics.start();
+         List<Claim> matches = claimIndex.search(query, limit);
+         ClaimMetrics.LOOKUP_SEARCH.stop(start);
+         return matches;
+     }
+ 
+     private void ensureIndexed() {
+         if (customerIndex != null) {
+             return;
+         }
+         System.out.println("Indexing " + customers.size() + " customers and " + repository.size() + " claims for search...");
+         customerIndex = new TokenIndex<>(ClaimSearch::customerWords);
+         claimIndex = new TokenIndex<>(ClaimSearch::claimWords);
+         customerIndex.addAll(customers.getAll());
+         claimIndex.addAll(repository.getAllClaims());
+         customers.addListener(this);
+         repository.addListener(this);
+     }
+ 
+     @Override
+     public void customerAdded(Customer customer) {
+         customerIndex.add(customer);
+     }
+ 
+     @Override
+     public void customerRemoved(Customer customer) {
+         customerIndex.remove(customer);
+     }
+ 
+     @Override
+     public void claimAdded(Claim claim) {
+         claimIndex.add(claim);
+     }
+ 
+     @Override
+     public void claimUpdated(Claim before, Claim after) {
+         claimIndex.remove(before);
+         claimIndex.add(after);
+     }
+ 
+     @Override
+     public void claimDeleted(Claim claim) {
+         claimIndex.remove(claim);
+     }
+ }
+ 
+ // Class describing a combined range filter over claims; unset bounds are open and all bounds are
+ // inclusive, an empty status set accepts every status
+ class ClaimRangeQuery {
+     private LocalDate claimDateFrom;
+     private LocalDate claimDateTo;
+     private LocalDate examDateFrom;
+     private LocalDate examDateTo;
+     private Double minAmount;
+     private Double maxAmount;
+     private final Set<ClaimStatus> statuses = EnumSet.noneOf(ClaimStatus.class);
+ 
+     public LocalDate getClaimDateFrom() {
+         return claimDateFrom;
+     }
+ 
+     public void setClaimDateFrom(LocalDate claimDateFrom) {
+         this.claimDateFrom = claimDateFrom;
+     }
+ 
+     public LocalDate getClaimDateTo() {
+         return claimDateTo;
+     }
+ 
+     public void setClaimDateTo(LocalDate claimDateTo) {
+         this.claimDateTo = claimDateTo;
+     }
+ 
+     public LocalDate getExamDateFrom() {
+         return examDateFrom;
+     }
+ 
+     public void setExamDateFrom(LocalDate examDateFrom) {
+         this.examDateFrom = examDateFrom;
+     }
+ 
+     public LocalDate getExamDateTo() {
+         return examDateTo;
+     }
+ 
+     public void setExamDateTo(LocalDate examDateTo) {
+         this.examDateTo = examDateTo;
+     }
+ 
+     public Double getMinAmount() {
+         return minAmount;
+     }
+ 
+     public void setMinAmount(Double minAmount) {
+         this.minAmount = minAmount;
+     }
+ 
+     public Double getMaxAmount() {
+         return maxAmount;
+     }
+ 
+     public void setMaxAmount(Double maxAmount) {
+         this.maxAmount = maxAmount;
+     }
+ 
+     public Set<ClaimStatus> getStatuses() {
+         return statuses;
+     }
+ 
+     public boolean hasClaimDateRange() {
+         return claimDateFrom != null || claimDateTo != null;
+     }
+ 
+     public boolean hasExamDateRange() {
+         return examDateFrom != null || examDateTo != null;
+     }
+ 
+     public boolean hasAmountRange() {
+         return minAmount != null || maxAmount != null;
+     }
+ 
+     // Method to check every condition of the query against one claim
+     public boolean matches(Claim claim) {
+         return inRange(claim.getClaimDate(), claimDateFrom, claimDateTo)
+                 && inRange(claim.getExamDate(), examDateFrom, examDateTo)
+                 && (minAmount == null || claim.getClaimAmount() >= minAmount)
+                 && (maxAmount == null || claim.getClaimAmount() <= maxAmount)
+                 && (statuses.isEmpty() || statuses.contains(claim.getStatus()));
+     }
+ 
+     private static boolean inRange(Date date, LocalDate from, LocalDate to) {
+         if (from == null && to == null) {
+             return true;
+         }
+         if (date == null) {
+             return false;
+         }
+         long day = ClaimDates.toEpochDay(date);
+         return (from == null || day >= from.toEpochDay()) && (to == null || day <= to.toEpochDay());
+     }
+ }
+ 
+ // Class keeping claims sorted by claim date, exam date and amount, so range queries only visit the
+ // claims inside the narrowest requested range instead of scanning the whole book
+ // The indexes are built on the first query and then follow every add, update and delete.
+ class ClaimRangeIndex implements ClaimChangeListener {
+     private final ClaimRepository repository;
+     // Keys held by one claim map to the claim itself, see RecordSet
+     private NavigableMap<Long, Object> byClaimDay;
+     private NavigableMap<Long, Object> byExamDay;
+     private NavigableMap<Double, Object> byAmount;
+ 
+     public ClaimRangeIndex(ClaimRepository repository) {
+         this.repository = repository;
+     }
+ 
+     // Method returning the matching claims as a lazy stream, ordered by the index it was answered from
+     // The stream reads the live indexes, so it must be consumed before the claim book changes again.
+     public Stream<Claim> find(ClaimRangeQuery query) {
+         ensureIndexed();
+         Stream<Claim> candidates = null;
+         int fewest = Integer.MAX_VALUE;
+         if (query.hasClaimDateRange()) {
+             SortedMap<Long, Object> range = dayRange(byClaimDay, query.getClaimDateFrom(), query.getClaimDateTo());
+             fewest = count(range, fewest);
+             candidates = stream(range);
+         }
+         if (query.hasExamDateRange()) {
+             SortedMap<Long, Object> range = dayRange(byExamDay, query.getExamDateFrom(), query.getExamDateTo());
+             int count = count(range, fewest);
+             if (count < fewest) {
+                 fewest = count;
+                 candidates = stream(range);
+             }
+         }
+         if (query.hasAmountRange()) {
+             SortedMap<Double, Object> range = byAmount.subMap(
+                     query.getMinAmount() == null ? Double.NEGATIVE_INFINITY : query.getMinAmount(), true,
+                     query.getMaxAmount() == null ? Double.POSITIVE_INFINITY : query.getMaxAmount(), true);
+             int count = count(range, fewest);
+             if (count < fewest) {
+                 fewest = count;
+                 candidates = stream(range);
+             }
+         }
+         if (!query.getStatuses().isEmpty()) {
+             int count = 0;
+             for (ClaimStatus status : query.getStatuses()) {
+                 count += repository.getClaimsByStatus(status).size();
+             }
+             if (count < fewest) {
+                 candidates = query.getStatuses().stream().flatMap(status -> repository.getClaimsByStatus(status).stream());
+             }
+         }
+         if (candidates == null) {
+             candidates = repository.viewAllClaims().stream();
+         }
+         return candidates.filter(query::matches);
+     }
+ 
+     private void ensureIndexed() {
+         if (byClaimDay != null) {
+             return;
+         }
+         byClaimDay = new TreeMap<>();
+         byExamDay = new TreeMap<>();
+         byAmount = new TreeMap<>();
+         for (Claim claim : repository.viewAllClaims()) {
+             index(claim);
+         }
+         repository.addListener(this);
+     }
+ 
+     private static SortedMap<Long, Object> dayRange(NavigableMap<Long, Object> index, LocalDate from, LocalDate to) {
+         return index.subMap(from == null ? Long.MIN_VALUE : from.toEpochDay(), true,
+                 to == null ? Long.MAX_VALUE : to.toEpochDay(), true);
+     }
+ 
+     // Method to count the claims in a range, stopping once the count reaches cap
+     private static int count(SortedMap<?, Object> range, int cap) {
+         int count = 0;
+         for (Object posting : range.values()) {
+             count += RecordSet.of(posting).size();
+             if (count >= cap) {
+                 return count;
+             }
+         }
+         return count;
+     }
+ 
+     private static Stream<Claim> stream(SortedMap<?, Object> range) {
+         return range.values().stream().flatMap(posting -> RecordSet.<Claim>of(posting).stream());
+     }
+ 
+     private void index(Claim claim) {
+         if (claim.getClaimDate() != null) {
+             RecordSet.addTo(byClaimDay, ClaimDates.toEpochDay(claim.getClaimDate()), claim);
+         }
+         if (claim.getExamDate() != null) {
+             RecordSet.addTo(byExamDay, ClaimDates.toEpochDay(claim.getExamDate()), claim);
+         }
+         RecordSet.addTo(byAmount, claim.getClaimAmount(), claim);
+     }
+ 
+     private void unindex(Claim claim) {
+         if (claim.getClaimDate() != null) {
+             RecordSet.removeFrom(byClaimDay, ClaimDates.toEpochDay(claim.getClaimDate()), claim);
+         }
+         if (claim.getExamDate() != null) {
+             RecordSet.removeFrom(byExamDay, ClaimDates.toEpochDay(claim.getExamDate()), claim);
+         }
+         RecordSet.removeFrom(byAmount, claim.getClaimAmount(), claim);
+     }
+ 
+     @Override
+     public void claimAdded(Claim claim) {
+         index(claim);
+     }
+ 
+     @Override
+     public void claimUpdated(Claim before, Claim after) {
+         unindex(before);
+         index(after);
+     }
+ 
+     @Override
+     public void claimDeleted(Claim claim) {
+         unindex(claim);
+     }
+ }
+ 
+ // Class flagging suspect claims before they join the claim book: a claim repeating the card number,
+ // exam date and amount of another claim, and a payout account receiving claims of more than a few
+ // customers within a window of claim dates. Each check is a hash lookup plus a scan of the few claims
+ // sharing the key, so it stays in the microseconds however large the book grows. Flags are warnings;
+ // the claim is still added, and as a listener the detector keeps following the book.
+ class ClaimFraudDetector implements ClaimChangeListener {
+     static final int ACCOUNT_WINDOW_DAYS = Integer.getInteger("claims.fraud.window", 30);
+     static final int MAX_CUSTOMERS_PER_ACCOUNT = Integer.getInteger("claims.fraud.customers", 3);
+ 
+     private static final ClaimMetrics.Histogram CHECK = ClaimMetrics.timer("fraud.check");
+     private static final ClaimMetrics.Histogram RESCAN = ClaimMetrics.timer("fraud.rescan");
+     private static final ClaimMetrics.Counter FLAGGED = ClaimMetrics.counter("fraud.flagged");
+ 
+     // Both indexes are keyed by 64-bit hashes, so no banking details are kept in memory for them;
+     // keys held by one claim map to the claim itself, see RecordSet
+     private final Map<Long, Object> byCardExamAmount = new HashMap<>();
+     private final Map<Long, Object> byAccount = new HashMap<>();
+ 
+     // A claim that looks suspect and why
+     static final class Finding {
+         final Claim claim;
+         final List<String> reasons;
+ 
+         Finding(Claim claim, List<String> reasons) {
+             this.claim = claim;
+             this.reasons = reasons;
+         }
+     }
+ 
+     public ClaimFraudDetector(Collection<Claim> claims) {
+         for (Claim claim : claims) {
+             index(claim);
+         }
+     }
+ 
+     // Method to check a claim against the claims indexed so far, returns why it looks suspect or an empty list
+     public List<String> check(Claim claim) {
+         long start = ClaimMetrics.start();
+         List<String> reasons = new ArrayList<>(0);
+         for (Claim other : postings(byCardExamAmount, duplicateKey(claim))) {
+             if (!other.getId().equals(claim.getId()) && isDuplicate(claim, other)) {
+                 reasons.add("same card number, exam date and amount as claim " + other.getId());
+                 break;
+             }
+         }
+         if (claim.getClaimDate() != null) {
+             long day = ClaimDates.toEpochDay(claim.getClaimDate());
+             Set<String> customers = new HashSet<>();
+             customers.add(CustomerDirectory.normalizeName(claim.getFullName()));
+             for (Claim other : postings(byAccount, accountKey(claim))) {
+                 if (!other.getId().equals(claim.getId()) && other.getClaimDate() != null
+                         && Math.abs(ClaimDates.toEpochDay(other.getClaimDate()) - day) <= ACCOUNT_WINDOW_DAYS) {
+                     customers.add(CustomerDirectory.normalizeName(other.getFullName()));
+                 }
+             }
+             if (customers.size() > MAX_CUSTOMERS_PER_ACCOUNT) {
+                 reasons.add("account " + claim.getReceiverBankingInfo().getAccountNumber() + " received claims of "
+                         + customers.size() + " customers within " + ACCOUNT_WINDOW_DAYS + " days");
+             }
+         }
+         if (!reasons.isEmpty()) {
+             FLAGGED.increment();
+         }
+         CHECK.stop(start);
+         return reasons;
+     }
+ 
+     // Method to check every claim of a book against all the others, with the checks run on all cores
+     static List<Finding> rescan(Collection<Claim> claims) {
+         long start = ClaimMetrics.start();
+         ClaimFraudDetector detector = new ClaimFraudDetector(claims);
+         // The indexes are only read from here on, so the checks can share them
+         List<Finding> findings = claims.parallelStream()
+                 .map(claim -> new Finding(claim, detector.check(claim)))
+                 .filter(finding -> !finding.reasons.isEmpty())
+                 .collect(Collectors.toList());
+         RESCAN.stop(start);
+         return findings;
+     }
+ 
+     // Method to write findings to a file, one line per reason, and print the first few
+     static void writeFindings(List<Finding> findings, String fileName, int printed) throws IOException {
+         try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(fileName)))) {
+             for (Finding finding : findings) {
+                 for (String reason : finding.reasons) {
+                     writer.println(finding.claim.getId() + ": " + reason);
+                 }
+             }
+         }
+         for (int i = 0; i < Math.min(printed, findings.size()); i++) {
+             System.out.println("\t" + findings.get(i).claim.getId() + ": " + String.join("; ", findings.get(i).reasons));
+         }
+     }
+ 
+     private static Collection<Claim> postings(Map<Long, Object> index, long key) {
+         Object posting = index.get(key);
+         return posting == null ? Collections.emptyList() : RecordSet.of(posting);
+     }
+ 
+     private static boolean isDuplicate(Claim claim, Claim other) {
+         return claim.getCardNumber() == other.getCardNumber()
+                 && Double.compare(claim.getClaimAmount(), other.getClaimAmount()) == 0
+                 && examDay(claim) == examDay(other);
+     }
+ 
+     private static long examDay(Claim claim) {
+         return claim.getExamDate() == null ? Long.MIN_VALUE : ClaimDates.toEpochDay(claim.getExamDate());
+     }
+ 
+     private static long duplicateKey(Claim claim) {
+         long hash = claim.getCardNumber() * 0x9E3779B97F4A7C15L;
+         hash = (hash ^ examDay(claim)) * 0xC2B2AE3D27D4EB4FL;
+         return (hash ^ Double.doubleToLongBits(claim.getClaimAmount())) * 0x9E3779B97F4A7C15L;
+     }
+ 
+     // Method to hash an account number with 64-bit FNV-1a; a collision between two accounts is unlikely
+     // enough at this size that it is not checked for
+     private static long accountKey(Claim claim) {
+         String accountNumber = claim.getReceiverBankingInfo().getAccountNumber().trim();
+         long hash = 0xCBF29CE484222325L;
+         for (int i = 0; i < accountNumber.length(); i++) {
+             hash = (hash ^ accountNumber.charAt(i)) * 0x100000001B3L;
+         }
+         return hash;
+     }
+ 
+     private void index(Claim claim) {
+         RecordSet.addTo(byCardExamAmount, duplicateKey(claim), claim);
+         RecordSet.addTo(byAccount, accountKey(claim), claim);
+     }
+ 
+     private void unindex(Claim claim) {
+         RecordSet.removeFrom(byCardExamAmount, duplicateKey(claim), claim);
+         RecordSet.removeFrom(byAccount, accountKey(claim), claim);
+     }
+ 
+     @Override
+     public void claimAdded(Claim claim) {
+         index(claim);
+     }
+ 
+     @Override
+     public void claimUpdated(Claim before, Claim after) {
+         unindex(before);
+         index(after);
+     }
+ 
+     @Override
+     public void claimDeleted(Claim claim) {
+         unindex(claim);
+     }
+ }
+ 
+ // Class providing claim and customer storage that is safe for many concurrent users
+ // Reads are lock-free on concurrent maps; writes take striped locks, first on the customer
+ // name and then on the claim id, so only operations touching the same customer or claim contend.
+ // Stored claims are treated as immutable: updates replace them and bump their version.
+ class ClaimService implements ClaimProcessManager {
+     private static final int STRIPES = 64;
+ 
+     private final ConcurrentHashMap<String, Claim> claimsById = new ConcurrentHashMap<>();
+     private final ConcurrentHashMap<Long, Set<String>> claimIdsByCardNumber = new ConcurrentHashMap<>();
+     private final ConcurrentHashMap<String, Set<String>> claimIdsByFullName = new ConcurrentHashMap<>();
+     private final ConcurrentHashMap<ClaimStatus, Set<String>> claimIdsByStatus = new ConcurrentHashMap<>();
+     private final ConcurrentHashMap<String, List<Customer>> customersByName = new ConcurrentHashMap<>();
+     private final ReentrantLock[] nameLocks = newStripes();
+     private final ReentrantLock[] idLocks = newStripes();
+     private final ClaimJournal journal; // null keeps the service in memory only
+     private final List<ClaimChangeListener> listeners = new CopyOnWriteArrayList<>();
+ 
+     public ClaimService(Collection<Claim> claims, Collection<Customer> customers, ClaimJournal journal) {
+         this.journal = journal;
+         for (Customer customer : customers) {
+             customersByName.computeIfAbsent(CustomerDirectory.normalizeName(customer.getFullName()),
+                     key -> new CopyOnWriteArrayList<>()).add(customer);
+         }
+         for (Claim claim : claims) {
+             claimsById.put(claim.getId(), claim);
+             index(claim);
+         }
+     }
+ 
+     @Override
+     public void addClaim(Claim claim) {
+         addClaim(claim, null);
+     }
+ 
+     // Method to add a claim, registering its customer if the name is not on file yet
+     public void addClaim(Claim claim, Customer newCustomer) {
+         ReentrantLock nameLock = lockFor(nameLocks, CustomerDirectory.normalizeName(claim.getFullName()));
+         ReentrantLock idLock = lockFor(idLocks, claim.getId());
+         nameLock.lock();
+         idLock.lock();
+         try {
+             // Adds and removes of this id hold its lock, so the check cannot race with another add
+             if (claimsById.containsKey(claim.getId())) {
+                 throw new IllegalStateException("Claim ID already exists: " + claim.getId());
+             }
+             // Index lookups skip ids not in claimsById yet, so the claim is indexed first and published last,
+             // complete with its version
+             claim.setVersion(0);
+             index(claim);
+             claimsById.put(claim.getId(), claim);
+             for (ClaimChangeListener listener : listeners) {
+                 listener.claimAdded(claim);
+             }
+             String name = CustomerDirectory.normalizeName(claim.getFullName());
+             if (newCustomer != null && !customersByName.containsKey(name)) {
+                 customersByName.computeIfAbsent(name, key -> new CopyOnWriteArrayList<>()).add(newCustomer);
+                 if (journal != null) {
+                     journal.logCustomerAdded(newCustomer);
+                 }
+             }
+             if (journal != null) {
+                 journal.logClaimAdded(claim);
+             }
+         } finally {
+             idLock.unlock();
+             nameLock.unlock();
+         }
+     }
+ 
+     // Unconditional update: the last writer wins, but each update is applied atomically
+     @Override
+     public void updateClaim(String id, Claim updatedClaim) {
+         update(id, updatedClaim, -1);
+     }
+ 
+     // Optimistic update: fails with ConcurrentModificationException if someone else updated the
+     // claim since the caller read the expected version
+     public Claim updateClaim(String id, Claim updatedClaim, long expectedVersion) {
+         return update(id, updatedClaim, expectedVersion);
+     }
+ 
+     private Claim update(String id, Claim updatedClaim, long expectedVersion) {
+         Claim current = claimsById.get(id);
+         if (current == null) {
+             throw new NoSuchElementException("Claim not found: " + id);
+         }
+         if (!id.equals(updatedClaim.getId())
+                 || !CustomerDirectory.normalizeName(current.getFullName()).equals(CustomerDirectory.normalizeName(updatedClaim.getFullName()))) {
+             throw new IllegalArgumentException("Updated claim must keep ID " + id + " and customer " + current.getFullName());
+         }
+         ReentrantLock idLock = lockFor(idLocks, id);
+         idLock.lock();
+         try {
+             current = claimsById.get(id);
+             if (current == null) {
+                 throw new NoSuchElementException("Claim not found: " + id);
+             }
+             if (expectedVersion >= 0 && current.getVersion() != expectedVersion) {
+                 throw new ConcurrentModificationException("Claim " + id + " is at version " + current.getVersion()
+                         + ", not the expected version " + expectedVersion);
+             }
+             ClaimStatus.checkTransition(id, current.getStatus(), updatedClaim.getStatus());
+             updatedClaim.setVersion(current.getVersion() + 1);
+             unindex(current);
+             claimsById.put(id, updatedClaim);
+             index(updatedClaim);
+             for (ClaimChangeListener listener : listeners) {
+                 listener.claimUpdated(current, updatedClaim);
+             }
+             if (journal != null) {
+                 journal.logClaimUpdated(updatedClaim);
+             }
+             return updatedClaim;
+         } finally {
+             idLock.unlock();
+         }
+     }
+ 
+     @Override
+     public void deleteClaim(String id) {
+         removeClaim(id);
+     }
+ 
+     // Method to delete a claim and remove its customer if no other claims are associated with them,
+     // returns the removed customers
+     public List<Customer> removeClaim(String id) {
+         Claim existing = claimsById.get(id);
+         if (existing == null) {
+             throw new NoSuchElementException("Claim not found: " + id);
+         }
+         String name = CustomerDirectory.normalizeName(existing.getFullName());
+         ReentrantLock nameLock = lockFor(nameLocks, name);
+         ReentrantLock idLock = lockFor(idLocks, id);
+         nameLock.lock();
+         idLock.lock();
+         try {
+             Claim removed = claimsById.remove(id);
+             if (removed == null) {
+                 throw new NoSuchElementException("Claim not found: " + id);
+             }
+             unindex(removed);
+             for (ClaimChangeListener listener : listeners) {
+                 listener.claimDeleted(removed);
+             }
+             if (journal != null) {
+                 journal.logClaimDeleted(id);
+             }
+             // The name lock keeps concurrent adds for this customer out until the check is done
+             if (claimIdsByFullName.containsKey(name)) {
+                 return Collections.emptyList();
+             }
+             List<Customer> orphans = customersByName.remove(name);
+             if (orphans == null) {
+                 return Collections.emptyList();
+             }
+             if (journal != null) {
+                 for (Customer customer : orphans) {
+                     journal.logCustomerRemoved(customer);
+                 }
+             }
+             return new ArrayList<>(orphans);
+         } finally {
+             idLock.unlock();
+             nameLock.unlock();
+         }
+     }
+ 
+     // Method to register a component that must follow every add, update and delete; listeners are called
+     // under the lock of the claim, so they see the changes of one claim in order, and must be thread-safe
+     public void addListener(ClaimChangeListener listener) {
+         listeners.add(listener);
+     }
+ 
+     @Override
+     public Claim getClaimById(String id) {
+         long start = ClaimMetrics.start();
+         Claim claim = claimsById.get(id);
+         ClaimMetrics.LOOKUP_CLAIM_BY_ID.stop(start);
+         return claim;
+     }
+ 
+     // Snapshot of all claims, in no particular order
+     @Override
+     public List<Claim> getAllClaims() {
+         return new ArrayList<>(claimsById.values());
+     }
+ 
+     public List<Claim> getClaimsByCardNumber(long cardNumber) {
+         return resolve(claimIdsByCardNumber.get(cardNumber));
+     }
+ 
+     public List<Claim> getClaimsByFullName(String fullName) {
+         long start = ClaimMetrics.start();
+         List<Claim> claims = resolve(claimIdsByFullName.get(CustomerDirectory.normalizeName(fullName)));
+         ClaimMetrics.LOOKUP_CLAIMS_BY_NAME.stop(start);
+         return claims;
+     }
+ 
+     public List<Claim> getClaimsByStatus(ClaimStatus status) {
+         return resolve(claimIdsByStatus.get(status));
+     }
+ 
+     public List<Customer> getCustomersByName(String fullName) {
+         long start = ClaimMetrics.start();
+         List<Customer> customers = customersByName.get(CustomerDirectory.normalizeName(fullName));
+         ClaimMetrics.LOOKUP_CUSTOMERS_BY_NAME.stop(start);
+         return customers == null ? Collections.emptyList() : new ArrayList<>(customers);
+     }
+ 
+     public int size() {
+         return claimsById.size();
+     }
+ 
+     private void index(Claim claim) {
+         claimIdsByCardNumber.computeIfAbsent(claim.getCardNumber(), key -> ConcurrentHashMap.newKeySet()).add(claim.getId());
+         claimIdsByFullName.computeIfAbsent(CustomerDirectory.normalizeName(claim.getFullName()), key -> ConcurrentHashMap.newKeySet()).add(claim.getId());
+         claimIdsByStatus.computeIfAbsent(claim.getStatus(), key -> ConcurrentHashMap.newKeySet()).add(claim.getId());
+     }
+ 
+     private void unindex(Claim claim) {
+         removeFrom(claimIdsByCardNumber, claim.getCardNumber(), claim.getId());
+         removeFrom(claimIdsByFullName, CustomerDirectory.normalizeName(claim.getFullName()), claim.getId());
+         removeFrom(claimIdsByStatus, claim.getStatus(), claim.getId());
+     }
+ 
+     // Method to remove an id from one secondary index; empty buckets are dropped atomically
+     private static <K> void removeFrom(ConcurrentHashMap<K, Set<String>> index, K key, String id) {
+         index.computeIfPresent(key, (ignored, ids) -> {
+             ids.remove(id);
+             return ids.isEmpty() ? null : ids;
+         });
+     }
+ 
+     private List<Claim> resolve(Set<String> ids) {
+         if (ids == null) {
+             return Collections.emptyList();
+         }
+         List<Claim> claims = new ArrayList<>(ids.size());
+         for (String id : ids) {
+             Claim claim = claimsById.get(id);
+             if (claim != null) {
+                 claims.add(claim);
+             }
+         }
+         return claims;
+     }
+ 
+     private static ReentrantLock[] newStripes() {
+         ReentrantLock[] locks = new ReentrantLock[STRIPES];
+         for (int i = 0; i < STRIPES; i++) {
+             locks[i] = new ReentrantLock();
+         }
+         return locks;
+     }
+ 
+     private static ReentrantLock lockFor(ReentrantLock[] locks, String key) {
+         int hash = key.hashCode();
+         return locks[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+     }
+ }
+ 
+ // Class keeping a reporting copy of the claim book partitioned into shards by card number, each with its own
+ // file, index and lock, so reports load and aggregate the shards in parallel. All claims of a card live in
+ // one shard, and a claim ID is mapped to its card number so lookups by ID go straight to the owning shard.
+ // The journaled claim book stays the record and the menu, ClaimService and the importer never write here:
+ // the cache is stamped with the journal sequence it reflects and brought up to date with synchronize.
+ // Changing the shard count rebalances online: claims move one old shard at a time while lookups keep
+ // being served, each routed to the old shard until that shard has been moved out.
+ class ShardedClaimCache {
+     static final String DEFAULT_DIRECTORY = "shards";
+     private static final String MANIFEST_FILE = "shards.txt";
+ 
+     private static final ClaimMetrics.Histogram LOAD = ClaimMetrics.timer("shards.load");
+     private static final ClaimMetrics.Histogram SAVE = ClaimMetrics.timer("shards.save");
+     private static final ClaimMetrics.Histogram REBALANCE = ClaimMetrics.timer("shards.rebalance");
+     private static final ClaimMetrics.Histogram SYNCHRONIZE = ClaimMetrics.timer("shards.synchronize");
+     private static final ClaimMetrics.Counter CLAIMS_MOVED = ClaimMetrics.counter("shards.claims_moved");
+ 
+     // One partition: the claims of the cards hashed to it, guarded by its lock
+     private static final class Shard {
+         final int order; // shards are always locked in creation order, so two locks never deadlock
+         final Path file;
+         ClaimRepository claims = new ClaimRepository();
+         final ReentrantLock lock = new ReentrantLock();
+         boolean dirty;
+         volatile boolean retired; // set once a rebalance has moved every claim out
+ 
+         Shard(int order, Path file) {
+             this.order = order;
+             this.file = file;
+         }
+     }
+ 
+     // The shards in use and, during a rebalance, the shards being moved out of
+     private static final class Layout {
+         final Shard[] shards;
+         final Shard[] retiring;
+ 
+         Layout(Shard[] shards, Shard[] retiring) {
+             this.shards = shards;
+             this.retiring = retiring;
+         }
+     }
+ 
+     private final Path directory;
+     private final ConcurrentHashMap<String, Long> cardNumberById = new ConcurrentHashMap<>();
+     private final Object rebalancing = new Object(); // held by whole-cache operations that need a stable layout
+     private int nextOrder;
+     private volatile Layout layout;
+     private volatile long sequence = -1; // journal sequence of the claim book the shards were last brought up to
+ 
+     private ShardedClaimCache(Path directory, int shardCount) {
+         this.directory = directory;
+         this.layout = new Layout(newShards(shardCount), null);
+     }
+ 
+     // Method to create an empty cache of the given number of shards; nothing is written until save
+     static ShardedClaimCache create(String directory, int shardCount) {
+         if (shardCount < 1) {
+             throw new IllegalArgumentException("Shard count must be at least 1: " + shardCount);
+         }
+         return new ShardedClaimCache(Paths.get(directory), shardCount);
+     }
+ 
+     // Method to load the cache saved in the given directory, one shard per thread;
+     // returns null if the directory holds no cache
+     static ShardedClaimCache open(String directory) throws IOException {
+         Path manifest = Paths.get(directory, MANIFEST_FILE);
+         if (!Files.exists(manifest)) {
+             return null;
+         }
+         long start = ClaimMetrics.start();
+         // Manifest: the shard count, then the journal sequence the shards contain
+         List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+         ShardedClaimCache cache = create(directory, Integer.parseInt(lines.get(0).trim()));
+         if (lines.size() > 1) {
+             cache.sequence = Long.parseLong(lines.get(1).trim());
+         }
+         Arrays.stream(cache.layout.shards).parallel().forEach(shard -> {
+             if (Files.exists(shard.file)) {
+                 List<Claim> claims = new ArrayList<>();
+                 FileManager.readClaimsFromFile(claims, shard.file.toString());
+                 for (Claim claim : claims) {
+                     cache.add(claim); // routed, so a claim found in the wrong file still lands in its shard
+                 }
+             }
+         });
+         for (Shard shard : cache.layout.shards) {
+             shard.dirty = false;
+         }
+         LOAD.stop(start);
+         return cache;
+     }
+ 
+     // Method to map a card number to one of count shards; card numbers are often sequential, so they
+     // are spread with a multiplicative hash and the high bits are scaled to the range without a division
+     static int shardOf(long cardNumber, int count) {
+         long hash = (cardNumber * 0x9E3779B97F4A7C15L) >>> 32;
+         return (int) ((hash * count) >>> 32);
+     }
+ 
+     public int getShardCount() {
+         return layout.shards.length;
+     }
+ 
+     public long getSequence() {
+         return sequence;
+     }
+ 
+     private void add(Claim claim) {
+         Shard shard = lockOwner(claim.getCardNumber());
+         try {
+             if (cardNumberById.putIfAbsent(claim.getId(), claim.getCardNumber()) != null) {
+                 throw new IllegalArgumentException("Claim ID already exists: " + claim.getId());
+             }
+             shard.claims.addClaim(claim);
+             shard.dirty = true;
+         } finally {
+             shard.lock.unlock();
+         }
+     }
+ 
+     // Method to bring the cache in line with the claim book as of a journal sequence, each difference applied
+     // to the owning shard in parallel; the book is the record, so status changes are not checked.
+     // Returns the number of claims added, replaced or deleted.
+     public int synchronize(Collection<Claim> book, long sequence) {
+         long start = ClaimMetrics.start();
+         LongAdder changed = new LongAdder();
+         book.parallelStream().forEach(claim -> {
+             Claim stored = getClaimById(claim.getId());
+             if (stored == null) {
+                 add(claim);
+                 changed.increment();
+             } else if (!FileManager.formatClaim(stored).equals(FileManager.formatClaim(claim))) {
+                 replace(claim.getId(), claim);
+                 changed.increment();
+             }
+         });
+         Set<String> bookIds = new HashSet<>(book.size() * 2);
+         for (Claim claim : book) {
+             bookIds.add(claim.getId());
+         }
+         for (String id : new ArrayList<>(cardNumberById.keySet())) {
+             if (!bookIds.contains(id)) {
+                 delete(id);
+                 changed.increment();
+             }
+         }
+         this.sequence = sequence;
+         SYNCHRONIZE.stop(start);
+         return changed.intValue();
+     }
+ 
+     // A claim whose card number changes moves to the shard of its new card, under the locks of both shards
+     private void replace(String id, Claim updatedClaim) {
+         if (!id.equals(updatedClaim.getId())) {
+             throw new IllegalArgumentException("Updated claim must keep ID " + id);
+         }
+         while (true) {
+             Long cardNumber = cardNumberById.get(id);
+             if (cardNumber == null) {
+                 throw new IllegalArgumentException("Claim not found: " + id);
+             }
+             Shard[] owners = lockOwners(cardNumber, updatedClaim.getCardNumber());
+             try {
+                 if (!cardNumber.equals(cardNumberById.get(id))) {
+                     continue; // updated to another card or deleted while this thread waited
+                 }
+                 Shard source = owners[0];
+                 Shard target = owners[1];
+                 source.claims.deleteClaim(id); // not updateClaim, which would check the status transition
+                 target.claims.addClaim(updatedClaim);
+                 source.dirty = true;
+                 target.dirty = true;
+                 cardNumberById.put(id, updatedClaim.getCardNumber());
+                 return;
+             } finally {
+                 unlock(owners);
+             }
+         }
+     }
+ 
+     private void delete(String id) {
+         while (true) {
+             Long cardNumber = cardNumberById.get(id);
+             if (cardNumber == null) {
+                 throw new IllegalArgumentException("Claim not found: " + id);
+             }
+             Shard shard = lockOwner(cardNumber);
+             try {
+                 if (cardNumberById.remove(id, cardNumber)) {
+                     shard.claims.deleteClaim(id);
+                     shard.dirty = true;
+                     return;
+                 }
+             } finally {
+                 shard.lock.unlock();
+             }
+         }
+     }
+ 
+     public Claim getClaimById(String id) {
+         while (true) {
+             Long cardNumber = cardNumberById.get(id);
+             if (cardNumber == null) {
+                 return null;
+             }
+             Shard shard = lockOwner(cardNumber);
+             try {
+                 if (cardNumber.equals(cardNumberById.get(id))) {
+                     return shard.claims.getClaimById(id);
+                 }
+             } finally {
+                 shard.lock.unlock();
+             }
+         }
+     }
+ 
+     // Method to list the claims of one card, which only touches the shard owning it
+     public List<Claim> getClaimsByCardNumber(long cardNumber) {
+         Shard shard = lockOwner(cardNumber);
+         try {
+             return new ArrayList<>(shard.claims.getClaimsByCardNumber(cardNumber));
+         } finally {
+             shard.lock.unlock();
+         }
+     }
+ 
+     // Method to list the claims of a customer; names are not the shard key, so every shard is asked in parallel
+     public List<Claim> getClaimsByFullName(String fullName) {
+         synchronized (rebalancing) {
+             return Arrays.stream(layout.shards).parallel()
+                     .flatMap(shard -> withLock(shard, () -> new ArrayList<>(shard.claims.getClaimsByFullName(fullName))).stream())
+                     .collect(Collectors.toList());
+         }
+     }
+ 
+     // Every shard is locked for the copy, so a claim moving between shards is seen exactly once
+     public List<Claim> getAllClaims() {
+         synchronized (rebalancing) {
+             Shard[] shards = layout.shards;
+             for (Shard shard : shards) {
+                 shard.lock.lock();
+             }
+             try {
+                 List<Claim> claims = new ArrayList<>(cardNumberById.size());
+                 for (Shard shard : shards) {
+                     claims.addAll(shard.claims.viewAllClaims());
+                 }
+                 return claims;
+             } finally {
+                 for (Shard shard : shards) {
+                     shard.lock.unlock();
+                 }
+             }
+         }
+     }
+ 
+     public int size() {
+         return cardNumberById.size();
+     }
+ 
+     // Method to aggregate the claim book with one task per shard, each reading its shard under its own lock
+     public ClaimAggregates aggregate() {
+         synchronized (rebalancing) {
+             long start = ClaimMetrics.start();
+             ClaimAggregates totals = Arrays.stream(layout.shards).parallel()
+                     .map(shard -> withLock(shard, () -> {
+                         ClaimAggregates partial = new ClaimAggregates();
+                         for (Claim claim : shard.claims.viewAllClaims()) {
+                             partial.add(claim);
+                         }
+                         return partial;
+                     }))
+                     .reduce((a, b) -> {
+                         a.merge(b);
+                         return a;
+                     })
+                     .orElseGet(ClaimAggregates::new);
+             ClaimMetrics.REPORT_ANALYTICS.stop(start);
+             return totals;
+         }
+     }
+ 
+     // Method to write every shard changed since the last save, one shard per thread, then the manifest
+     public void save() throws IOException {
+         synchronized (rebalancing) {
+             long start = ClaimMetrics.start();
+             Files.createDirectories(directory);
+             try {
+                 Arrays.stream(layout.shards).parallel().forEach(shard -> {
+                     try {
+                         saveShard(shard);
+                     } catch (IOException e) {
+                         throw new UncheckedIOException(e);
+                     }
+                 });
+             } catch (UncheckedIOException e) {
+                 throw e.getCause();
+             }
+             FileManager.writeAtomically(directory.resolve(MANIFEST_FILE).toString(), writer -> {
+                 writer.write(Integer.toString(layout.shards.length));
+                 writer.newLine();
+                 writer.write(Long.toString(sequence));
+                 writer.newLine();
+             });
+             SAVE.stop(start);
+         }
+     }
+ 
+     private static void saveShard(Shard shard) throws IOException {
+         List<Claim> claims = withLock(shard, () -> {
+             if (!shard.dirty) {
+                 return null;
+             }
+             shard.dirty = false;
+             return shard.claims.getAllClaims();
+         });
+         if (claims != null) {
+             try {
+                 FileManager.saveClaims(claims, shard.file.toString());
+             } catch (IOException e) {
+                 shard.lock.lock();
+                 shard.dirty = true;
+                 shard.lock.unlock();
+                 throw e;
+             }
+         }
+     }
+ 
+     // Method to change the number of shards while the cache stays in use. Each old shard is locked in
+     // turn and its claims moved to their new shards; until then operations on its cards still go to it.
+     // The new files are written before the manifest switches to them, so a crash leaves one complete layout.
+     public void rebalance(int shardCount) throws IOException {
+         if (shardCount < 1) {
+             throw new IllegalArgumentException("Shard count must be at least 1: " + shardCount);
+         }
+         synchronized (rebalancing) {
+             Shard[] old = layout.shards;
+             if (old.length == shardCount) {
+                 return;
+             }
+             long start = ClaimMetrics.start();
+             Shard[] next = newShards(shardCount);
+             layout = new Layout(next, old);
+             for (Shard shard : old) {
+                 shard.lock.lock();
+                 try {
+                     List<List<Claim>> moved = new ArrayList<>(shardCount);
+                     for (int i = 0; i < shardCount; i++) {
+                         moved.add(new ArrayList<>());
+                     }
+                     for (Claim claim : shard.claims.viewAllClaims()) {
+                         moved.get(shardOf(claim.getCardNumber(), shardCount)).add(claim);
+                     }
+                     for (int i = 0; i < shardCount; i++) {
+                         List<Claim> claims = moved.get(i);
+                         if (!claims.isEmpty()) {
+                             Shard target = next[i];
+                             target.lock.lock();
+                             try {
+                                 for (Claim claim : claims) {
+                                     target.claims.addClaim(claim);
+                                 }
+                                 target.dirty = true;
+                             } finally {
+                                 target.lock.unlock();
+                             }
+                             CLAIMS_MOVED.add(claims.size());
+                         }
+                     }
+                     shard.retired = true;
+                     shard.claims = new ClaimRepository(); // the index of a moved-out shard is dropped at once, so a rebalance needs one shard of extra heap
+                 } finally {
+                     shard.lock.unlock();
+                 }
+             }
+             layout = new Layout(next, null);
+             save();
+             for (Shard shard : old) {
+                 Files.deleteIfExists(shard.file);
+             }
+             REBALANCE.stop(start);
+         }
+     }
+ 
+     // Method to print the size of each shard and how far the largest is above the average
+     public void printShards(PrintStream out) {
+         synchronized (rebalancing) {
+             Shard[] shards = layout.shards;
+             int largest = 0;
+             for (Shard shard : shards) {
+                 int size = withLock(shard, shard.claims::size);
+                 largest = Math.max(largest, size);
+                 out.printf("\t%-28s %10d claims%n", directory.relativize(shard.file), size);
+             }
+             double average = (double) size() / shards.length;
+             out.printf("\t%d shards, largest %.1f%% above average%n", shards.length, average == 0 ? 0 : (largest / average - 1) * 100);
+         }
+     }
+ 
+     private Shard[] newShards(int count) {
+         Shard[] shards = new Shard[count];
+         for (int i = 0; i < count; i++) {
+             shards[i] = new Shard(nextOrder++, directory.resolve("claims-" + i + "-of-" + count + ".txt"));
+         }
+         return shards;
+     }
+ 
+     // Method to find the shard owning a card: during a rebalance that is its old shard until the old shard
+     // has been moved out, and its new shard after
+     private Shard route(long cardNumber) {
+         Layout current = layout;
+         if (current.retiring != null) {
+             Shard old = current.retiring[shardOf(cardNumber, current.retiring.length)];
+             if (!old.retired) {
+                 return old;
+             }
+         }
+         return current.shards[shardOf(cardNumber, current.shards.length)];
+     }
+ 
+     // Method to lock the shard owning a card, retrying if a rebalance moved the card while this thread waited
+     private Shard lockOwner(long cardNumber) {
+         while (true) {
+             Shard shard = route(cardNumber);
+             shard.lock.lock();
+             if (!shard.retired) {
+                 return shard;
+             }
+             shard.lock.unlock();
+         }
+     }
+ 
+     // Method to lock the shards owning two cards, which may be the same shard
+     private Shard[] lockOwners(long first, long second) {
+         while (true) {
+             Shard[] owners = {route(first), route(second)};
+             boolean ordered = owners[0].order <= owners[1].order;
+             owners[ordered ? 0 : 1].lock.lock();
+             if (owners[0] != owners[1]) {
+                 owners[ordered ? 1 : 0].lock.lock();
+             }
+             if (!owners[0].retired && !owners[1].retired) {
+                 return owners;
+             }
+             unlock(owners);
+         }
+     }
+ 
+     private static void unlock(Shard[] owners) {
+         owners[0].lock.unlock();
+         if (owners[1] != owners[0]) {
+             owners[1].lock.unlock();
+         }
+     }
+ 
+     private static <T> T withLock(Shard shard, Supplier<T> action) {
+         shard.lock.lock();
+         try {
+             return action.get();
+         } finally {
+             shard.lock.unlock();
+         }
+     }
+ }
+ 
+ // Class serving the claim service over local HTTP, one lightweight thread per request
+ //   GET    /claims/{id}                        one claim, with its version in the ETag header
+ //   GET    /claims?cardNumber=|fullName=|status=  claims matching a secondary index
+ //   POST   /claims                             add a claim (ClaimJson body, optional "customer")
+ //   PUT    /claims/{id}                        replace a claim; If-Match: <version> makes it optimistic
+ //   DELETE /claims/{id}                        delete a claim and its orphaned customer
+ //   GET    /customers/{fullName}               a customer and their claims
+ class ClaimHttpServer {
+     static final int DEFAULT_PORT = 8080;
+ 
+     private final ClaimService service;
+     private final HttpServer server;
+     private final ExecutorService executor;
+ 
+     public ClaimHttpServer(ClaimService service, int port) throws IOException {
+         this.service = service;
+         this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+         this.executor = newRequestExecutor();
+         server.setExecutor(executor);
+         server.createContext("/claims", this::handleClaims);
+         server.createContext("/customers", this::handleCustomers);
+     }
+ 
+     // Virtual threads where the runtime has them, otherwise a thread per in-flight request
+     static ExecutorService newRequestExecutor() {
          try {
-             return dateFormat.parse(dateString);
-         } catch (ParseException e) {
-             System.err.println("Error parsing date: " + e.getMessage());
+             return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+         } catch (ReflectiveOperationException e) {
+             return Executors.newCachedThreadPool();
+         }
+     }
+ 
+     public void start() {
+         server.start();
+     }
+ 
+     public void stop() {
+         server.stop(1);
+         executor.shutdown();
+     }
+ 
+     public int getPort() {
+         return server.getAddress().getPort();
+     }
+ 
+     private void handleClaims(HttpExchange exchange) throws IOException {
+         try {
+             String id = pathParameter(exchange, "/claims");
+             String method = exchange.getRequestMethod();
+             if (id == null && method.equals("GET")) {
+                 listClaims(exchange);
+             } else if (id == null && method.equals("POST")) {
+                 Map<?, ?> body = readObject(exchange);
+                 Claim claim = ClaimJson.claimFromJson(body);
+                 String error = BatchImporter.validate(claim);
+                 if (error != null) {
+                     throw new IllegalArgumentException(error);
+                 }
+                 Customer customer = ClaimJson.customerFromJson(body, claim.getFullName());
+                 if (customer == null && service.getCustomersByName(claim.getFullName()).isEmpty()) {
+                     throw new IllegalArgumentException("no customer record for " + claim.getFullName());
+                 }
+                 service.addClaim(claim, customer); // an existing id is answered with 409
+                 send(exchange, 201, ClaimJson.toJson(claim));
+             } else if (id != null && method.equals("GET")) {
+                 Claim claim = service.getClaimById(id);
+                 if (claim == null) {
+                     send(exchange, 404, error("Claim not found: " + id));
+                     return;
+                 }
+                 exchange.getResponseHeaders().set("ETag", String.valueOf(claim.getVersion()));
+                 send(exchange, 200, ClaimJson.toJson(claim));
+             } else if (id != null && method.equals("PUT")) {
+                 Claim claim = ClaimJson.claimFromJson(readObject(exchange));
+                 String error = BatchImporter.validate(claim);
+                 if (error != null) {
+                     throw new IllegalArgumentException(error);
+                 }
+                 String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+                 Claim updated = service.updateClaim(id, claim, ifMatch == null ? -1 : Long.parseLong(ifMatch.replace("\"", "").trim()));
+                 exchange.getResponseHeaders().set("ETag", String.valueOf(updated.getVersion()));
+                 send(exchange, 200, ClaimJson.toJson(updated));
+             } else if (id != null && method.equals("DELETE")) {
+                 service.removeClaim(id);
+                 send(exchange, 204, null);
+             } else {
+                 send(exchange, 405, error("Method not allowed"));
+             }
+         } catch (NoSuchElementException e) {
+             send(exchange, 404, error(e.getMessage()));
+         } catch (ConcurrentModificationException | IllegalStateException e) {
+             send(exchange, 409, error(e.getMessage()));
+         } catch (IllegalArgumentException e) {
+             send(exchange, 400, error(e.getMessage()));
+         } catch (RuntimeException e) {
+             e.printStackTrace();
+             send(exchange, 500, error("Internal error"));
+         }
+     }
+ 
+     private void listClaims(HttpExchange exchange) throws IOException {
+         Map<String, String> query = query(exchange);
+         List<Claim> claims;
+         if (query.containsKey("cardNumber")) {
+             claims = service.getClaimsByCardNumber(Long.parseLong(query.get("cardNumber")));
+         } else if (query.containsKey("fullName")) {
+             claims = service.getClaimsByFullName(query.get("fullName"));
+         } else if (query.containsKey("status")) {
+             claims = service.getClaimsByStatus(ClaimStatus.valueOf(query.get("status")));
+         } else {
+             throw new IllegalArgumentException("filter by cardNumber, fullName or status");
+         }
+         StringBuilder json = new StringBuilder("[");
+         for (Claim claim : claims) {
+             json.append(json.length() == 1 ? "" : ",").append(ClaimJson.toJson(claim));
+         }
+         send(exchange, 200, json.append(']').toString());
+     }
+ 
+     private void handleCustomers(HttpExchange exchange) throws IOException {
+         String fullName = pathParameter(exchange, "/customers");
+         if (fullName == null || !exchange.getRequestMethod().equals("GET")) {
+             send(exchange, 405, error("Method not allowed"));
+             return;
+         }
+         List<Customer> customers = service.getCustomersByName(fullName);
+         if (customers.isEmpty()) {
+             send(exchange, 404, error("Customer not found: " + fullName));
+             return;
+         }
+         StringBuilder json = new StringBuilder("{\"customer\":").append(ClaimJson.toJson(customers.get(0))).append(",\"claims\":[");
+         List<Claim> claims = service.getClaimsByFullName(fullName);
+         for (int i = 0; i < claims.size(); i++) {
+             json.append(i == 0 ? "" : ",").append(ClaimJson.toJson(claims.get(i)));
+         }
+         send(exchange, 200, json.append("]}").toString());
+     }
+ 
+     // Method returning the decoded path segment after the context, or null for the collection itself
+     private static String pathParameter(HttpExchange exchange, String context) {
+         String path = exchange.getRequestURI().getPath();
+         if (path.length() <= context.length() + 1) {
              return null;
          }
+         return URLDecoder.decode(path.substring(context.length() + 1), StandardCharsets.UTF_8);
      }
  
-     // Method to add a new claim
-     public static void addClaim(Scanner scanner, List<Claim> claims, List<Customer> customers) {
-         // Prompt for customer details
-         System.out.println("Enter customer details:");
-         System.out.print("Full Name: ");
-         String fullName = scanner.nextLine();
-         System.out.print("Age: ");
-         int age = Integer.parseInt(scanner.nextLine());
-         System.out.print("Gender: ");
-         String gender = scanner.nextLine();
-         System.out.print("Address: ");
-         String address = scanner.nextLine();
-         System.out.print("Phone Number: ");
-         String phoneNumber = scanner.nextLine();
+     private static Map<String, String> query(HttpExchange exchange) {
+         Map<String, String> parameters = new HashMap<>();
+         String rawQuery = exchange.getRequestURI().getRawQuery();
+         if (rawQuery != null) {
+             for (String pair : rawQuery.split("&")) {
+                 int separator = pair.indexOf('=');
+                 if (separator > 0) {
+                     parameters.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                             URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+                 }
+             }
+         }
+         return parameters;
+     }
  
-         // Create Customer object and add to list
-         Customer customer = new Customer(fullName, age, gender, address, phoneNumber);
-         customers.add(customer);
+     private static Map<?, ?> readObject(HttpExchange exchange) throws IOException {
+         Object body = JsonLineParser.parse(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+         if (!(body instanceof Map)) {
+             throw new IllegalArgumentException("expected a JSON object");
+         }
+         return (Map<?, ?>) body;
+     }
  
-         // Prompt for claim details
-         System.out.println("Enter claim details:");
-         System.out.print("Enter claim ID: ");
-         String id = scanner.nextLine();
-         System.out.print("Enter claim date (YYYY-MM-DD): ");
-         Date claimDate = parseDate(scanner.nextLine());
-         System.out.print("Enter card number: ");
-         long cardNumber = Long.parseLong(scanner.nextLine());
-         System.out.print("Enter exam date (YYYY-MM-DD): ");
-         Date examDate = parseDate(scanner.nextLine());
-         System.out.print("Enter claim amount: ");
-         double claimAmount = Double.parseDouble(scanner.nextLine());
-         System.out.print("Enter status (NEW, PROCESSING, DONE): ");
-         ClaimStatus status = ClaimStatus.valueOf(scanner.nextLine());
-         System.out.print("Enter bank name: ");
-         String bankName = scanner.nextLine();
-         System.out.print("Enter account name: ");
-         String accountName = scanner.nextLine();
-         System.out.print("Enter account number: ");
-         String accountNumber = scanner.nextLine();
-         System.out.print("Enter number of documents: ");
-         int numDocuments = Integer.parseInt(scanner.nextLine());
+     private static String error(String message) {
+         return "{\"error\":" + ClaimJson.quote(String.valueOf(message)) + "}";
+     }
+ 
+     private static void send(HttpExchange exchange, int status, String body) throws IOException {
+         if (body == null) {
+             exchange.sendResponseHeaders(status, -1);
+             exchange.close();
+             return;
+         }
+         byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+         exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+         exchange.sendResponseHeaders(status, bytes.length);
+         try (OutputStream out = exchange.getResponseBody()) {
+             out.write(bytes);
+         }
+     }
+ }
+ 
+ // Class measuring how claim service throughput scales with the number of threads
+ // Runs a mixed workload (80% reads by id, 15% optimistic updates, 5% add + delete) in memory
+ class ClaimLoadTest {
+     private static final int CLAIMS = 100_000;
+ 
+     public static void run(int secondsPerStep) throws IOException, InterruptedException {
+         Path claimsFile = Files.createTempFile("load-claims", ".txt");
+         Path customersFile = Files.createTempFile("load-customers", ".txt");
+         List<Claim> claims = new ArrayList<>();
+         List<Customer> customers = new ArrayList<>();
+         try {
+             SyntheticDataGenerator.generate(CLAIMS, claimsFile.toString(), customersFile.toString(), 7);
+             FileManager.readClaimsFromFile(claims, claimsFile.toString());
+             FileManager.readCustomersFromFile(customers, customersFile.toString());
+         } finally {
+             Files.deleteIfExists(claimsFile);
+             Files.deleteIfExists(customersFile);
+         }
+         String[] ids = claims.stream().map(Claim::getId).toArray(String[]::new);
+ 
+         int cores = Runtime.getRuntime().availableProcessors();
+         List<Integer> threadCounts = new ArrayList<>();
+         for (int threads = 1; threads < cores; threads *= 2) {
+             threadCounts.add(threads);
+         }
+         threadCounts.add(cores);
+         threadCounts.add(cores * 2); // oversubscribed, to show where scaling flattens
+ 
+         System.out.println("Load test on " + CLAIMS + " claims, " + cores + " cores, " + secondsPerStep + "s per step");
+         step(claims, customers, ids, cores, secondsPerStep, new LongAdder()); // warm up the JIT before the 1-thread baseline
+         System.out.printf("%8s %14s %9s %12s%n", "threads", "ops/sec", "speedup", "conflicts");
+         double baseline = 0;
+         for (int threads : threadCounts) {
+             LongAdder conflicts = new LongAdder();
+             double opsPerSecond = step(claims, customers, ids, threads, secondsPerStep, conflicts);
+             if (baseline == 0) {
+                 baseline = opsPerSecond;
+             }
+             System.out.printf("%8d %14.0f %8.2fx %12d%n", threads, opsPerSecond, opsPerSecond / baseline, conflicts.sum());
+         }
+     }
+ 
+     // Method to run the workload on a fresh service with the given number of threads, returns ops/sec
+     private static double step(List<Claim> claims, List<Customer> customers, String[] ids, int threads,
+                                int seconds, LongAdder conflicts) throws InterruptedException {
+         ClaimService service = new ClaimService(claims, customers, null);
+         LongAdder operations = new LongAdder();
+         AtomicBoolean running = new AtomicBoolean(true);
+         List<Thread> workers = new ArrayList<>();
+         for (int t = 0; t < threads; t++) {
+             int worker = t;
+             Thread thread = new Thread(() -> work(service, ids, worker, running, operations, conflicts));
+             workers.add(thread);
+             thread.start();
+         }
+         Thread.sleep(seconds * 1000L);
+         running.set(false);
+         for (Thread thread : workers) {
+             thread.join();
+         }
+         return operations.sum() / (double) seconds;
+     }
+ 
+     private static void work(ClaimService service, String[] ids, int worker, AtomicBoolean running,
+                              LongAdder operations, LongAdder conflicts) {
+         SplittableRandom random = new SplittableRandom(worker);
+         long added = 0;
+         while (running.get()) {
+             int roll = random.nextInt(100);
+             String id = ids[random.nextInt(ids.length)];
+             if (roll < 80) {
+                 service.getClaimById(id);
+             } else if (roll < 95) {
+                 // Read-modify-write with optimistic retry
+                 while (true) {
+                     Claim current = service.getClaimById(id);
+                     try {
+                         service.updateClaim(id, withAmount(current, current.getClaimAmount() + 1), current.getVersion());
+                         break;
+                     } catch (ConcurrentModificationException e) {
+                         conflicts.increment();
+                     }
+                 }
+             } else {
+                 Claim template = service.getClaimById(id);
+                 String newId = "load-" + worker + "-" + added++;
+                 Claim claim = withAmount(template, template.getClaimAmount());
+                 service.addClaim(new Claim(newId, claim.getClaimDate(), claim.getCardNumber(), claim.getExamDate(),
+                         claim.getDocuments(), claim.getClaimAmount(), claim.getStatus(), claim.getReceiverBankingInfo(), claim.getFullName()));
+                 service.deleteClaim(newId);
+             }
+             operations.increment();
+         }
+     }
+ 
+     private static Claim withAmount(Claim claim, double amount) {
+         return new Claim(claim.getId(), claim.getClaimDate(), claim.getCardNumber(), claim.getExamDate(),
+                 claim.getDocuments(), amount, claim.getStatus(), claim.getReceiverBankingInfo(), claim.getFullName());
+     }
+ }
+ 
+ // Class moving claims through NEW -> PROCESSING -> DONE with a pool of worker threads
+ // Every status with work left has a queue of claim ids. A worker takes the next claim, runs the
+ // handler of its stage and moves it on with an optimistic update, so a claim edited by someone else
+ // in the meantime is left alone. Later stages are served first, which keeps claims flowing to DONE.
+ class ClaimWorkflow {
+     private static final long IDLE_POLL_MS = 100;
+ 
+     // Work done for a claim in one stage before it moves on; throwing leaves the claim where it is
+     interface StageHandler {
+         void handle(Claim claim) throws Exception;
+     }
+ 
+     private static final class Ticket {
+         final String id;
+         final long enqueuedAt = System.nanoTime();
+ 
+         Ticket(String id) {
+             this.id = id;
+         }
+     }
+ 
+     // One stage of the workflow with its queue and counters
+     private static final class Stage {
+         final ClaimStatus from;
+         final ClaimStatus to;
+         final StageHandler handler;
+         final BlockingQueue<Ticket> queue = new LinkedBlockingQueue<>();
+         final LongAdder completed = new LongAdder();
+         final LongAdder failed = new LongAdder();
+         final LongAdder skipped = new LongAdder(); // changed or deleted by someone else
+         final LongAdder waitNanos = new LongAdder();
+         final LongAdder workNanos = new LongAdder();
+         final LongAccumulator maxWaitNanos = new LongAccumulator(Long::max, 0);
+         final LongAccumulator maxWorkNanos = new LongAccumulator(Long::max, 0);
+         volatile String lastFailure;
+ 
+         Stage(ClaimStatus from, ClaimStatus to, StageHandler handler) {
+             this.from = from;
+             this.to = to;
+             this.handler = handler;
+         }
+     }
+ 
+     private final ClaimService service;
+     private final Map<ClaimStatus, Stage> stages = new EnumMap<>(ClaimStatus.class);
+     private final List<Stage> stagesLastFirst = new ArrayList<>();
+     private final Semaphore available = new Semaphore(0); // one permit per queued ticket
+     private final Object idle = new Object();
+     private int outstanding; // queued or being processed, guarded by idle
+     private final List<Thread> workers = new ArrayList<>();
+     private volatile boolean running;
+ 
+     public ClaimWorkflow(ClaimService service, StageHandler review, StageHandler settle) {
+         this.service = service;
+         stages.put(ClaimStatus.NEW, new Stage(ClaimStatus.NEW, ClaimStatus.PROCESSING, review));
+         stages.put(ClaimStatus.PROCESSING, new Stage(ClaimStatus.PROCESSING, ClaimStatus.DONE, settle));
+         stagesLastFirst.addAll(stages.values());
+         Collections.reverse(stagesLastFirst);
+     }
+ 
+     // Method to queue a claim for the stage matching its current status; DONE claims are ignored
+     public void enqueue(Claim claim) {
+         Stage stage = stages.get(claim.getStatus());
+         if (stage != null) {
+             enqueue(stage, claim.getId());
+         }
+     }
+ 
+     // Method to queue every claim not yet DONE, returns the number queued
+     public int enqueueBacklog() {
+         int queued = 0;
+         for (Stage stage : stages.values()) {
+             for (Claim claim : service.getClaimsByStatus(stage.from)) {
+                 enqueue(stage, claim.getId());
+                 queued++;
+             }
+         }
+         return queued;
+     }
+ 
+     private void enqueue(Stage stage, String id) {
+         synchronized (idle) {
+             outstanding++;
+         }
+         stage.queue.add(new Ticket(id));
+         available.release();
+     }
+ 
+     public synchronized void start(int workerCount) {
+         running = true;
+         for (int i = 0; i < workerCount; i++) {
+             Thread worker = new Thread(this::work, "claim-worker-" + i);
+             worker.setDaemon(true);
+             workers.add(worker);
+             worker.start();
+         }
+     }
+ 
+     // Method to let the workers finish the claim in hand and stop
+     public synchronized void stop() throws InterruptedException {
+         running = false;
+         for (Thread worker : workers) {
+             worker.join();
+         }
+         workers.clear();
+     }
+ 
+     // Method to wait until every queue is empty and no claim is being worked on, returns false on timeout
+     public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+         long deadline = System.nanoTime() + unit.toNanos(timeout);
+         synchronized (idle) {
+             while (outstanding > 0) {
+                 long remaining = deadline - System.nanoTime();
+                 if (remaining <= 0) {
+                     return false;
+                 }
+                 TimeUnit.NANOSECONDS.timedWait(idle, remaining);
+             }
+             return true;
+         }
+     }
+ 
+     public int getQueueDepth(ClaimStatus status) {
+         Stage stage = stages.get(status);
+         return stage == null ? 0 : stage.queue.size();
+     }
+ 
+     private void work() {
+         while (running) {
+             try {
+                 if (!available.tryAcquire(IDLE_POLL_MS, TimeUnit.MILLISECONDS)) {
+                     continue;
+                 }
+             } catch (InterruptedException e) {
+                 return;
+             }
+             for (Stage stage : stagesLastFirst) {
+                 Ticket ticket = stage.queue.poll();
+                 if (ticket != null) {
+                     try {
+                         process(stage, ticket);
+                     } finally {
+                         synchronized (idle) {
+                             if (--outstanding == 0) {
+                                 idle.notifyAll();
+                             }
+                         }
+                     }
+                     break;
+                 }
+             }
+         }
+     }
+ 
+     private void process(Stage stage, Ticket ticket) {
+         long started = System.nanoTime();
+         long waited = started - ticket.enqueuedAt;
+         stage.waitNanos.add(waited);
+         stage.maxWaitNanos.accumulate(waited);
+         Claim current = service.getClaimById(ticket.id);
+         if (current == null || current.getStatus() != stage.from) {
+             stage.skipped.increment();
+             return;
+         }
+         try {
+             stage.handler.handle(current);
+         } catch (Exception e) {
+             stage.failed.increment();
+             stage.lastFailure = ticket.id + ": " + e.getMessage();
+             return;
+         }
+         try {
+             service.updateClaim(ticket.id, withStatus(current, stage.to), current.getVersion());
+         } catch (ConcurrentModificationException | NoSuchElementException e) {
+             stage.skipped.increment();
+             return;
+         }
+         long worked = System.nanoTime() - started;
+         stage.workNanos.add(worked);
+         stage.maxWorkNanos.accumulate(worked);
+         stage.completed.increment();
+         Stage next = stages.get(stage.to);
+         if (next != null) {
+             enqueue(next, ticket.id);
+         }
+     }
+ 
+     private static Claim withStatus(Claim claim, ClaimStatus status) {
+         return new Claim(claim.getId(), claim.getClaimDate(), claim.getCardNumber(), claim.getExamDate(),
+                 new ArrayList<>(claim.getDocuments()), claim.getClaimAmount(), status, claim.getReceiverBankingInfo(), claim.getFullName());
+     }
+ 
+     // Method to print queue depth, throughput and wait/work latency per stage
+     public void printStats(PrintStream out) {
+         out.printf("%-22s %9s %10s %7s %8s %12s %12s %12s %12s%n", "stage", "queued", "completed", "failed", "skipped",
+                 "avg wait ms", "max wait ms", "avg work ms", "max work ms");
+         for (Stage stage : stages.values()) {
+             long completed = stage.completed.sum();
+             long started = completed + stage.failed.sum() + stage.skipped.sum();
+             out.printf("%-22s %9d %10d %7d %8d %12.2f %12.2f %12.2f %12.2f%n", stage.from + " -> " + stage.to,
+                     stage.queue.size(), completed, stage.failed.sum(), stage.skipped.sum(),
+                     started == 0 ? 0 : stage.waitNanos.sum() / 1e6 / started, stage.maxWaitNanos.get() / 1e6,
+                     completed == 0 ? 0 : stage.workNanos.sum() / 1e6 / completed, stage.maxWorkNanos.get() / 1e6);
+             if (stage.lastFailure != null) {
+                 out.println("\tlast failure: " + stage.lastFailure);
+             }
+         }
+     }
+ 
+     // Method to work off the backlog of the stored claim book with the given number of workers
+     // Review rejects claims that fail validation; workMillis simulates the handling time of each
+     // stage, to see how the backlog drains with more workers.
+     public static void run(int workerCount, long workMillis) throws InterruptedException {
+         List<Customer> loadedCustomers = new ArrayList<>();
+         List<Claim> claims = new ArrayList<>();
+         ClaimJournal journal = ClaimJournal.open(loadedCustomers, claims);
+         ClaimService service = new ClaimService(claims, loadedCustomers, journal);
+         ClaimChangeFeed changes = ClaimChangeFileSink.openFeed(ClaimChangeFileSink.CHANGES_FILE);
+         changes.subscribe("history", ClaimHistory.open(ClaimHistory.HISTORY_FILE));
+         service.addListener(changes);
+         StageHandler review = claim -> {
+             String error = BatchImporter.validate(claim);
+             if (error != null) {
+                 throw new IllegalArgumentException(error);
+             }
+             if (claim.getDocuments().isEmpty()) {
+                 throw new IllegalArgumentException("no documents");
+             }
+             Thread.sleep(workMillis);
+         };
+         StageHandler settle = claim -> Thread.sleep(workMillis);
+         ClaimWorkflow workflow = new ClaimWorkflow(service, review, settle);
+ 
+         long start = System.nanoTime();
+         int backlog = workflow.enqueueBacklog();
+         System.out.println("Processing " + backlog + " claims with " + workerCount + " workers...");
+         workflow.start(workerCount);
+         while (!workflow.awaitIdle(1, TimeUnit.SECONDS)) {
+             System.out.printf("%d claims NEW, %d PROCESSING%n",
+                     workflow.getQueueDepth(ClaimStatus.NEW), workflow.getQueueDepth(ClaimStatus.PROCESSING));
+         }
+         workflow.stop();
+         double seconds = (System.nanoTime() - start) / 1e9;
+         workflow.printStats(System.out);
+         System.out.printf("Finished in %.1f s (%.0f claims/s).%n", seconds, backlog / seconds);
+         journal.close();
+         changes.close();
+     }
+ }
+ 
+ // Class parsing one line of JSON into Maps, Lists, Strings, BigDecimals, Booleans and nulls
+ // Only what batch import feeds need; numbers are kept exact so card numbers do not lose digits
+ final class JsonLineParser {
+     private final String text;
+     private int position;
+ 
+     private JsonLineParser(String text) {
+         this.text = text;
+     }
+ 
+     // Method to parse a JSON document, throws IllegalArgumentException if it is malformed
+     static Object parse(String text) {
+         JsonLineParser parser = new JsonLineParser(text);
+         Object value = parser.readValue();
+         parser.skipWhitespace();
+         if (parser.position != text.length()) {
+             throw parser.error("unexpected trailing characters");
+         }
+         return value;
+     }
+ 
+     private Object readValue() {
+         skipWhitespace();
+         if (position >= text.length()) {
+             throw error("unexpected end of input");
+         }
+         char c = text.charAt(position);
+         switch (c) {
+             case '{':
+                 return readObject();
+             case '[':
+                 return readArray();
+             case '"':
+                 return readString();
+             case 't':
+                 expectLiteral("true");
+                 return Boolean.TRUE;
+             case 'f':
+                 expectLiteral("false");
+                 return Boolean.FALSE;
+             case 'n':
+                 expectLiteral("null");
+                 return null;
+             default:
+                 return readNumber();
+         }
+     }
+ 
+     private Map<String, Object> readObject() {
+         Map<String, Object> object = new LinkedHashMap<>();
+         position++; // '{'
+         skipWhitespace();
+         if (peek() == '}') {
+             position++;
+             return object;
+         }
+         while (true) {
+             skipWhitespace();
+             if (peek() != '"') {
+                 throw error("expected a field name");
+             }
+             String key = readString();
+             skipWhitespace();
+             expect(':');
+             object.put(key, readValue());
+             skipWhitespace();
+             if (peek() == ',') {
+                 position++;
+             } else {
+                 expect('}');
+                 return object;
+             }
+         }
+     }
+ 
+     private List<Object> readArray() {
+         List<Object> array = new ArrayList<>();
+         position++; // '['
+         skipWhitespace();
+         if (peek() == ']') {
+             position++;
+             return array;
+         }
+         while (true) {
+             array.add(readValue());
+             skipWhitespace();
+             if (peek() == ',') {
+                 position++;
+             } else {
+                 expect(']');
+                 return array;
+             }
+         }
+     }
+ 
+     private String readString() {
+         position++; // opening quote
+         StringBuilder value = new StringBuilder();
+         while (position < text.length()) {
+             char c = text.charAt(position++);
+             if (c == '"') {
+                 return value.toString();
+             }
+             if (c != '\\') {
+                 value.append(c);
+                 continue;
+             }
+             if (position >= text.length()) {
+                 break;
+             }
+             char escaped = text.charAt(position++);
+             switch (escaped) {
+                 case 'n': value.append('\n'); break;
+                 case 't': value.append('\t'); break;
+                 case 'r': value.append('\r'); break;
+                 case 'b': value.append('\b'); break;
+                 case 'f': value.append('\f'); break;
+                 case 'u':
+                     if (position + 4 > text.length()) {
+                         throw error("truncated unicode escape");
+                     }
+                     value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                     position += 4;
+                     break;
+                 default: value.append(escaped); // \" \\ \/
+             }
+         }
+         throw error("unterminated string");
+     }
+ 
+     private BigDecimal readNumber() {
+         int start = position;
+         while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+             position++;
+         }
+         if (start == position) {
+             throw error("unexpected character '" + text.charAt(position) + "'");
+         }
+         try {
+             return new BigDecimal(text.substring(start, position));
+         } catch (NumberFormatException e) {
+             throw error("invalid number " + text.substring(start, position));
+         }
+     }
+ 
+     private void expectLiteral(String literal) {
+         if (!text.startsWith(literal, position)) {
+             throw error("expected " + literal);
+         }
+         position += literal.length();
+     }
+ 
+     private void expect(char c) {
+         if (peek() != c) {
+             throw error("expected '" + c + "'");
+         }
+         position++;
+     }
+ 
+     private char peek() {
+         return position < text.length() ? text.charAt(position) : '\0';
+     }
+ 
+     private void skipWhitespace() {
+         while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+             position++;
+         }
+     }
+ 
+     private IllegalArgumentException error(String message) {
+         return new IllegalArgumentException("JSON " + message + " at column " + (position + 1));
+     }
+ }
+ 
+ // Class converting claims and customers to and from JSON objects
+ // Field names match the Claim attributes; "customer" optionally carries age, gender, address
+ // and phoneNumber for a customer who is not on file yet
+ final class ClaimJson {
+     private ClaimJson() {
+     }
+ 
+     // Method to build a claim from a parsed JSON object, throws IllegalArgumentException on bad input
+     static Claim claimFromJson(Map<?, ?> object) {
          List<String> documents = new ArrayList<>();
-         for (int i = 0; i < numDocuments; i++) {
-             System.out.print("Enter document name: ");
-             documents.add(scanner.nextLine());
+         Object documentValues = object.get("documents");
+         if (documentValues instanceof List) {
+             for (Object document : (List<?>) documentValues) {
+                 documents.add(String.valueOf(document));
+             }
+         } else if (documentValues != null) {
+             throw new IllegalArgumentException("documents must be an array");
          }
-         ReceiverBankingInfo receiverBankingInfo = new ReceiverBankingInfo(bankName, accountName, accountNumber);
-         // Create Claim object and add to list
-         Claim claim = new Claim(id, claimDate, cardNumber, examDate, documents, claimAmount, status, receiverBankingInfo, fullName);
-         claims.add(claim);
-         System.out.println("Claim added successfully.");
+         try {
+             return new Claim(
+                     text(object, "id"),
+                     ClaimDates.parse(text(object, "claimDate")),
+                     number(object, "cardNumber").longValueExact(),
+                     ClaimDates.parse(text(object, "examDate")),
+                     documents,
+                     number(object, "claimAmount").doubleValue(),
+                     ClaimStatus.valueOf(text(object, "status")),
+                     new ReceiverBankingInfo(text(object, "bankName"), text(object, "accountName"), text(object, "accountNumber")),
+                     text(object, "fullName"));
+         } catch (ArithmeticException | DateTimeException e) {
+             throw new IllegalArgumentException(e.getMessage(), e);
+         }
+     }
+ 
+     // Method to read the optional nested customer details, returns null if there are none
+     static Customer customerFromJson(Map<?, ?> object, String fullName) {
+         if (!(object.get("customer") instanceof Map)) {
+             return null;
+         }
+         Map<?, ?> details = (Map<?, ?>) object.get("customer");
+         try {
+             return new Customer(fullName, number(details, "age").intValueExact(), text(details, "gender"),
+                     text(details, "address"), text(details, "phoneNumber"));
+         } catch (ArithmeticException e) {
+             throw new IllegalArgumentException(e.getMessage(), e);
+         }
+     }
  
-         // Save customers and claims immediately after addition
-         FileManager.writeCustomersToFile(customers);
-         FileManager.writeClaimsToFile(claims);
+     static String toJson(Claim claim) {
+         StringBuilder json = new StringBuilder(320);
+         ReceiverBankingInfo bankingInfo = claim.getReceiverBankingInfo();
+         json.append("{\"id\":").append(quote(claim.getId()))
+                 .append(",\"claimDate\":").append(quote(ClaimDates.format(claim.getClaimDate())))
+                 .append(",\"cardNumber\":").append(claim.getCardNumber())
+                 .append(",\"examDate\":").append(quote(ClaimDates.format(claim.getExamDate())))
+                 .append(",\"claimAmount\":").append(claim.getClaimAmount())
+                 .append(",\"status\":").append(quote(claim.getStatus().name()))
+                 .append(",\"bankName\":").append(quote(bankingInfo.getBankName()))
+                 .append(",\"accountName\":").append(quote(bankingInfo.getAccountName()))
+                 .append(",\"accountNumber\":").append(quote(bankingInfo.getAccountNumber()))
+                 .append(",\"documents\":[");
+         List<String> documents = claim.getDocuments();
+         for (int i = 0; i < documents.size(); i++) {
+             json.append(i == 0 ? "" : ",").append(quote(documents.get(i)));
+         }
+         json.append("],\"fullName\":").append(quote(claim.getFullName()))
+                 .append(",\"version\":").append(claim.getVersion())
+                 .append('}');
+         return json.toString();
      }
  
-     // Method to update an existing claim
-     public static void updateClaim(Scanner scanner, List<Claim> claims) {
-         System.out.print("Enter claim ID to update: ");
-         String idToUpdate = scanner.nextLine();
-         Claim claimToUpdate = null;
-         for (Claim claim : claims) {
-             if (claim.getId().equals(idToUpdate)) {
-                 claimToUpdate = claim;
-                 break;
+     static String toJson(Customer customer) {
+         return "{\"fullName\":" + quote(customer.getFullName())
+                 + ",\"age\":" + customer.getAge()
+                 + ",\"gender\":" + quote(customer.getGender())
+                 + ",\"address\":" + quote(customer.getAddress())
+                 + ",\"phoneNumber\":" + quote(customer.getPhoneNumber()) + "}";
+     }
+ 
+     static String quote(String value) {
+         StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+         for (int i = 0; i < value.length(); i++) {
+             char c = value.charAt(i);
+             switch (c) {
+                 case '"': quoted.append("\\\""); break;
+                 case '\\': quoted.append("\\\\"); break;
+                 case '\n': quoted.append("\\n"); break;
+                 case '\r': quoted.append("\\r"); break;
+                 case '\t': quoted.append("\\t"); break;
+                 default:
+                     if (c < 0x20) {
+                         quoted.append(String.format("\\u%04x", (int) c));
+                     } else {
+                         quoted.append(c);
+                     }
              }
          }
-         if (claimToUpdate != null) {
-             // Prompt for new claim details
-             System.out.print("Enter new claim date (YYYY-MM-DD): ");
-             Date newClaimDate = parseDate(scanner.nextLine());
-             System.out.print("Enter new card number: ");
-             long newCardNumber = Long.parseLong(scanner.nextLine());
-             System.out.print("Enter new exam date (YYYY-MM-DD): ");
-             Date newExamDate = parseDate(scanner.nextLine());
-             System.out.print("Enter new claim amount: ");
-             double newClaimAmount = Double.parseDouble(scanner.nextLine());
-             System.out.print("Enter new status (NEW, PROCESSING, DONE): ");
-             ClaimStatus newStatus = ClaimStatus.valueOf(scanner.nextLine());
-             System.out.print("Enter new bank name: ");
-             String newBankName = scanner.nextLine();
-             System.out.print("Enter new account name: ");
-             String newAccountName = scanner.nextLine();
-             System.out.print("Enter new account number: ");
-             String newAccountNumber = scanner.nextLine();
-             System.out.print("Enter new number of documents: ");
-             int newNumDocuments = Integer.parseInt(scanner.nextLine());
-             List<String> newDocuments = new ArrayList<>();
-             for (int i = 0; i < newNumDocuments; i++) {
-                 System.out.print("Enter new document name: ");
-                 newDocuments.add(scanner.nextLine());
+         return quoted.append('"').toString();
+     }
+ 
+     private static String text(Map<?, ?> object, String field) {
+         Object value = object.get(field);
+         if (value == null) {
+             throw new IllegalArgumentException("missing field " + field);
+         }
+         return value.toString();
+     }
+ 
+     private static BigDecimal number(Map<?, ?> object, String field) {
+         Object value = object.get(field);
+         if (value instanceof BigDecimal) {
+             return (BigDecimal) value;
+         }
+         if (value instanceof String) {
+             try {
+                 return new BigDecimal((String) value);
+             } catch (NumberFormatException e) {
+                 throw new IllegalArgumentException("non-numeric field " + field);
              }
-             ReceiverBankingInfo newReceiverBankingInfo = new ReceiverBankingInfo(newBankName, newAccountName, newAccountNumber);
+         }
+         throw new IllegalArgumentException("missing or non-numeric field " + field);
+     }
+ }
  
-             // Update claim attributes
-             claimToUpdate.setClaimDate(newClaimDate);
-             claimToUpdate.setCardNumber(newCardNumber);
-             claimToUpdate.setExamDate(newExamDate);
-             claimToUpdate.setClaimAmount(newClaimAmount);
-             claimToUpdate.setStatus(newStatus);
-             claimToUpdate.setReceiverBankingInfo(newReceiverBankingInfo);
-             claimToUpdate.setDocuments(newDocuments);
+ // Class implementing the non-interactive batch import of claim feeds
+ // Records are parsed and validated in parallel, deduplicated on claim id, and committed
+ // to the journal with a single write; rejects are reported with their line numbers
+ class BatchImporter {
+     private static final int MAX_PRINTED_REJECTS = 20;
  
-             System.out.println("Claim updated successfully.");
+     // Outcome of parsing one input line; exactly one of claim or error is set
+     private static final class ParsedRecord {
+         final int lineNumber;
+         final String line;
+         final Claim claim;
+         final Customer customer; // optional customer details carried by JSON records
+         final String error;
  
-             // Save claims immediately after update
-             FileManager.writeClaimsToFile(claims);
-         } else {
-             System.out.println("Claim not found.");
+         ParsedRecord(int lineNumber, String line, Claim claim, Customer customer, String error) {
+             this.lineNumber = lineNumber;
+             this.line = line;
+             this.claim = claim;
+             this.customer = customer;
+             this.error = error;
          }
      }
  
-     // Method to delete a claim
-     public static void deleteClaim(Scanner scanner, List<Claim> claims, List<Customer> customers) {
-         System.out.print("Enter claim ID to delete: ");
-         String idToDelete = scanner.nextLine();
-         boolean found = false;
-         Iterator<Claim> claimIterator = claims.iterator();
-         while (claimIterator.hasNext()) {
-             Claim claim = claimIterator.next();
-             if (claim.getId().equals(idToDelete)) {
-                 claimIterator.remove();
-                 System.out.println("Claim deleted successfully.");
-                 found = true;
-                 break;
+     // Method to import a claims.txt-format CSV or a JSONL feed, with an optional customers.txt-format file
+     public static void run(String claimsFile, String customersFile) throws IOException {
+         long startTime = System.nanoTime();
+         List<Customer> loadedCustomers = new ArrayList<>();
+         List<Claim> loadedClaims = new ArrayList<>();
+         ClaimJournal journal = ClaimJournal.open(loadedCustomers, loadedClaims);
+         ClaimRepository repository = new ClaimRepository(loadedClaims);
+         CustomerDirectory directory = new CustomerDirectory(loadedCustomers);
+         CardRegistry cards = CardRegistry.load(CardRegistry.CARDS_FILE);
+         cards.registerAll(loadedClaims);
+         ClaimFraudDetector fraud = new ClaimFraudDetector(loadedClaims);
+         repository.addListener(fraud);
+         ClaimChangeFeed changes = ClaimChangeFileSink.openFeed(ClaimChangeFileSink.CHANGES_FILE);
+         changes.subscribe("history", ClaimHistory.open(ClaimHistory.HISTORY_FILE));
+         repository.addListener(changes);
+ 
+         // Parse and validate every line in parallel, keeping file order
+         long parseStart = System.nanoTime();
+         List<String> lines = Files.readAllLines(Paths.get(claimsFile), StandardCharsets.UTF_8);
+         boolean json = claimsFile.endsWith(".jsonl") || claimsFile.endsWith(".json");
+         ParsedRecord[] records = IntStream.range(0, lines.size()).parallel()
+                 .filter(i -> !lines.get(i).trim().isEmpty())
+                 .mapToObj(i -> json ? parseJson(i + 1, lines.get(i)) : parseCsv(i + 1, lines.get(i)))
+                 .toArray(ParsedRecord[]::new);
+         Map<String, Customer> batchCustomers = new HashMap<>();
+         if (customersFile != null) {
+             FileManager.streamCustomers(customersFile,
+                     customer -> batchCustomers.putIfAbsent(CustomerDirectory.normalizeName(customer.getFullName()), customer));
+         }
+         long parseNanos = System.nanoTime() - parseStart;
+ 
+         // Deduplicate and resolve customers sequentially so the first occurrence of an id wins
+         List<Claim> acceptedClaims = new ArrayList<>();
+         List<Customer> newCustomers = new ArrayList<>();
+         Set<String> newCustomerNames = new HashSet<>();
+         Set<String> batchIds = new HashSet<>();
+         List<ParsedRecord> rejects = new ArrayList<>();
+         for (ParsedRecord record : records) {
+             if (record.error != null) {
+                 rejects.add(record);
+                 continue;
              }
+             Claim claim = record.claim;
+             if (repository.getClaimById(claim.getId()) != null) {
+                 rejects.add(reject(record, "claim ID already exists"));
+                 continue;
+             }
+             String invalid = cards.validate(claim);
+             if (invalid != null) {
+                 rejects.add(reject(record, invalid));
+                 continue;
+             }
+             if (!batchIds.add(claim.getId())) {
+                 rejects.add(reject(record, "duplicate claim ID in batch"));
+                 continue;
+             }
+             String name = CustomerDirectory.normalizeName(claim.getFullName());
+             if (directory.getByName(name).isEmpty() && !newCustomerNames.contains(name)) {
+                 Customer customer = record.customer != null ? record.customer : batchCustomers.get(name);
+                 if (customer == null) {
+                     batchIds.remove(claim.getId());
+                     rejects.add(reject(record, "no customer record for " + claim.getFullName()));
+                     continue;
+                 }
+                 newCustomers.add(customer);
+                 newCustomerNames.add(name);
+             }
+             cards.register(claim); // later claims of the batch are checked against its new cards
+             acceptedClaims.add(claim);
          }
-         if (!found) {
-             System.out.println("Claim not found.");
-             return;
+ 
+         // Commit everything in one persistence pass
+         for (Customer customer : newCustomers) {
+             directory.add(customer);
          }
+         // Each claim is checked against the book and the batch claims before it
+         List<ClaimFraudDetector.Finding> flagged = new ArrayList<>();
+         for (Claim claim : acceptedClaims) {
+             List<String> suspicions = fraud.check(claim);
+             if (!suspicions.isEmpty()) {
+                 flagged.add(new ClaimFraudDetector.Finding(claim, suspicions));
+             }
+             repository.addClaim(claim);
+         }
+         journal.logBatch(newCustomers, acceptedClaims);
+         journal.close();
+         changes.close();
+         cards.save(CardRegistry.CARDS_FILE);
+         long totalNanos = System.nanoTime() - startTime;
  
-         // Remove associated customer if no other claims are associated with them
-         Iterator<Customer> customerIterator = customers.iterator();
-         while (customerIterator.hasNext()) {
-             Customer customer = customerIterator.next();
-             boolean associatedClaimExists = false;
-             for (Claim claim : claims) {
-                 if (claim.getFullName().equalsIgnoreCase(customer.getFullName())) {
-                     associatedClaimExists = true;
-                     break;
+         System.out.println("Batch import of " + claimsFile + " finished.");
+         System.out.println("Records read: " + records.length);
+         System.out.println("Claims imported: " + acceptedClaims.size());
+         System.out.println("New customers: " + newCustomers.size());
+         System.out.println("Rejected: " + rejects.size());
+         System.out.println("Flagged for review: " + flagged.size());
+         System.out.printf("Parse and validate: %.1f ms (%.0f records/sec)%n", parseNanos / 1e6, records.length * 1e9 / Math.max(1, parseNanos));
+         System.out.printf("Total: %.1f ms (%.0f records/sec)%n", totalNanos / 1e6, records.length * 1e9 / Math.max(1, totalNanos));
+         if (!rejects.isEmpty()) {
+             String rejectsFile = claimsFile + ".rejects.txt";
+             try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(rejectsFile)))) {
+                 for (ParsedRecord reject : rejects) {
+                     writer.println("line " + reject.lineNumber + ": " + reject.error + ": " + reject.line);
                  }
              }
-             if (!associatedClaimExists) {
-                 customerIterator.remove();
-                 System.out.println("Customer '" + customer.getFullName() + "' removed as no associated claims exist.");
+             for (int i = 0; i < Math.min(MAX_PRINTED_REJECTS, rejects.size()); i++) {
+                 System.out.println("\tline " + rejects.get(i).lineNumber + ": " + rejects.get(i).error);
              }
+             System.out.println("All rejects written to " + rejectsFile + ".");
+         }
+         if (!flagged.isEmpty()) {
+             String flaggedFile = claimsFile + ".flagged.txt";
+             ClaimFraudDetector.writeFindings(flagged, flaggedFile, MAX_PRINTED_REJECTS);
+             System.out.println("All flagged claims written to " + flaggedFile + ".");
          }
-         // Save customers and claims immediately after deletion
-         FileManager.writeCustomersToFile(customers);
-         FileManager.writeClaimsToFile(claims);
      }
  
-     // Method to view all customers and their associated claims
-     public static void viewAllCustomersAndClaims(List<Customer> customers, List<Claim> claims) {
-         System.out.println("Viewing all customers and claims...");
-         for (Customer customer : customers) {
-             System.out.println("Customer Information:");
-             System.out.println("Full Name: " + customer.getFullName());
-             System.out.println("Age: " + customer.getAge());
-             System.out.println("Gender: " + customer.getGender());
-             System.out.println("Address: " + customer.getAddress());
-             System.out.println("Phone Number: " + customer.getPhoneNumber());
- 
-             System.out.println("\nAssociated Claims:");
-             boolean foundClaim = false;
-             for (Claim claim : claims) {
-                 if (claim.getFullName().equals(customer.getFullName())) {
-                     foundClaim = true;
-                     System.out.println("\tClaim ID: " + claim.getId());
-                     System.out.println("\tClaim date: " + claim.getClaimDate());
-                     System.out.println("\tCard number: " + claim.getCardNumber());
-                     System.out.println("\tExam date: " + claim.getExamDate());
-                     System.out.println("\tClaim amount: $" + claim.getClaimAmount());
-                     System.out.println("\tStatus: " + claim.getStatus());
-                     ReceiverBankingInfo receiverInfo = claim.getReceiverBankingInfo();
-                     System.out.println("\tBank name: " + receiverInfo.getBankName());
-                     System.out.println("\tAccount name: " + receiverInfo.getAccountName());
-                     System.out.println("\tAccount number: " + receiverInfo.getAccountNumber());
-                     List<String> documents = claim.getDocuments();
-                     System.out.println("\tNumber of Documents: " + documents.size());
-                     if (!documents.isEmpty()) {
-                         System.out.println("\tDocuments:");
-                         for (String document : documents) {
-                             System.out.println("\t" + document);
-                         }
-                     }
-                     System.out.println();
-                 }
+     private static ParsedRecord reject(ParsedRecord record, String error) {
+         return new ParsedRecord(record.lineNumber, record.line, null, null, error);
+     }
+ 
+     // Method to parse one line in claims.txt format
+     private static ParsedRecord parseCsv(int lineNumber, String line) {
+         try {
+             FieldTokenizer fields = new FieldTokenizer();
+             fields.tokenize(line);
+             Claim claim = FileManager.decodeClaim(fields);
+             String error = validate(claim);
+             return new ParsedRecord(lineNumber, line, error == null ? claim : null, null, error);
+         } catch (IllegalArgumentException e) {
+             return new ParsedRecord(lineNumber, line, null, null, e.getMessage());
+         }
+     }
+ 
+     // Method to parse one JSON object in the ClaimJson format
+     private static ParsedRecord parseJson(int lineNumber, String line) {
+         try {
+             Object parsed = JsonLineParser.parse(line);
+             if (!(parsed instanceof Map)) {
+                 throw new IllegalArgumentException("expected a JSON object");
              }
-             if (!foundClaim) {
-                 System.out.println("\tThis customer currently has no claims.");
+             Map<?, ?> object = (Map<?, ?>) parsed;
+             Claim claim = ClaimJson.claimFromJson(object);
+             Customer customer = ClaimJson.customerFromJson(object, claim.getFullName());
+             String error = validate(claim);
+             if (error == null && customer != null) {
+                 error = validate(customer);
              }
+             return error == null
+                     ? new ParsedRecord(lineNumber, line, claim, customer, null)
+                     : new ParsedRecord(lineNumber, line, null, null, error);
+         } catch (IllegalArgumentException | ArithmeticException | DateTimeException e) {
+             return new ParsedRecord(lineNumber, line, null, null, e.getMessage());
          }
      }
  
-     // Method to view details of one customer and their associated claims
-     public static void viewOneCustomerAndClaim(Scanner scanner, List<Customer> customers, List<Claim> claims) {
-         System.out.print("Enter the full name of the customer to view: ");
-         String fullName = scanner.nextLine();
-         boolean found = false;
-         for (Customer customer : customers) {
-             if (customer.getFullName().equalsIgnoreCase(fullName)) {
-                 found = true;
-                 System.out.println("Customer Information:");
-                 System.out.println("Full Name: " + customer.getFullName());
-                 System.out.println("Age: " + customer.getAge());
-                 System.out.println("Gender: " + customer.getGender());
-                 System.out.println("Address: " + customer.getAddress());
-                 System.out.println("Phone Number: " + customer.getPhoneNumber());
- 
-                 System.out.println("\nAssociated Claims:");
-                 boolean foundClaim = false;
-                 for (Claim claim : claims) {
-                     if (claim.getFullName().equals(customer.getFullName())) {
-                         foundClaim = true;
-                         System.out.println("\tClaim ID: " + claim.getId());
-                         System.out.println("\tClaim date: " + claim.getClaimDate());
-                         System.out.println("\tCard number: " + claim.getCardNumber());
-                         System.out.println("\tExam date: " + claim.getExamDate());
-                         System.out.println("\tClaim amount: $" + claim.getClaimAmount());
-                         System.out.println("\tStatus: " + claim.getStatus());
-                         ReceiverBankingInfo receiverInfo = claim.getReceiverBankingInfo();
-                         System.out.println("\tBank name: " + receiverInfo.getBankName());
-                         System.out.println("\tAccount name: " + receiverInfo.getAccountName());
-                         System.out.println("\tAccount number: " + receiverInfo.getAccountNumber());
-                         List<String> documents = claim.getDocuments();
-                         System.out.println("\tNumber of Documents: " + documents.size());
-                         if (!documents.isEmpty()) {
-                             System.out.println("\tDocuments:");
-                             for (String document : documents) {
-                                 System.out.println("\t" + document);
-                             }
-                         }
-                         System.out.println();
-                     }
-                 }
-                 if (!foundClaim) {
-                     System.out.println("\tThis customer currently has no claims.");
+     // Method to check a parsed claim, returns the reason it is invalid or null if it is fine
+     static String validate(Claim claim) {
+         if (claim.getId().trim().isEmpty()) {
+             return "empty claim ID";
+         }
+         if (claim.getFullName().trim().isEmpty()) {
+             return "empty full name";
+         }
+         if (claim.getClaimDate() == null || claim.getExamDate() == null) {
+             return "missing date";
+         }
+         if (!(claim.getClaimAmount() >= 0) || Double.isInfinite(claim.getClaimAmount())) {
+             return "invalid claim amount " + claim.getClaimAmount();
+         }
+         ReceiverBankingInfo bankingInfo = claim.getReceiverBankingInfo();
+         List<String> textFields = new ArrayList<>(claim.getDocuments());
+         Collections.addAll(textFields, claim.getId(), claim.getFullName(),
+                 bankingInfo.getBankName(), bankingInfo.getAccountName(), bankingInfo.getAccountNumber());
+         for (String field : textFields) {
+             if (!storable(field)) {
+                 return "field contains a comma or line break: " + field;
+             }
+         }
+         return null;
+     }
+ 
+     static String validate(Customer customer) {
+         if (customer.getAge() < 0) {
+             return "invalid age " + customer.getAge();
+         }
+         for (String field : new String[]{customer.getGender(), customer.getAddress(), customer.getPhoneNumber()}) {
+             if (!storable(field)) {
+                 return "field contains a comma or line break: " + field;
+             }
+         }
+         return null;
+     }
+ 
+     // The text formats have no quoting, so commas and line breaks cannot be stored
+     private static boolean storable(String field) {
+         return field.indexOf(',') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0;
+     }
+ }
+ 
+ // Class generating realistic synthetic claims.txt/customers.txt files for benchmarks and load tests
+ // Each customer gets one to three claims, so the customer/claim join has realistic fan-out
+ class SyntheticDataGenerator {
+     private static final String[] FIRST_NAMES = {
+             "An", "Binh", "Chi", "Dung", "Giang", "Hai", "Hanh", "Hoa", "Hung", "Huong",
+             "Khanh", "Lan", "Linh", "Long", "Mai", "Minh", "Nam", "Ngoc", "Phuong", "Quan",
+             "Quang", "Son", "Tam", "Thanh", "Thao", "Trang", "Trung", "Tuan", "Van", "Vy",
+             "Anna", "David", "Emma", "James", "Laura", "Michael", "Olivia", "Peter", "Sarah", "Thomas"};
+     private static final String[] LAST_NAMES = {
+             "Nguyen", "Tran", "Le", "Pham", "Hoang", "Huynh", "Phan", "Vu", "Vo", "Dang",
+             "Bui", "Do", "Ho", "Ngo", "Duong", "Ly", "Truong", "Dinh", "Lam", "Mai",
+             "Smith", "Johnson", "Brown", "Taylor", "Wilson", "Davies", "Evans", "Walker", "White", "Clarke"};
+     private static final String[] STREETS = {
+             "Nguyen Van Linh", "Le Loi", "Hai Ba Trung", "Dien Bien Phu", "Vo Van Kiet", "Tran Hung Dao",
+             "Nguyen Hue", "Pasteur", "Cach Mang Thang Tam", "Ly Thuong Kiet", "Phan Xich Long", "Le Van Sy"};
+     private static final String[] DISTRICTS = {
+             "District 1", "District 3", "District 5", "District 7", "District 10", "Binh Thanh",
+             "Phu Nhuan", "Tan Binh", "Go Vap", "Thu Duc"};
+     private static final String[] BANKS = {
+             "Vietcombank", "Techcombank", "BIDV", "VietinBank", "ACB", "VPBank", "MB Bank",
+             "Sacombank", "TPBank", "HSBC", "ANZ", "Citibank"};
+     private static final String[] DOCUMENT_TYPES = {
+             "medical_report", "invoice", "prescription", "discharge_summary", "xray", "receipt"};
+     private static final long FIRST_CLAIM_DAY = LocalDate.of(2021, 1, 1).toEpochDay();
+     private static final int CLAIM_DAY_RANGE = 4 * 365;
+     static final String DATA_DIRECTORY = "bench-data"; // benchmark datasets, one pair of files per size
+     static final long SEED = 42;
+ 
+     static String claimsFile(int size) {
+         return DATA_DIRECTORY + "/claims-" + size + ".txt";
+     }
+ 
+     static String customersFile(int size) {
+         return DATA_DIRECTORY + "/customers-" + size + ".txt";
+     }
+ 
+     // Method to generate the benchmark dataset of the given size unless an earlier run already did
+     static void ensureDataset(int size) throws IOException {
+         Files.createDirectories(Paths.get(DATA_DIRECTORY));
+         if (!Files.exists(Paths.get(claimsFile(size))) || !Files.exists(Paths.get(customersFile(size)))) {
+             System.out.println("Generating " + size + " synthetic claims...");
+             generate(size, claimsFile(size), customersFile(size), SEED);
+         }
+     }
+ 
+     // Method to pick claim ids at random, the same ones on every run
+     static String[] randomIds(List<Claim> claims, int count) {
+         SplittableRandom random = new SplittableRandom(SEED);
+         String[] ids = new String[count];
+         for (int i = 0; i < count; i++) {
+             ids[i] = claims.get(random.nextInt(claims.size())).getId();
+         }
+         return ids;
+     }
+ 
+     // Method to write the given number of claims plus their customers, deterministic for a given seed
+     public static void generate(int claimCount, String claimsFile, String customersFile, long seed) throws IOException {
+         SplittableRandom random = new SplittableRandom(seed);
+         int nameCombinations = FIRST_NAMES.length * 26 * LAST_NAMES.length;
+         try (PrintWriter claims = new PrintWriter(new BufferedWriter(new FileWriter(claimsFile)));
+              PrintWriter customers = new PrintWriter(new BufferedWriter(new FileWriter(customersFile)))) {
+             StringBuilder line = new StringBuilder(256);
+             int claimNumber = 0;
+             for (int customerNumber = 0; claimNumber < claimCount; customerNumber++) {
+                 String fullName = customerName(customerNumber, nameCombinations);
+                 line.setLength(0);
+                 line.append(fullName).append(',')
+                         .append(18 + random.nextInt(70)).append(',')
+                         .append(random.nextBoolean() ? "Male" : "Female").append(',')
+                         .append(1 + random.nextInt(500)).append(' ').append(pick(random, STREETS)).append(" Street ")
+                         .append(pick(random, DISTRICTS)).append(',')
+                         .append("09").append(digits(random, 8));
+                 customers.println(line);
+ 
+                 int customerClaims = 1 + random.nextInt(3);
+                 for (int i = 0; i < customerClaims && claimNumber < claimCount; i++, claimNumber++) {
+                     line.setLength(0);
+                     appendClaim(line, random, claimNumber, fullName);
+                     claims.println(line);
                  }
-                 break;
              }
          }
-         if (!found) {
-             System.out.println("Customer not found.");
+     }
+ 
+     private static void appendClaim(StringBuilder line, SplittableRandom random, int claimNumber, String fullName) {
+         String id = String.format("f-%010d", claimNumber);
+         long cardNumber = 1_000_000_000L + random.nextLong(9_000_000_000L);
+         long claimDay = FIRST_CLAIM_DAY + random.nextInt(CLAIM_DAY_RANGE);
+         long examDay = claimDay - random.nextInt(60); // exams happen before the claim is filed
+         // Log-normal amounts: most claims are small, a few are very large
+         double amount = Math.round(Math.exp(6.5 + 1.2 * gaussian(random)) * 100) / 100.0;
+         int statusRoll = random.nextInt(100);
+         ClaimStatus status = statusRoll < 20 ? ClaimStatus.NEW : statusRoll < 35 ? ClaimStatus.PROCESSING : ClaimStatus.DONE;
+ 
+         line.append(id).append(',')
+                 .append(LocalDate.ofEpochDay(claimDay)).append(',')
+                 .append(cardNumber).append(',')
+                 .append(LocalDate.ofEpochDay(examDay)).append(',')
+                 .append(amount).append(',')
+                 .append(status).append(',')
+                 .append(pick(random, BANKS)).append(',')
+                 .append(fullName.toUpperCase(Locale.ROOT)).append(',')
+                 .append(digits(random, 12));
+         int documentCount = 1 + random.nextInt(3);
+         for (int i = 0; i < documentCount; i++) {
+             line.append(',').append(id).append('_').append(cardNumber).append('_')
+                     .append(pick(random, DOCUMENT_TYPES)).append(".pdf");
+         }
+         line.append(',').append(fullName);
+     }
+ 
+     // Names are unique until the combinations run out, then a numeric suffix keeps them unique
+     private static String customerName(int customerNumber, int nameCombinations) {
+         int combination = customerNumber % nameCombinations;
+         String name = FIRST_NAMES[combination % FIRST_NAMES.length] + " "
+                 + (char) ('A' + (combination / FIRST_NAMES.length) % 26) + " "
+                 + LAST_NAMES[combination / (FIRST_NAMES.length * 26)];
+         int round = customerNumber / nameCombinations;
+         return round == 0 ? name : name + " " + (round + 1);
+     }
+ 
+     private static String pick(SplittableRandom random, String[] values) {
+         return values[random.nextInt(values.length)];
+     }
+ 
+     private static String digits(SplittableRandom random, int count) {
+         char[] chars = new char[count];
+         for (int i = 0; i < count; i++) {
+             chars[i] = (char) ('0' + random.nextInt(10));
+         }
+         return new String(chars);
+     }
+ 
+     private static double gaussian(SplittableRandom random) {
+         // Box-Muller transform, SplittableRandom has no nextGaussian
+         return Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+     }
+ }
+ 
+ // Class comparing the heap used by the claim representations on the synthetic benchmark datasets
+ // The FileManager and ClaimManager benchmarks are JMH benchmarks, run with gradle jmh (src/jmh/java).
+ class ClaimMemoryReport {
+     // Results are folded into this field so the JIT cannot eliminate the measured work
+     static volatile long blackhole;
+ 
+     // Method to compare the heap retained by a claim list with the same claims in a CompactClaimTable
+     public static void compareMemory(int size) throws IOException {
+         SyntheticDataGenerator.ensureDataset(size);
+         String claimsFile = SyntheticDataGenerator.claimsFile(size);
+ 
+         long baseline = usedHeap();
+         List<Claim> claims = new ArrayList<>();
+         FileManager.readClaimsFromFile(claims, claimsFile);
+         long objectGraph = usedHeap() - baseline;
+         int loaded = claims.size();
+         claims = null;
+ 
+         baseline = usedHeap();
+         CompactClaimTable table = new CompactClaimTable();
+         FileManager.streamClaims(claimsFile, table::add);
+         long compact = usedHeap() - baseline;
+         blackhole += table.size();
+ 
+         System.out.printf("%-22s %,14d bytes  %6.1f bytes/claim%n", "List<Claim>", objectGraph, (double) objectGraph / loaded);
+         System.out.printf("%-22s %,14d bytes  %6.1f bytes/claim  (%d distinct strings)%n", "CompactClaimTable",
+                 compact, (double) compact / table.size(), table.distinctStrings());
+         System.out.printf("Compact table uses %.0f%% of the object graph's heap.%n", 100.0 * compact / objectGraph);
+     }
+ 
+     // Method to measure live heap after repeated collections have had a chance to settle
+     private static long usedHeap() {
+         Runtime runtime = Runtime.getRuntime();
+         long used = Long.MAX_VALUE;
+         for (int i = 0; i < 5; i++) {
+             System.gc();
+             used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
          }
+         return used;
      }
  }
  
  // Main class representing the Insurance Claims System
  public class InsuranceClaimsSystem {
      public static void main(String[] args) {
-         List<Customer> customers = new ArrayList<>();
-         List<Claim> claims = new ArrayList<>();
+         if (args.length > 0) {
+             runCommand(args);
+             return;
+         }
  
-         // Load existing data from files
-         FileManager.readCustomersFromFile(customers);
-         FileManager.readClaimsFromFile(claims);
+         // Claims load in the background so the menu appears at once; a choice made before they are ready waits
+         CompletableFuture<MenuState> loading = CompletableFuture.supplyAsync(MenuState::load);
+         ClaimMetrics.startPeriodicDump();
  
          Scanner scanner = new Scanner(System.in);
          boolean exit = false;
@@ -635,36 +8121,401 @@
              System.out.println("3. Delete a claim");
              System.out.println("4. View all customers and their claims");
              System.out.println("5. View details of one customer and their claims");
-             System.out.println("6. Exit");
+             System.out.println("6. Claim analytics");
+             System.out.println("7. Search customers and claims");
+             System.out.println("8. Find claims by date, amount and status");
+             System.out.println("9. Metrics");
+             System.out.println("10. Exit");
              System.out.print("Enter your choice: ");
              int choice = Integer.parseInt(scanner.nextLine());
+             if (!loading.isDone()) {
+                 System.out.println("Loading claims...");
+             }
+             MenuState state = loading.join();
  
              switch (choice) {
                  case 1:
-                     ClaimManager.addClaim(scanner, claims, customers);
+                     ClaimManager.addClaim(scanner, state.repository, state.customers, state.journal, state.cards, state.fraud);
                      break;
                  case 2:
-                     ClaimManager.updateClaim(scanner, claims);
+                     ClaimManager.updateClaim(scanner, state.repository, state.journal, state.cards);
                      break;
                  case 3:
-                     ClaimManager.deleteClaim(scanner, claims, customers);
+                     ClaimManager.deleteClaim(scanner, state.repository, state.customers, state.journal);
                      break;
                  case 4:
-                     ClaimManager.viewAllCustomersAndClaims(customers, claims);
+                     ClaimManager.viewAllCustomersAndClaims(scanner, state.customers, state.repository);
                      break;
                  case 5:
-                     ClaimManager.viewOneCustomerAndClaim(scanner, customers, claims);
+                     ClaimManager.viewOneCustomerAndClaim(scanner, state.customers, state.repository, state.cards);
                      break;
                  case 6:
+                     state.analytics.printReport();
+                     break;
+                 case 7:
+                     ClaimManager.search(scanner, state.search);
+                     break;
+                 case 8:
+                     ClaimManager.findClaims(scanner, state.ranges);
+                     break;
+                 case 9:
+                     ClaimMetrics.print();
+                     if (state.details != null) {
+                         state.details.printStats(System.out);
+                     }
+                     break;
+                 case 10:
+                     System.out.println("Saving changes...");
+                     if (!state.journal.flushAndWait()) {
+                         System.out.println("Some pending changes could not be written to " + ClaimJournal.LOG_FILE + " and were not saved.");
+                     }
                      System.out.println("Exiting...");
                      exit = true;
                      break;
                  default:
-                     System.out.println("Invalid choice. Please enter a number between 1 and 6.");
+                     System.out.println("Invalid choice. Please enter a number between 1 and 10.");
              }
          }
  
          scanner.close();
+         MenuState state = loading.join();
+         state.journal.close();
+         state.changes.close();
+         // A clean exit lets the next start skip parsing the text files
+         ClaimSnapshot.save(state.customers.getAll(), state.repository.viewAllClaims(), state.journal.getLastSequence());
+         try {
+             state.cards.save(CardRegistry.CARDS_FILE);
+         } catch (IOException e) {
+             e.printStackTrace();
+         }
+         if (state.details != null) {
+             try {
+                 state.details.close();
+             } catch (IOException e) {
+                 e.printStackTrace();
+             }
+         }
+     }
+ 
+     // Everything the interactive menu works on
+     private static final class MenuState {
+         final ClaimJournal journal;
+         final CustomerDirectory customers;
+         final ClaimRepository repository;
+         final ClaimAnalytics analytics;
+         final ClaimSearch search;
+         final ClaimRangeIndex ranges;
+         final CardRegistry cards;
+         final ClaimFraudDetector fraud;
+         final ClaimChangeFeed changes;
+         final ClaimDetailCache details; // null when every claim keeps its details in memory
+ 
+         private MenuState(ClaimJournal journal, CustomerDirectory customers, ClaimRepository repository,
+                           CardRegistry cards, ClaimFraudDetector fraud, ClaimChangeFeed changes, ClaimDetailCache details) {
+             this.journal = journal;
+             this.changes = changes;
+             this.customers = customers;
+             this.repository = repository;
+             this.cards = cards;
+             this.fraud = fraud;
+             this.details = details;
+             this.analytics = new ClaimAnalytics(repository);
+             this.search = new ClaimSearch(customers, repository);
+             this.ranges = new ClaimRangeIndex(repository);
+             repository.addListener(fraud);
+             repository.addListener(changes);
+         }
+ 
+         // Method to load the last snapshot, replay the journal over it and build the indexes
+         static MenuState load() {
+             List<Customer> loadedCustomers = new ArrayList<>();
+             List<Claim> claims = new ArrayList<>();
+             ClaimJournal journal = ClaimJournal.open(loadedCustomers, claims);
+             // Queued journal entries must still be written if the menu ends abnormally
+             Runtime.getRuntime().addShutdownHook(new Thread(journal::close));
+             ClaimChangeFeed changes = ClaimChangeFileSink.openFeed(ClaimChangeFileSink.CHANGES_FILE);
+             changes.subscribe("history", ClaimHistory.open(ClaimHistory.HISTORY_FILE));
+             Runtime.getRuntime().addShutdownHook(new Thread(changes::close));
+             CardRegistry cards = CardRegistry.load(CardRegistry.CARDS_FILE);
+             cards.registerAll(claims);
+             // The fraud indexes read every account number, so they are built while banking info is still in memory
+             ClaimFraudDetector fraud = new ClaimFraudDetector(claims);
+             // Documents and banking info are read for few claims, so only a cache of them stays in memory
+             ClaimDetailCache details = ClaimDetailCache.offloadToFile(claims);
+             return new MenuState(journal, new CustomerDirectory(loadedCustomers), new ClaimRepository(claims), cards, fraud, changes, details);
+         }
+     }
+ 
+     // Method to run a non-interactive command given on the command line
+     private static void runCommand(String[] args) {
+         try {
+             switch (args[0]) {
+                 case "--to-binary": {
+                     String textFile = args.length > 1 ? args[1] : FileManager.CLAIMS_FILE;
+                     String binaryFile = args.length > 2 ? args[2] : BinaryClaimStore.BINARY_CLAIMS_FILE;
+                     int count = BinaryClaimStore.convertTextToBinary(textFile, binaryFile);
+                     System.out.println("Converted " + count + " claims from " + textFile + " to " + binaryFile + ".");
+                     break;
+                 }
+                 case "--to-text": {
+                     String binaryFile = args.length > 1 ? args[1] : BinaryClaimStore.BINARY_CLAIMS_FILE;
+                     String textFile = args.length > 2 ? args[2] : FileManager.CLAIMS_FILE;
+                     int count = BinaryClaimStore.convertBinaryToText(binaryFile, textFile);
+                     System.out.println("Converted " + count + " claims from " + binaryFile + " to " + textFile + ".");
+                     break;
+                 }
+                 case "--import": {
+                     if (args.length < 2) {
+                         printUsage();
+                         break;
+                     }
+                     BatchImporter.run(args[1], args.length > 2 ? args[2] : null);
+                     break;
+                 }
+                 case "--serve": {
+                     int port = args.length > 1 ? Integer.parseInt(args[1]) : ClaimHttpServer.DEFAULT_PORT;
+                     serve(port);
+                     break;
+                 }
+                 case "--process": {
+                     int workers = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+                     ClaimWorkflow.run(workers, args.length > 2 ? Long.parseLong(args[2]) : 0);
+                     break;
+                 }
+                 case "--load-test": {
+                     ClaimLoadTest.run(args.length > 1 ? Integer.parseInt(args[1]) : 5);
+                     break;
+                 }
+                 case "--report": {
+                     if (args.length < 2) {
+                         printUsage();
+                         break;
+                     }
+                     List<Customer> loadedCustomers = new ArrayList<>();
+                     List<Claim> claims = new ArrayList<>();
+                     ClaimJournal journal = ClaimJournal.open(loadedCustomers, claims);
+                     journal.close();
+                     long start = System.nanoTime();
+                     int count = CustomerClaimReport.export(new CustomerDirectory(loadedCustomers), new ClaimRepository(claims), args[1]);
+                     System.out.printf("Exported %d customers to %s in %.1f ms.%n", count, args[1], (System.nanoTime() - start) / 1e6);
+                     break;
+                 }
+                 case "--generate": {
+                     int count = Integer.parseInt(args[1]);
+                     String claimsFile = args.length > 2 ? args[2] : FileManager.CLAIMS_FILE;
+                     String customersFile = args.length > 3 ? args[3] : FileManager.CUSTOMERS_FILE;
+                     SyntheticDataGenerator.generate(count, claimsFile, customersFile, System.nanoTime());
+                     System.out.println("Generated " + count + " claims in " + claimsFile + " and their customers in " + customersFile + ".");
+                     break;
+                 }
+                 case "--memory": {
+                     ClaimMemoryReport.compareMemory(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+                     break;
+                 }
+                 case "--changes": {
+                     long fromSequence = args.length > 1 ? Long.parseLong(args[1]) : 1;
+                     printChanges(fromSequence, args.length > 2 && args[2].equals("--follow"));
+                     break;
+                 }
+                 case "--fraud": {
+                     List<Customer> loadedCustomers = new ArrayList<>();
+                     List<Claim> claims = new ArrayList<>();
+                     ClaimJournal journal = ClaimJournal.open(loadedCustomers, claims);
+                     journal.close();
+                     long start = System.nanoTime();
+                     List<ClaimFraudDetector.Finding> findings = ClaimFraudDetector.rescan(claims);
+                     System.out.printf("Checked %d claims in %.1f ms, %d flagged for review.%n", claims.size(), (System.nanoTime() - start) / 1e6, findings.size());
+                     String findingsFile = args.length > 1 ? args[1] : "flagged.txt";
+                     ClaimFraudDetector.writeFindings(findings, findingsFile, 20);
+                     System.out.println("All flagged claims written to " + findingsFile + ".");
+                     break;
+                 }
+                 case "--history": {
+                     if (args.length < 2) {
+                         printUsage();
+                         break;
+                     }
+                     printHistory(args[1], args.length > 2 ? args[2] : null);
+                     break;
+                 }
+                 case "--as-of": {
+                     if (args.length < 2) {
+                         printUsage();
+                         break;
+                     }
+                     printBookAsOf(args[1]);
+                     break;
+                 }
+                 case "--shard": {
+                     if (args.length < 2) {
+                         printUsage();
+                         break;
+                     }
+                     shard(Integer.parseInt(args[1]), args.length > 2 ? args[2] : ShardedClaimCache.DEFAULT_DIRECTORY);
+                     break;
+                 }
+                 default:
+                     printUsage();
+             }
+         } catch (IOException e) {
+             e.printStackTrace();
+         } catch (InterruptedException e) {
+             Thread.currentThread().interrupt();
+         }
+     }
+ 
+     // Method to serve the claim book to concurrent clients until Enter is pressed or the process is stopped
+     private static void serve(int port) throws IOException, InterruptedException {
+         List<Customer> loadedCustomers = new ArrayList<>();
+         List<Claim> claims = new ArrayList<>();
+         ClaimJournal journal = ClaimJournal.open(loadedCustomers, claims);
+         ClaimService service = new ClaimService(claims, loadedCustomers, journal);
+         ClaimChangeFeed changes = ClaimChangeFileSink.openFeed(ClaimChangeFileSink.CHANGES_FILE);
+         changes.subscribe("history", ClaimHistory.open(ClaimHistory.HISTORY_FILE));
+         service.addListener(changes);
+         ClaimHttpServer server = new ClaimHttpServer(service, port);
+         CountDownLatch stopped = new CountDownLatch(1);
+         AtomicBoolean stopping = new AtomicBoolean();
+         Runnable stop = () -> {
+             if (stopping.compareAndSet(false, true)) {
+                 server.stop();
+                 journal.close();
+                 changes.close();
+                 stopped.countDown();
+             }
+         };
+         Runtime.getRuntime().addShutdownHook(new Thread(stop));
+         ClaimMetrics.startPeriodicDump();
+         server.start();
+         System.out.println("Serving " + claims.size() + " claims on http://localhost:" + server.getPort() + "/claims. Press Enter to stop.");
+         try {
+             new Scanner(System.in).nextLine();
+             stop.run();
+         } catch (NoSuchElementException e) {
+             stopped.await(); // no console attached, run until the process is stopped
+         }
+     }
+ 
+     // Method to partition the claim book into a shard cache on first use, or load the cache and rebalance it
+     // to a new count, then report on it shard by shard. The cache is stamped with the journal sequence of the
+     // claim book it copies; if the book changed since, it is loaded and the differences are applied.
+     private static void shard(int shardCount, String directory) throws IOException {
+         long start = System.nanoTime();
+         long sequence = ClaimJournal.currentSequence();
+         ShardedClaimCache cache = ShardedClaimCache.open(directory);
+         if (cache == null) {
+             cache = ShardedClaimCache.create(directory, shardCount);
+             cache.synchronize(loadClaimBook(), sequence);
+             cache.save();
+             System.out.printf("Partitioned %d claims into %d shards in %s in %.1f ms.%n", cache.size(), shardCount, directory, (System.nanoTime() - start) / 1e6);
+         } else {
+             System.out.printf("Loaded %d claims from %d shards in %s in %.1f ms.%n", cache.size(), cache.getShardCount(), directory, (System.nanoTime() - start) / 1e6);
+             if (cache.getSequence() != sequence) {
+                 start = System.nanoTime();
+                 int changed = cache.synchronize(loadClaimBook(), sequence);
+                 cache.save();
+                 System.out.printf("Applied %d claims changed in the claim book since the shards were written in %.1f ms.%n", changed, (System.nanoTime() - start) / 1e6);
+             }
+             if (cache.getShardCount() != shardCount) {
+                 start = System.nanoTime();
+                 cache.rebalance(shardCount);
+                 System.out.printf("Rebalanced to %d shards in %.1f ms.%n", shardCount, (System.nanoTime() - start) / 1e6);
+             }
+         }
+         cache.printShards(System.out);
+         System.out.println();
+         start = System.nanoTime();
+         ClaimAggregates totals = cache.aggregate();
+         ClaimAnalytics.print(totals, System.nanoTime() - start);
+     }
+ 
+     private static List<Claim> loadClaimBook() {
+         List<Customer> loadedCustomers = new ArrayList<>();
+         List<Claim> claims = new ArrayList<>();
+         ClaimJournal journal = ClaimJournal.open(loadedCustomers, claims);
+         journal.close();
+         return claims;
+     }
+ 
+     // Method to print the change events from a sequence number on; following, it keeps printing new ones
+     private static void printChanges(long fromSequence, boolean follow) throws IOException, InterruptedException {
+         String fileName = ClaimChangeFileSink.CHANGES_FILE;
+         if (!Files.exists(Paths.get(fileName))) {
+             System.out.println("No changes recorded yet.");
+             return;
+         }
+         PrintWriter out = CustomerClaimReport.consoleWriter();
+         long offset = ClaimChangeFileSink.offsetOf(fileName, fromSequence);
+         while (true) {
+             offset = ClaimChangeFileSink.readFrom(fileName, offset, out::println);
+             out.flush();
+             if (!follow) {
+                 return;
+             }
+             Thread.sleep(500);
+         }
+     }
+ 
+     // Method to list the revisions of one claim and, given a time, print the claim as it was then
+     private static void printHistory(String id, String asOf) throws IOException {
+         PrintWriter out = CustomerClaimReport.consoleWriter();
+         try (ClaimHistory history = ClaimHistory.read(ClaimHistory.HISTORY_FILE)) {
+             if (!history.printRevisions(id, out)) {
+                 out.println("No recorded changes for claim " + id + ".");
+             }
+             if (asOf != null) {
+                 List<Customer> loadedCustomers = new ArrayList<>();
+                 List<Claim> claims = new ArrayList<>();
+                 ClaimJournal journal = ClaimJournal.open(loadedCustomers, claims);
+                 journal.close();
+                 Claim current = new ClaimRepository(claims).getClaimById(id);
+                 Claim claim = history.asOf(id, ClaimHistory.parseTime(asOf), current);
+                 out.println();
+                 if (claim == null) {
+                     out.println("Claim " + id + " did not exist as of " + asOf + ".");
+                 } else {
+                     out.println("Claim " + id + " as of " + asOf + ":");
+                     CustomerClaimReport.writeClaim(out, claim);
+                 }
+             }
+         }
+         out.flush();
+     }
+ 
+     // Method to rebuild the whole claim book as it was at a time and report on it
+     private static void printBookAsOf(String asOf) throws IOException {
+         List<Customer> loadedCustomers = new ArrayList<>();
+         List<Claim> claims = new ArrayList<>();
+         ClaimJournal journal = ClaimJournal.open(loadedCustomers, claims);
+         journal.close();
+         try (ClaimHistory history = ClaimHistory.read(ClaimHistory.HISTORY_FILE)) {
+             long start = System.nanoTime();
+             List<Claim> book = history.bookAsOf(ClaimHistory.parseTime(asOf), claims);
+             System.out.printf("Claim book as of %s: %d claims, %d with recorded changes, rebuilt in %.1f ms.%n%n",
+                     asOf, book.size(), history.trackedClaims(), (System.nanoTime() - start) / 1e6);
+             start = System.nanoTime();
+             ClaimAggregates totals = ClaimAnalytics.compute(book);
+             ClaimAnalytics.print(totals, System.nanoTime() - start);
+         }
+     }
+ 
+     private static void printUsage() {
+         System.out.println("Usage: java InsuranceClaimsSystem [command]");
+         System.out.println("  (no command)                      start the interactive menu");
+         System.out.println("  --to-binary [claims.txt] [claims.bin]  convert text claims to the binary format");
+         System.out.println("  --to-text [claims.bin] [claims.txt]    convert binary claims back to text");
+         System.out.println("  --import <claims.csv|claims.jsonl> [customers.txt]  bulk import a claim feed");
+         System.out.println("  --serve [port]                    serve claims over local HTTP (default port 8080)");
+         System.out.println("  --process [workers] [ms per stage]  move NEW claims through PROCESSING to DONE in parallel");
+         System.out.println("  --load-test [seconds]             measure service throughput as threads increase");
+         System.out.println("  --report <file.txt|file.csv|file.json>  export all customers and their claims");
+         System.out.println("  --generate <count> [claims.txt] [customers.txt]  write a synthetic dataset");
+         System.out.println("  --memory [count]                  compare heap used by Claim objects and the compact table");
+         System.out.println("  --changes [from sequence] [--follow]  print claim change events, optionally waiting for new ones");
+         System.out.println("  --fraud [flagged.txt]             rescan every claim for duplicates and shared payout accounts");
+         System.out.println("  --shard <count> [directory]       report from a cache of the claims sharded by card number, updating or rebalancing it");
+         System.out.println("  --history <claim id> [yyyy-MM-dd]  list the revisions of a claim, and print it as of a date");
+         System.out.println("  --as-of <yyyy-MM-dd>              report on the whole claim book as it was at the end of a date");
      }
  }
  
\ No newline at end of file
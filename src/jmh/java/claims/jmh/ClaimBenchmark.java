@@ -0,0 +1,133 @@
+package claims.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// JMH benchmarks for the FileManager and ClaimManager hot paths
+// The build compiles a copy of InsuranceClaimsSystem.java into this package, because JMH does not accept
+// benchmarks in the default package and the claim classes are package-private there.
+// Datasets come from SyntheticDataGenerator and are kept in bench-data/ between runs.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class ClaimBenchmark {
+    static final int LOOKUPS = 1_000_000;
+    static final int DELETES = 1_000;
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private String claimsFile;
+    private String writeFile;
+    private List<Claim> claims;
+    private List<Customer> customers;
+    private ClaimRepository repository;
+    private CustomerDirectory directory;
+    private String[] ids;
+    private String[] deleteIds;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        SyntheticDataGenerator.ensureDataset(size);
+        claimsFile = SyntheticDataGenerator.claimsFile(size);
+        writeFile = SyntheticDataGenerator.DATA_DIRECTORY + "/write-" + size + ".txt";
+        claims = new ArrayList<>();
+        customers = new ArrayList<>();
+        FileManager.readClaimsFromFile(claims, claimsFile);
+        FileManager.readCustomersFromFile(customers, SyntheticDataGenerator.customersFile(size));
+        repository = new ClaimRepository(claims);
+        directory = new CustomerDirectory(customers);
+        ids = SyntheticDataGenerator.randomIds(claims, LOOKUPS);
+        deleteIds = SyntheticDataGenerator.randomIds(claims, DELETES);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWriteFile() throws IOException {
+        Files.deleteIfExists(Paths.get(writeFile));
+    }
+
+    // A fresh copy of the book for every iteration; deleteWithOrphanCleanup runs once per iteration,
+    // so copying up to a million claims is kept out of the measurement without per-invocation setup
+    @State(Scope.Thread)
+    public static class DeleteState {
+        ClaimRepository repository;
+        CustomerDirectory directory;
+
+        @Setup(Level.Iteration)
+        public void copy(ClaimBenchmark book) {
+            repository = new ClaimRepository(book.claims);
+            directory = new CustomerDirectory(book.customers);
+        }
+    }
+
+    @Benchmark
+    public void streamClaims(Blackhole blackhole) {
+        FileManager.streamClaims(claimsFile, blackhole::consume);
+    }
+
+    @Benchmark
+    public List<Claim> readClaimsFromFile() {
+        List<Claim> parsed = new ArrayList<>(size);
+        FileManager.readClaimsFromFile(parsed, claimsFile);
+        return parsed;
+    }
+
+    @Benchmark
+    public void writeClaimsToFile() {
+        FileManager.writeClaimsToFile(claims, writeFile);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(LOOKUPS)
+    public void getClaimById(Blackhole blackhole) {
+        for (String id : ids) {
+            blackhole.consume(repository.getClaimById(id));
+        }
+    }
+
+    // Time to join every customer with their claims, per pass over the whole directory
+    @Benchmark
+    public void customerClaimJoin(Blackhole blackhole) {
+        for (Customer customer : directory.getAll()) {
+            blackhole.consume(repository.getClaimsByFullName(customer.getFullName()));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 10, batchSize = 1)
+    @Measurement(iterations = 20, batchSize = 1)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(DELETES)
+    public void deleteWithOrphanCleanup(DeleteState state, Blackhole blackhole) {
+        for (String id : deleteIds) {
+            if (state.repository.getClaimById(id) != null) {
+                blackhole.consume(ClaimManager.removeClaim(id, state.repository, state.directory));
+            }
+        }
+    }
+}